@@ -0,0 +1,60 @@
+package org.odata.appengine;
+
+import java.util.concurrent.TimeUnit;
+
+import org.odata.appengine.AccessControl.AccessType;
+import org.odata.appengine.AccessControl.UserGroup;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+
+/**
+ * AccessControl.checkAccess for a logged in user who is not an admin, with the
+ * grants cached and with every decision read from the datastore.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AccessControlBenchmark extends LocalDatastore {
+
+	private DatastoreService datastore;
+	private Entity device;
+
+	@Override
+	void load(DatastoreService datastore) {
+		this.datastore = datastore;
+		device = new Entity("Device");
+		device.setProperty("Name", "Device");
+		datastore.put(device);
+		AccessControl.createAccess(datastore, "Device", UserGroup.USER);
+		AccessControl.createAccess(datastore, device);
+	}
+
+	@Benchmark
+	public Entity read(Rpcs rpcs) {
+		rpcs.call();
+		AccessControl.checkAccess(datastore, device, AccessType.READ);
+		return device;
+	}
+
+	@Benchmark
+	public Entity write(Rpcs rpcs) {
+		rpcs.call();
+		AccessControl.checkAccess(datastore, device, AccessType.WRITE);
+		return device;
+	}
+
+	@Benchmark
+	public Entity writeUncached(Rpcs rpcs) {
+		rpcs.call();
+		AccessControl.invalidate();
+		AccessControl.checkAccess(datastore, device, AccessType.WRITE);
+		return device;
+	}
+}
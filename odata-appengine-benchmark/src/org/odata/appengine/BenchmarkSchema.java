@@ -0,0 +1,112 @@
+package org.odata.appengine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+
+import org.odata4j.edm.EdmAssociation;
+import org.odata4j.edm.EdmAssociationEnd;
+import org.odata4j.edm.EdmDataServices;
+import org.odata4j.edm.EdmEntityContainer;
+import org.odata4j.edm.EdmEntitySet;
+import org.odata4j.edm.EdmEntityType;
+import org.odata4j.edm.EdmMultiplicity;
+import org.odata4j.edm.EdmNavigationProperty;
+import org.odata4j.edm.EdmProperty;
+import org.odata4j.edm.EdmSchema;
+import org.odata4j.edm.EdmSimpleType;
+import org.odata4j.producer.InlineCount;
+import org.odata4j.producer.QueryInfo;
+import org.odata4j.producer.resources.OptionsQueryParser;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+
+/**
+ * Metadata and data of the benchmarks, shaped like the kinds of the test
+ * module: Users with a MANY link to their Devices and Events with a
+ * ZERO_TO_ONE link to a Device.
+ */
+class BenchmarkSchema {
+
+	static final String NAMESPACE = "Datastore";
+
+	static EdmDataServices metadata() {
+		EdmEntityType.Builder device = EdmEntityType.newBuilder().setNamespace(NAMESPACE).setName("Device").addKeys("Id").addProperties(
+				EdmProperty.newBuilder("Id").setType(EdmSimpleType.INT64),
+				EdmProperty.newBuilder("Name").setType(EdmSimpleType.STRING),
+				EdmProperty.newBuilder("Identifier").setType(EdmSimpleType.STRING));
+		EdmEntityType.Builder user = EdmEntityType.newBuilder().setNamespace(NAMESPACE).setName("User").addKeys("Id").addProperties(
+				EdmProperty.newBuilder("Id").setType(EdmSimpleType.INT64),
+				EdmProperty.newBuilder("Name").setType(EdmSimpleType.STRING));
+		EdmEntityType.Builder event = EdmEntityType.newBuilder().setNamespace(NAMESPACE).setName("Event").addKeys("Id").addProperties(
+				EdmProperty.newBuilder("Id").setType(EdmSimpleType.INT64),
+				EdmProperty.newBuilder("Name").setType(EdmSimpleType.STRING),
+				EdmProperty.newBuilder("Description").setType(EdmSimpleType.STRING),
+				EdmProperty.newBuilder("StartDate").setType(EdmSimpleType.DATETIME),
+				EdmProperty.newBuilder("Priority").setType(EdmSimpleType.INT32),
+				EdmProperty.newBuilder("Duration").setType(EdmSimpleType.DOUBLE),
+				EdmProperty.newBuilder("Public").setType(EdmSimpleType.BOOLEAN));
+
+		EdmAssociationEnd.Builder userEnd = EdmAssociationEnd.newBuilder().setRole("User").setType(user).setMultiplicity(EdmMultiplicity.ZERO_TO_ONE);
+		EdmAssociationEnd.Builder devicesEnd = EdmAssociationEnd.newBuilder().setRole("Device").setType(device).setMultiplicity(EdmMultiplicity.MANY);
+		EdmAssociation.Builder userDevices = EdmAssociation.newBuilder().setNamespace(NAMESPACE).setName("User_Devices").setEnds(userEnd, devicesEnd);
+		user.addNavigationProperties(EdmNavigationProperty.newBuilder("Devices").setRelationship(userDevices).setFromTo(userEnd, devicesEnd));
+
+		EdmAssociationEnd.Builder eventEnd = EdmAssociationEnd.newBuilder().setRole("Event").setType(event).setMultiplicity(EdmMultiplicity.MANY);
+		EdmAssociationEnd.Builder deviceEnd = EdmAssociationEnd.newBuilder().setRole("Device").setType(device).setMultiplicity(EdmMultiplicity.ZERO_TO_ONE);
+		EdmAssociation.Builder eventDevice = EdmAssociation.newBuilder().setNamespace(NAMESPACE).setName("Event_Device").setEnds(eventEnd, deviceEnd);
+		event.addNavigationProperties(EdmNavigationProperty.newBuilder("Device").setRelationship(eventDevice).setFromTo(eventEnd, deviceEnd));
+
+		EdmEntityContainer.Builder container = EdmEntityContainer.newBuilder().setName("Container").setIsDefault(true).addEntitySets(
+				EdmEntitySet.newBuilder().setName("Device").setEntityType(device),
+				EdmEntitySet.newBuilder().setName("User").setEntityType(user),
+				EdmEntitySet.newBuilder().setName("Event").setEntityType(event));
+		EdmSchema.Builder schema = EdmSchema.newBuilder().setNamespace(NAMESPACE).addEntityTypes(device, user, event)
+				.addAssociations(Arrays.asList(userDevices, eventDevice)).addEntityContainers(container);
+		return EdmDataServices.newBuilder().addSchemas(schema).build();
+	}
+
+	static List<Key> putDevices(DatastoreService datastore, int count) {
+		List<Entity> devices = new ArrayList<Entity>(count);
+		for (int i = 0; i < count; i++) {
+			Entity device = new Entity("Device");
+			device.setProperty("Name", "Device " + i);
+			device.setProperty("Identifier", Integer.toHexString(i * 7919));
+			devices.add(device);
+		}
+		return datastore.put(devices);
+	}
+
+	static List<Key> putEvents(DatastoreService datastore, int count, List<Key> devices) {
+		List<Entity> events = new ArrayList<Entity>(count);
+		for (int i = 0; i < count; i++) {
+			events.add(newEvent(i, devices.get(i % devices.size())));
+		}
+		return datastore.put(events);
+	}
+
+	static Entity newEvent(int i, Key device) {
+		Entity event = new Entity("Event");
+		event.setProperty("Name", "Event " + (i % 100));
+		event.setProperty("Description", "Description of event " + i);
+		event.setProperty("StartDate", new Date(1356998400000L + i * 3600000L));
+		event.setProperty("Priority", (long) (i % 5));
+		event.setProperty("Duration", (i % 8) * 0.25);
+		event.setProperty("Public", i % 2 == 0);
+		event.setProperty("Device", device);
+		return event;
+	}
+
+	static QueryInfo query(String filter, String orderBy, Integer top, String select, String expand) {
+		return new QueryInfo(InlineCount.NONE, top, null,
+				filter != null ? OptionsQueryParser.parseFilter(filter) : null,
+				orderBy != null ? OptionsQueryParser.parseOrderBy(orderBy) : null,
+				null, new HashMap<String, String>(),
+				expand != null ? OptionsQueryParser.parseExpand(expand) : null,
+				select != null ? OptionsQueryParser.parseSelect(select) : null);
+	}
+}
@@ -0,0 +1,23 @@
+package org.odata.appengine;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the regular JMH command line, e.g.
+ * "QueryBenchmark -p events=1000", always adding the GC profiler for the
+ * allocation rate. The datastore calls per invocation are reported as the
+ * rpcs, calls and rpcsPerCall secondary results.
+ */
+public class Benchmarks {
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.addProfiler(GCProfiler.class)
+				.threads(1)
+				.build()).run();
+	}
+}
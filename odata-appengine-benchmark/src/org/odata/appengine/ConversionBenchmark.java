@@ -0,0 +1,76 @@
+package org.odata.appengine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.LocalDateTime;
+import org.odata4j.core.OEntity;
+import org.odata4j.core.OProperties;
+import org.odata4j.core.OProperty;
+import org.odata4j.edm.EdmEntitySet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+
+/**
+ * Entity to OEntity conversion and back, without datastore calls.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ConversionBenchmark extends LocalDatastore {
+
+	@Param({ "all", "Name,Priority", "Name,StartDate,Device" })
+	public String select;
+
+	private EntityTypePlan plan;
+	private ProjectionPlan projection;
+	private Entity entity;
+	private List<OProperty<?>> properties;
+	private final Map<String, Map<Key, OEntity>> expanded = Collections.emptyMap();
+
+	@Override
+	void load(DatastoreService datastore) {
+		entity = new Entity(KeyFactory.createKey("Event", 42));
+		entity.setPropertiesFrom(BenchmarkSchema.newEvent(42, KeyFactory.createKey("Device", 7)));
+
+		properties = new ArrayList<OProperty<?>>();
+		properties.add(OProperties.string("Name", "Event 42"));
+		properties.add(OProperties.string("Description", "Description of event 42"));
+		properties.add(OProperties.datetime("StartDate", new LocalDateTime(2013, 1, 1, 12, 0)));
+		properties.add(OProperties.int32("Priority", 2));
+		properties.add(OProperties.double_("Duration", 0.5));
+		properties.add(OProperties.boolean_("Public", true));
+	}
+
+	@Override
+	void prepare() {
+		EdmEntitySet ees = producer.getMetadata().getEdmEntitySet("Event");
+		plan = producer.typePlan("Event");
+		projection = producer.projection(ees, BenchmarkSchema.query(null, null, null, "all".equals(select) ? null : select, null));
+	}
+
+	@Benchmark
+	public OEntity toOEntity() {
+		return producer.toOEntity(plan, entity, projection, expanded);
+	}
+
+	@Benchmark
+	public Entity applyProperties() {
+		Entity e = new Entity("Event");
+		producer.applyProperties(e, plan, properties);
+		return e;
+	}
+}
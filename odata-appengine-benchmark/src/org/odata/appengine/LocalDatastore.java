@@ -0,0 +1,65 @@
+package org.odata.appengine;
+
+import java.util.Properties;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+/**
+ * In-memory local datastore with a Producer over the benchmark schema, set up
+ * once per trial. The ApiProxy environment is bound to the thread running the
+ * setup, so benchmarks using it run with a single thread.
+ */
+@State(Scope.Benchmark)
+public abstract class LocalDatastore {
+
+	static final String USER_EMAIL = "bench@example.com";
+
+	// simulated RPC latencies make concurrent gets show up in the timings
+	@Param({ "false" })
+	public boolean simulateLatencies;
+
+	private LocalServiceTestHelper helper;
+
+	Producer producer;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig().setNoStorage(true), new LocalMemcacheServiceTestConfig())
+				.setEnvIsLoggedIn(true)
+				.setEnvEmail(USER_EMAIL)
+				.setEnvAuthDomain("example.com")
+				.setSimulateProdLatencies(simulateLatencies);
+		helper.setUp();
+		RpcCounter.install();
+
+		DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+		load(datastore);
+		producer = new Producer(BenchmarkSchema.metadata(), new ProducerSettings(settings()));
+		prepare();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		helper.tearDown();
+	}
+
+	abstract void load(DatastoreService datastore);
+
+	void prepare() {
+	}
+
+	Properties settings() {
+		return new Properties();
+	}
+}
@@ -0,0 +1,67 @@
+package org.odata.appengine;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.odata4j.core.OEntityKey;
+import org.odata4j.producer.BaseResponse;
+import org.odata4j.producer.QueryInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+
+/**
+ * getNavProperty of a User whose MANY link holds a large list of Device keys.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class NavigationBenchmark extends LocalDatastore {
+
+	@Param({ "10", "100", "1000" })
+	public int devices;
+
+	// seconds Devices stay in the shared entity cache, 0 to read them from the datastore
+	@Param({ "0", "60" })
+	public int cacheSeconds;
+
+	private final QueryInfo all = BenchmarkSchema.query(null, null, null, null, null);
+	private final QueryInfo select = BenchmarkSchema.query(null, null, null, "Name", null);
+	private OEntityKey userKey;
+
+	@Override
+	void load(DatastoreService datastore) {
+		Entity user = new Entity("User");
+		user.setProperty("Name", "User");
+		user.setProperty("Devices", BenchmarkSchema.putDevices(datastore, devices));
+		userKey = OEntityKey.create(datastore.put(user).getId());
+	}
+
+	@Override
+	Properties settings() {
+		Properties settings = new Properties();
+		if (cacheSeconds > 0) {
+			settings.setProperty("odata.appengine.entityCacheSeconds.Device", Integer.toString(cacheSeconds));
+		}
+		return settings;
+	}
+
+	@Benchmark
+	public BaseResponse devices(Rpcs rpcs) {
+		rpcs.call();
+		return producer.getNavProperty("User", userKey, "Devices", all);
+	}
+
+	@Benchmark
+	public BaseResponse devicesSelect(Rpcs rpcs) {
+		rpcs.call();
+		return producer.getNavProperty("User", userKey, "Devices", select);
+	}
+}
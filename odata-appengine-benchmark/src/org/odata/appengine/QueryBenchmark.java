@@ -0,0 +1,72 @@
+package org.odata.appengine;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.odata4j.core.OEntity;
+import org.odata4j.producer.QueryInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import com.google.appengine.api.datastore.DatastoreService;
+
+/**
+ * getEntities over Events linked to a fixed set of Devices.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class QueryBenchmark extends LocalDatastore {
+
+	private static final int DEVICES = 50;
+	private static final int PAGE = 100;
+
+	@Param({ "100", "1000", "10000" })
+	public int events;
+
+	private final QueryInfo page = BenchmarkSchema.query(null, null, PAGE, null, null);
+	private final QueryInfo filterSort = BenchmarkSchema.query("Priority eq 2 and Public eq true", "StartDate desc", PAGE, null, null);
+	private final QueryInfo residualFilter = BenchmarkSchema.query("substringof('7', Description)", null, PAGE, null, null);
+	private final QueryInfo select = BenchmarkSchema.query(null, null, PAGE, "Name,StartDate", null);
+	private final QueryInfo selectExpand = BenchmarkSchema.query(null, null, PAGE, "Name,Device/Name", "Device");
+
+	@Override
+	void load(DatastoreService datastore) {
+		BenchmarkSchema.putEvents(datastore, events, BenchmarkSchema.putDevices(datastore, DEVICES));
+	}
+
+	@Benchmark
+	public List<OEntity> page(Rpcs rpcs) {
+		return getEntities(rpcs, page);
+	}
+
+	@Benchmark
+	public List<OEntity> filterSort(Rpcs rpcs) {
+		return getEntities(rpcs, filterSort);
+	}
+
+	@Benchmark
+	public List<OEntity> residualFilter(Rpcs rpcs) {
+		return getEntities(rpcs, residualFilter);
+	}
+
+	@Benchmark
+	public List<OEntity> select(Rpcs rpcs) {
+		return getEntities(rpcs, select);
+	}
+
+	@Benchmark
+	public List<OEntity> selectExpand(Rpcs rpcs) {
+		return getEntities(rpcs, selectExpand);
+	}
+
+	private List<OEntity> getEntities(Rpcs rpcs, QueryInfo queryInfo) {
+		rpcs.call();
+		return producer.getEntities("Event", queryInfo).getEntities();
+	}
+}
@@ -0,0 +1,70 @@
+package org.odata.appengine;
+
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.ApiConfig;
+import com.google.apphosting.api.ApiProxy.ApiProxyException;
+import com.google.apphosting.api.ApiProxy.Delegate;
+import com.google.apphosting.api.ApiProxy.Environment;
+import com.google.apphosting.api.ApiProxy.LogRecord;
+
+/**
+ * ApiProxy delegate counting the datastore calls made through the local
+ * service stubs, synchronous and asynchronous alike.
+ */
+class RpcCounter implements Delegate<Environment> {
+
+	private static final String DATASTORE_SERVICE = "datastore_v3";
+
+	private static final AtomicLong count = new AtomicLong();
+
+	private final Delegate<Environment> delegate;
+
+	private RpcCounter(Delegate<Environment> delegate) {
+		this.delegate = delegate;
+	}
+
+	/**
+	 * Wraps the delegate installed by LocalServiceTestHelper.setUp().
+	 */
+	@SuppressWarnings("unchecked")
+	static void install() {
+		Delegate<Environment> delegate = ApiProxy.getDelegate();
+		if (!(delegate instanceof RpcCounter)) {
+			ApiProxy.setDelegate(new RpcCounter(delegate));
+		}
+	}
+
+	static long count() {
+		return count.get();
+	}
+
+	public byte[] makeSyncCall(Environment environment, String packageName, String methodName, byte[] request) throws ApiProxyException {
+		if (DATASTORE_SERVICE.equals(packageName)) {
+			count.incrementAndGet();
+		}
+		return delegate.makeSyncCall(environment, packageName, methodName, request);
+	}
+
+	public Future<byte[]> makeAsyncCall(Environment environment, String packageName, String methodName, byte[] request, ApiConfig apiConfig) {
+		if (DATASTORE_SERVICE.equals(packageName)) {
+			count.incrementAndGet();
+		}
+		return delegate.makeAsyncCall(environment, packageName, methodName, request, apiConfig);
+	}
+
+	public void log(Environment environment, LogRecord record) {
+		delegate.log(environment, record);
+	}
+
+	public void flushLogs(Environment environment) {
+		delegate.flushLogs(environment);
+	}
+
+	public List<Thread> getRequestThreads(Environment environment) {
+		return delegate.getRequestThreads(environment);
+	}
+}
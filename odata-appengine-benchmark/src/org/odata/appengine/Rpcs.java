@@ -0,0 +1,42 @@
+package org.odata.appengine;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Datastore calls of an iteration, reported by JMH next to the time and the
+ * allocation rate. Benchmarks count their invocations with call() so the
+ * calls per invocation can be reported as well.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.EVENTS)
+public class Rpcs {
+
+	public long rpcs;
+	public long calls;
+	public double rpcsPerCall;
+
+	private long start;
+
+	@Setup(Level.Iteration)
+	public void begin() {
+		rpcs = 0;
+		calls = 0;
+		rpcsPerCall = 0;
+		start = RpcCounter.count();
+	}
+
+	@TearDown(Level.Iteration)
+	public void end() {
+		rpcs = RpcCounter.count() - start;
+		rpcsPerCall = calls > 0 ? (double) rpcs / calls : 0;
+	}
+
+	void call() {
+		calls++;
+	}
+}
@@ -1,13 +1,17 @@
 package org.odata.appengine;
 
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import org.odata4j.exceptions.NotAuthorizedException;
 
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.Query;
-import com.google.appengine.api.datastore.Query.Filter;
-import com.google.appengine.api.datastore.Query.FilterOperator;
-import com.google.appengine.api.datastore.Query.FilterPredicate;
 import com.google.appengine.api.users.User;
 import com.google.appengine.api.users.UserService;
 import com.google.appengine.api.users.UserServiceFactory;
@@ -17,6 +21,10 @@ public class AccessControl {
 	private static final String ENTITY_ACCESS_CONTROL_KIND = "AccessControlEntity";
 	private static final String KIND_ACCESS_CONTROL_KIND = "AccessControlKind";
 
+	private static final long KIND_ACCESS_REFRESH_MILLIS = 60 * 1000;
+	private static final long ENTITY_ACCESS_REFRESH_MILLIS = 60 * 1000;
+	private static final int MAX_CACHED_ENTITIES = 10000;
+
 	public enum AccessType {
 		READ(1), WRITE(2);
 
@@ -37,20 +45,64 @@ public class AccessControl {
 		}
 	}
 
+	// kind grants, loaded with a single query and refreshed periodically to pick up other instances' changes
+	private static volatile Map<String, Integer> kindAccess;
+	private static volatile long kindAccessLoaded;
+
+	private static class Decision {
+		private final boolean owner;
+		private final long loaded;
+
+		private Decision(boolean owner, long loaded) {
+			this.owner = owner;
+			this.loaded = loaded;
+		}
+	}
+
+	// write decisions per entity key and user, expiring like the kind grants so
+	// that ownership changed on other instances or in the datastore is picked up
+	private static final Map<Key, Map<User, Decision>> entityAccess = new LinkedHashMap<Key, Map<User, Decision>>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, Map<User, Decision>> eldest) {
+			return size() > MAX_CACHED_ENTITIES;
+		}
+	};
+
 	public static void createAccess(DatastoreService datastore, String kind, UserGroup userGroup) {
-		Entity kac = new Entity(ENTITY_ACCESS_CONTROL_KIND);
+		Entity kac = new Entity(KIND_ACCESS_CONTROL_KIND, kind);
 		kac.setProperty("Kind", kind);
 		kac.setProperty("Access", userGroup.groupId);
+		datastore.put(kac);
+		kindAccess = null;
 	}
 
 	public static void createAccess(DatastoreService datastore, Entity e) {
 		UserService userService = UserServiceFactory.getUserService();
-		Entity eac = new Entity(ENTITY_ACCESS_CONTROL_KIND);
-		eac.setProperty("Entity", e);
+		Entity eac = new Entity(entityAccessKey(e.getKey()));
+		eac.setProperty("Entity", e.getKey());
 		eac.setProperty("Owner", userService.getCurrentUser());
+		datastore.put(eac);
+		synchronized (entityAccess) {
+			entityAccess.remove(e.getKey());
+		}
 	}
 
+	/**
+	 * Pass Producer.getDatastoreService() to have the datastore calls of the
+	 * check recorded with the producer's metrics.
+	 */
 	public static void checkAccess(DatastoreService datastore, Entity e, AccessType accessType) {
+		RequestMetrics.begin(null, "checkAccess", e != null ? e.getKind() : null);
+		try {
+			checkAccessInternal(datastore, e, accessType);
+		} finally {
+			RequestMetrics.end();
+		}
+	}
+
+	private static void checkAccessInternal(DatastoreService datastore, Entity e, AccessType accessType) {
 		UserService userService = UserServiceFactory.getUserService();
 		if (!userService.isUserLoggedIn()) {
 			throw new NotAuthorizedException();
@@ -64,29 +116,74 @@ public class AccessControl {
 
 		// Check read access by kind
 		if (accessType == AccessType.READ) {
-			Query q = new Query(KIND_ACCESS_CONTROL_KIND);
-			Filter filter = new FilterPredicate("Kind", FilterOperator.EQUAL, e.getKind());
-			q.setFilter(filter);
-			Entity kac = datastore.prepare(q).asSingleEntity();
-			if (kac != null) {
-				Long access = (Long) kac.getProperty("Access");
-				if (access.equals(UserGroup.USER.groupId)) {
-					return;
-				}
+			Integer access = getKindAccess(datastore).get(e.getKind());
+			if (access != null && access.equals(UserGroup.USER.groupId)) {
+				return;
 			}
 		}
 		// Check write access by entity
 		else if (accessType == AccessType.WRITE) {
-			Query q = new Query(ENTITY_ACCESS_CONTROL_KIND);
-			Filter filter = new FilterPredicate("Entity", FilterOperator.EQUAL, e);
-			q.setFilter(filter);
-			Entity eac = datastore.prepare(q).asSingleEntity();
-
-			User owner = (User) eac.getProperty("owner");
-			if (owner.compareTo(userService.getCurrentUser()) == 0) {
+			if (isOwner(datastore, e.getKey(), userService.getCurrentUser())) {
 				return;
 			}
 		}
 		throw new NotAuthorizedException();
 	}
+
+	/**
+	 * Drops all cached grants and decisions, e.g. after access control
+	 * entities were changed outside of this class.
+	 */
+	public static void invalidate() {
+		kindAccess = null;
+		synchronized (entityAccess) {
+			entityAccess.clear();
+		}
+	}
+
+	private static Map<String, Integer> getKindAccess(DatastoreService datastore) {
+		Map<String, Integer> access = kindAccess;
+		if (access == null || System.currentTimeMillis() - kindAccessLoaded > KIND_ACCESS_REFRESH_MILLIS) {
+			access = new HashMap<String, Integer>();
+			for (Entity kac : datastore.prepare(new Query(KIND_ACCESS_CONTROL_KIND)).asIterable()) {
+				access.put((String) kac.getProperty("Kind"), ((Number) kac.getProperty("Access")).intValue());
+			}
+			kindAccess = access;
+			kindAccessLoaded = System.currentTimeMillis();
+		}
+		return access;
+	}
+
+	private static boolean isOwner(DatastoreService datastore, Key key, User user) {
+		synchronized (entityAccess) {
+			Map<User, Decision> decisions = entityAccess.get(key);
+			Decision decision = decisions != null ? decisions.get(user) : null;
+			if (decision != null && System.currentTimeMillis() - decision.loaded <= ENTITY_ACCESS_REFRESH_MILLIS) {
+				return decision.owner;
+			}
+		}
+
+		boolean owner;
+		try {
+			Entity eac = datastore.get(entityAccessKey(key));
+			owner = user.equals(eac.getProperty("Owner"));
+		} catch (EntityNotFoundException ex) {
+			owner = false;
+		}
+
+		synchronized (entityAccess) {
+			Map<User, Decision> decisions = entityAccess.get(key);
+			if (decisions == null) {
+				decisions = new HashMap<User, Decision>();
+				entityAccess.put(key, decisions);
+			}
+			decisions.put(user, new Decision(owner, System.currentTimeMillis()));
+		}
+		return owner;
+	}
+
+	// entity ownership is stored under the owned entity's key so a check is a single get
+	private static Key entityAccessKey(Key key) {
+		return KeyFactory.createKey(ENTITY_ACCESS_CONTROL_KIND, KeyFactory.keyToString(key));
+	}
 }
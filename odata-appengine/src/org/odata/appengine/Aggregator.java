@@ -0,0 +1,439 @@
+package org.odata.appengine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.joda.time.LocalDateTime;
+import org.odata4j.core.OCollection;
+import org.odata4j.core.OCollections;
+import org.odata4j.core.OComplexObject;
+import org.odata4j.core.OComplexObjects;
+import org.odata4j.core.OProperties;
+import org.odata4j.core.OProperty;
+import org.odata4j.edm.EdmCollectionType;
+import org.odata4j.edm.EdmComplexType;
+import org.odata4j.edm.EdmDataServices;
+import org.odata4j.edm.EdmEntityContainer;
+import org.odata4j.edm.EdmEntitySet;
+import org.odata4j.edm.EdmFunctionImport;
+import org.odata4j.edm.EdmFunctionParameter;
+import org.odata4j.edm.EdmMultiplicity;
+import org.odata4j.edm.EdmProperty;
+import org.odata4j.edm.EdmProperty.CollectionKind;
+import org.odata4j.edm.EdmSchema;
+import org.odata4j.edm.EdmSimpleType;
+import org.odata4j.edm.EdmType;
+import org.odata4j.exceptions.BadRequestException;
+import org.odata4j.producer.CollectionResponse;
+import org.odata4j.producer.Responses;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.PropertyContainer;
+import com.google.appengine.api.datastore.PropertyProjection;
+import com.google.appengine.api.datastore.Query;
+
+/**
+ * The &lt;Set&gt;Aggregate function import of the entity sets with
+ * odata.appengine.aggregates or odata.appengine.runningAggregates configured,
+ * e.g. Locations/LocationAggregate?Aggregate='max(time),sum(lat)'&amp;GroupBy='device'.
+ * It returns one &lt;Set&gt;Aggregate row per group, or a single row without
+ * GroupBy, holding the count and the requested sum, min and max of the
+ * properties listed in odata.appengine.aggregates; $filter applies.
+ *
+ * Counts and sums of a maintained grouping are read from the
+ * RunningAggregates of an unfiltered set. Everything else streams one query
+ * over the set, keys-only when only counting and a projection when the
+ * properties read are in odata.appengine.indexedProperties, so memory grows
+ * with the groups, not with the entities.
+ */
+class Aggregator {
+
+	static final String FUNCTION_SUFFIX = "Aggregate";
+	static final String AGGREGATE_PARAMETER = "Aggregate";
+	static final String GROUP_BY_PARAMETER = "GroupBy";
+
+	private static final String GROUP = "Group";
+	private static final String COUNT = "Count";
+	private static final String SUM = "sum";
+	private static final String MIN = "min";
+	private static final String MAX = "max";
+	private static final int MAX_GROUPS = 1000;
+	private static final int CHUNK_SIZE = 500;
+	private static final Set<EdmType> NUMERIC_TYPES = new HashSet<EdmType>(Arrays.<EdmType> asList(EdmSimpleType.BYTE, EdmSimpleType.INT16, EdmSimpleType.INT32,
+			EdmSimpleType.INT64, EdmSimpleType.SINGLE, EdmSimpleType.DOUBLE, EdmSimpleType.DECIMAL));
+
+	/**
+	 * Count, sums, minimums and maximums of a group.
+	 */
+	static class Row {
+		long count;
+		private final Map<String, Double> sums = new HashMap<String, Double>();
+		private final Map<String, Object> mins = new HashMap<String, Object>();
+		private final Map<String, Object> maxs = new HashMap<String, Object>();
+
+		void addSum(String propName, double value) {
+			Double sum = sums.get(propName);
+			sums.put(propName, sum != null ? sum + value : value);
+		}
+
+		Map<String, Double> getSums() {
+			return sums;
+		}
+
+		void add(Row row) {
+			count += row.count;
+			for (Map.Entry<String, Double> sum : row.sums.entrySet()) {
+				addSum(sum.getKey(), sum.getValue());
+			}
+		}
+
+		void subtract(Row row) {
+			count -= row.count;
+			for (Map.Entry<String, Double> sum : row.sums.entrySet()) {
+				addSum(sum.getKey(), -sum.getValue());
+			}
+		}
+
+		boolean isEmpty() {
+			if (count != 0) {
+				return false;
+			}
+			for (Double sum : sums.values()) {
+				if (sum != 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private void accept(PropertyContainer entity, Set<String> propNames) {
+			count++;
+			for (String propName : propNames) {
+				Object value = entity.getProperty(propName);
+				if (value == null) {
+					continue;
+				}
+				if (value instanceof Number) {
+					addSum(propName, ((Number) value).doubleValue());
+				}
+				if (!mins.containsKey(propName) || EntityOrdering.compareValues(value, mins.get(propName)) < 0) {
+					mins.put(propName, value);
+				}
+				if (!maxs.containsKey(propName) || EntityOrdering.compareValues(value, maxs.get(propName)) > 0) {
+					maxs.put(propName, value);
+				}
+			}
+		}
+	}
+
+	private final DatastoreService datastore;
+	private final ProducerSettings settings;
+	private final RunningAggregates running;
+
+	Aggregator(DatastoreService datastore, ProducerSettings settings, RunningAggregates running) {
+		this.datastore = datastore;
+		this.settings = settings;
+		this.running = running;
+	}
+
+	private static boolean isAggregated(String entitySetName, ProducerSettings settings) {
+		return settings.getAggregates(entitySetName) != null || settings.getRunningAggregates(entitySetName) != null;
+	}
+
+	/**
+	 * Declares the Aggregate function and its row type of the aggregated sets
+	 * in the EDM; the EDM is returned as is when no set is aggregated.
+	 */
+	static EdmDataServices declareFunctions(EdmDataServices metadata, ProducerSettings settings) {
+		List<EdmEntitySet> aggregated = new ArrayList<EdmEntitySet>();
+		for (EdmEntitySet ees : metadata.getEntitySets()) {
+			if (isAggregated(ees.getName(), settings)) {
+				aggregated.add(ees);
+			}
+		}
+		if (aggregated.size() == 0) {
+			return metadata;
+		}
+
+		EdmDataServices.Builder builder = EdmDataServices.newBuilder(metadata);
+		EdmEntityContainer.Builder container = null;
+		for (EdmSchema.Builder schema : builder.getSchemas()) {
+			if (schema.getEntityContainers().size() > 0) {
+				container = schema.getEntityContainers().get(0);
+				break;
+			}
+		}
+		for (EdmEntitySet ees : aggregated) {
+			String namespace = ees.getType().getNamespace();
+			EdmComplexType.Builder rowType = EdmComplexType.newBuilder().setNamespace(namespace).setName(ees.getName() + FUNCTION_SUFFIX)
+					.addProperties(rowProperties(ees, settings));
+			for (EdmSchema.Builder schema : builder.getSchemas()) {
+				if (schema.getNamespace().equals(namespace)) {
+					schema.addComplexTypes(Collections.singletonList(rowType));
+				}
+			}
+			container.addFunctionImports(EdmFunctionImport.newBuilder()
+					.setName(ees.getName() + FUNCTION_SUFFIX)
+					.setHttpMethod("GET")
+					.setReturnType(EdmCollectionType.newBuilder().setKind(CollectionKind.Collection).setCollectionType(rowType))
+					.addParameters(
+							EdmFunctionParameter.newBuilder().setName(AGGREGATE_PARAMETER).setType(EdmSimpleType.STRING).setNullable(true),
+							EdmFunctionParameter.newBuilder().setName(GROUP_BY_PARAMETER).setType(EdmSimpleType.STRING).setNullable(true)));
+		}
+		return builder.build();
+	}
+
+	// Group and Count, then the sum of every numeric property and the min and max of every one
+	private static List<EdmProperty.Builder> rowProperties(EdmEntitySet ees, ProducerSettings settings) {
+		List<EdmProperty.Builder> properties = new ArrayList<EdmProperty.Builder>();
+		properties.add(EdmProperty.newBuilder(GROUP).setType(EdmSimpleType.STRING).setNullable(true));
+		properties.add(EdmProperty.newBuilder(COUNT).setType(EdmSimpleType.INT64).setNullable(false));
+		for (String propName : aggregates(ees.getName(), settings)) {
+			EdmProperty property = ees.getType().findProperty(propName);
+			if (property == null || !(property.getType() instanceof EdmSimpleType)) {
+				throw new IllegalArgumentException("Property odata.appengine." + ProducerSettings.AGGREGATES + "." + ees.getName() + " lists " + propName + ", which is not a simple property");
+			}
+			if (NUMERIC_TYPES.contains(property.getType())) {
+				properties.add(EdmProperty.newBuilder(propName + "Sum").setType(EdmSimpleType.DOUBLE).setNullable(true));
+			}
+			properties.add(EdmProperty.newBuilder(propName + "Min").setType(property.getType()).setNullable(true));
+			properties.add(EdmProperty.newBuilder(propName + "Max").setType(property.getType()).setNullable(true));
+		}
+		return properties;
+	}
+
+	private static Set<String> aggregates(String entitySetName, ProducerSettings settings) {
+		Set<String> aggregates = settings.getAggregates(entitySetName);
+		return aggregates != null ? new TreeSet<String>(aggregates) : new TreeSet<String>();
+	}
+
+	/**
+	 * The aggregated entity set of the function, null for other functions.
+	 */
+	String getEntitySetName(EdmFunctionImport function) {
+		String name = function.getName();
+		if (function.getEntitySet() != null || !name.endsWith(FUNCTION_SUFFIX)) {
+			return null;
+		}
+		String entitySetName = name.substring(0, name.length() - FUNCTION_SUFFIX.length());
+		return isAggregated(entitySetName, settings) ? entitySetName : null;
+	}
+
+	/**
+	 * Aggregates the entities of query, the whole set when it is null, with
+	 * the part of the filter the datastore cannot answer in residual.
+	 */
+	CollectionResponse<?> aggregate(EdmFunctionImport function, EntityTypePlan plan, String aggregate, String groupBy, Query query, EntityFilter residual) {
+		String entitySetName = plan.getEntitySet().getName();
+		Map<String, Set<String>> requested = parse(entitySetName, plan, aggregate);
+		if (groupBy != null && plan.getProperty(groupBy) == null && !isNavigationKey(plan, groupBy)) {
+			throw new BadRequestException("Cannot group " + entitySetName + " by " + groupBy);
+		}
+
+		Map<Object, Row> rows = null;
+		boolean maintained = query == null && requested.get(MIN).size() == 0 && requested.get(MAX).size() == 0 && running.isMaintained(entitySetName, groupBy);
+		if (maintained) {
+			rows = running.read(entitySetName, groupBy);
+			if (rows == null) {
+				rows = scan(plan, new Query(entitySetName), null, summed(plan), groupBy, false);
+				running.seed(entitySetName, groupBy, rows);
+			}
+		} else {
+			Set<String> propNames = new HashSet<String>();
+			for (Set<String> names : requested.values()) {
+				propNames.addAll(names);
+			}
+			rows = scan(plan, query != null ? query : new Query(entitySetName), residual, propNames, groupBy, true);
+		}
+		return toResponse(function, plan, rows, requested);
+	}
+
+	/**
+	 * The properties of Aggregate by function, e.g. count,sum(lat),max(time);
+	 * the count is always part of the rows.
+	 */
+	private Map<String, Set<String>> parse(String entitySetName, EntityTypePlan plan, String aggregate) {
+		Map<String, Set<String>> requested = new HashMap<String, Set<String>>();
+		requested.put(SUM, new HashSet<String>());
+		requested.put(MIN, new HashSet<String>());
+		requested.put(MAX, new HashSet<String>());
+		if (aggregate == null) {
+			return requested;
+		}
+		Set<String> aggregates = aggregates(entitySetName, settings);
+		for (String item : aggregate.split(",")) {
+			item = item.trim();
+			if (item.length() == 0 || item.equals("count")) {
+				continue;
+			}
+			int open = item.indexOf('(');
+			String function = open > 0 ? item.substring(0, open).trim() : null;
+			String propName = open > 0 && item.endsWith(")") ? item.substring(open + 1, item.length() - 1).trim() : null;
+			if (function == null || propName == null || !requested.containsKey(function)) {
+				throw new BadRequestException("Invalid " + AGGREGATE_PARAMETER + " " + item + ", expected count, sum(property), min(property) or max(property)");
+			}
+			if (!aggregates.contains(propName)) {
+				throw new BadRequestException(propName + " is not listed in odata.appengine." + ProducerSettings.AGGREGATES + "." + entitySetName);
+			}
+			if (function.equals(SUM) && !NUMERIC_TYPES.contains(plan.getProperty(propName).type)) {
+				throw new BadRequestException("Cannot sum " + propName + " of type " + plan.getProperty(propName).type.getFullyQualifiedTypeName());
+			}
+			requested.get(function).add(propName);
+		}
+		return requested;
+	}
+
+	// the properties the running aggregates keep the sums of
+	private Set<String> summed(EntityTypePlan plan) {
+		Set<String> summed = new HashSet<String>();
+		for (String propName : aggregates(plan.getEntitySet().getName(), settings)) {
+			if (NUMERIC_TYPES.contains(plan.getProperty(propName).type)) {
+				summed.add(propName);
+			}
+		}
+		return summed;
+	}
+
+	// a ONE navigation property keeps the key of its target in the entity
+	private static boolean isNavigationKey(EntityTypePlan plan, String propName) {
+		EntityTypePlan.NavigationSlot slot = plan.getNavigation(propName);
+		return slot != null && slot.multiplicity != EdmMultiplicity.MANY;
+	}
+
+	/**
+	 * Streams the query into one row per group. A projection leaves out the
+	 * entities without one of the properties projected, so the seed of the
+	 * running aggregates reads the full entities.
+	 */
+	private Map<Object, Row> scan(EntityTypePlan plan, Query query, EntityFilter residual, Set<String> propNames, String groupBy, boolean projected) {
+		String entitySetName = plan.getEntitySet().getName();
+		if (residual == null) {
+			applyProjection(query, plan, propNames, groupBy, projected);
+		}
+		Integer scanLimit = residual != null ? settings.getResidualScanLimit(entitySetName) : null;
+		int scanned = 0;
+		Map<Object, Row> rows = new HashMap<Object, Row>();
+		for (Entity entity : datastore.prepare(query).asIterable(FetchOptions.Builder.withChunkSize(CHUNK_SIZE))) {
+			if (scanLimit != null && ++scanned > scanLimit) {
+				throw new BadRequestException("Aggregating a filter evaluated in memory exceeds the scan limit of " + scanLimit + " entities");
+			}
+			if (residual != null && !residual.matches(entity)) {
+				continue;
+			}
+			Object group = groupBy != null ? entity.getProperty(groupBy) : null;
+			Row row = rows.get(group);
+			if (row == null) {
+				if (rows.size() == MAX_GROUPS) {
+					throw new BadRequestException("Grouping " + entitySetName + " by " + groupBy + " exceeds " + MAX_GROUPS + " groups");
+				}
+				row = new Row();
+				rows.put(group, row);
+			}
+			row.accept(entity, propNames);
+		}
+		return rows;
+	}
+
+	// keys-only when there is nothing to read, a projection when everything read is indexed
+	private void applyProjection(Query query, EntityTypePlan plan, Set<String> propNames, String groupBy, boolean projected) {
+		Set<String> read = new HashSet<String>(propNames);
+		if (groupBy != null) {
+			read.add(groupBy);
+		}
+		if (read.size() == 0) {
+			query.setKeysOnly();
+			return;
+		}
+		Set<String> indexedProperties = settings.getIndexedProperties(plan.getEntitySet().getName());
+		if (!projected || indexedProperties == null) {
+			return;
+		}
+		Set<String> equalityProperties = new HashSet<String>();
+		Producer.collectEqualityProperties(query.getFilter(), equalityProperties);
+		List<PropertyProjection> projections = new ArrayList<PropertyProjection>();
+		for (String propName : read) {
+			EntityTypePlan.PropertySlot slot = plan.getProperty(propName);
+			Class<?> type = slot != null ? slot.projectionType : Key.class;
+			if (type == null || !indexedProperties.contains(propName) || equalityProperties.contains(propName)) {
+				return;
+			}
+			projections.add(new PropertyProjection(propName, type));
+		}
+		for (PropertyProjection projection : projections) {
+			query.addProjection(projection);
+		}
+	}
+
+	private static CollectionResponse<?> toResponse(EdmFunctionImport function, EntityTypePlan plan, Map<Object, Row> rows, Map<String, Set<String>> requested) {
+		EdmComplexType rowType = (EdmComplexType) ((EdmCollectionType) function.getReturnType()).getItemType();
+		List<Object> groups = new ArrayList<Object>(rows.keySet());
+		Collections.sort(groups, new Comparator<Object>() {
+			public int compare(Object lhs, Object rhs) {
+				return EntityOrdering.compareValues(lhs, rhs);
+			}
+		});
+		OCollection.Builder<OComplexObject> collection = OCollections.newBuilder(rowType);
+		for (Object group : groups) {
+			Row row = rows.get(group);
+			// groups the running aggregates no longer count anything in
+			if (row.count <= 0) {
+				continue;
+			}
+			Map<String, OProperty<?>> properties = new LinkedHashMap<String, OProperty<?>>();
+			properties.put(GROUP, OProperties.string(GROUP, groupName(group)));
+			properties.put(COUNT, OProperties.int64(COUNT, row.count));
+			for (EdmProperty property : rowType.getProperties()) {
+				if (!properties.containsKey(property.getName())) {
+					properties.put(property.getName(), OProperties.null_(property.getName(), (EdmSimpleType<?>) property.getType()));
+				}
+			}
+			for (String propName : requested.get(SUM)) {
+				Double sum = row.sums.get(propName);
+				properties.put(propName + "Sum", OProperties.double_(propName + "Sum", sum != null ? sum : 0));
+			}
+			for (String propName : requested.get(MIN)) {
+				properties.put(propName + "Min", value(plan, propName, "Min", row.mins.get(propName)));
+			}
+			for (String propName : requested.get(MAX)) {
+				properties.put(propName + "Max", value(plan, propName, "Max", row.maxs.get(propName)));
+			}
+			collection.add(OComplexObjects.create(rowType, new ArrayList<OProperty<?>>(properties.values())));
+		}
+		return Responses.collection(collection.build(), null, null, null, function.getName());
+	}
+
+	private static OProperty<?> value(EntityTypePlan plan, String propName, String suffix, Object value) {
+		EntityTypePlan.PropertySlot slot = plan.getProperty(propName);
+		if (value == null) {
+			return OProperties.null_(propName + suffix, slot.type);
+		}
+		return OProperties.simple(propName + suffix, slot.type, slot.read.convert(value));
+	}
+
+	private static String groupName(Object group) {
+		if (group == null) {
+			return null;
+		}
+		if (group instanceof Key) {
+			Key key = (Key) group;
+			return key.getName() != null ? key.getName() : Long.toString(key.getId());
+		}
+		if (group instanceof Date) {
+			return new LocalDateTime(group).toString();
+		}
+		return group.toString();
+	}
+}
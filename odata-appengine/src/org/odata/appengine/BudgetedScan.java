@@ -0,0 +1,70 @@
+package org.odata.appengine;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.google.appengine.api.datastore.Entity;
+
+/**
+ * Iterator over the results of a query that ends early once the time budget
+ * of the request is spent, so the entities read so far are returned with a
+ * next link instead of the request running into its deadline. The budget is
+ * checked before the source is asked for the next entity, so a cursor taken
+ * from the query points right behind the last entity returned, and an entity
+ * hasNext promised is returned even when the budget runs out meanwhile: a
+ * source reading ahead already moved the cursor past it. At least one entity
+ * is returned, so following the next links always makes progress. Queries
+ * with a residual filter check the budget in EntityFilter.Matches instead,
+ * between the entities scanned rather than those returned.
+ */
+class BudgetedScan implements Iterator<Entity> {
+
+	private final Iterator<Entity> source;
+	private final long deadlineNanos;
+	private final MetricsSink sink;
+	private int returned;
+	private boolean promised;
+	private boolean truncated;
+
+	BudgetedScan(Iterator<Entity> source, long deadlineNanos, MetricsSink sink) {
+		this.source = source;
+		this.deadlineNanos = deadlineNanos;
+		this.sink = sink;
+	}
+
+	/**
+	 * Whether the budget ended the iteration before the source did.
+	 */
+	boolean isTruncated() {
+		return truncated;
+	}
+
+	public boolean hasNext() {
+		if (promised) {
+			return true;
+		}
+		if (truncated) {
+			return false;
+		}
+		if (returned > 0 && System.nanoTime() - deadlineNanos >= 0) {
+			truncated = true;
+			RequestMetrics.recordTruncated(sink);
+			return false;
+		}
+		promised = source.hasNext();
+		return promised;
+	}
+
+	public Entity next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		promised = false;
+		returned++;
+		return source.next();
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+}
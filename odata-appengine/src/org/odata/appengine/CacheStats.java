@@ -0,0 +1,36 @@
+package org.odata.appengine;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class CacheStats {
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	void hit(long count) {
+		hits.addAndGet(count);
+	}
+
+	void miss(long count) {
+		misses.addAndGet(count);
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public double getHitRatio() {
+		long hits = getHits();
+		long total = hits + getMisses();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	@Override
+	public String toString() {
+		return "CacheStats[hits=" + getHits() + ", misses=" + getMisses() + "]";
+	}
+}
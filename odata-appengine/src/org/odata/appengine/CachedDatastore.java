@@ -0,0 +1,308 @@
+package org.odata.appengine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Transaction;
+
+/**
+ * Entity reads and writes of the producer. Reads go through a per-request
+ * identity map and, for entity sets with odata.appengine.entityCacheSeconds
+ * configured, the shared EntityCache. Every put and delete issued through
+ * here updates both levels; those of a transaction evict the shared entries
+ * once the caller reports the commit, so a read racing the commit cannot
+ * refill the cache with the entity the transaction replaced. Synchronous
+ * calls go through the instrumented DatastoreService, asynchronous gets are
+ * recorded here.
+ */
+class CachedDatastore {
+
+	private static class RequestScope {
+		private final Map<Key, Entity> entities = new HashMap<Key, Entity>();
+		private int depth;
+	}
+
+	private class PendingGet implements Future<Map<Key, Entity>> {
+		private final Map<Key, Entity> entities;
+		private final Future<Map<Key, Entity>> fetch;
+		private final RequestScope scope;
+		private final long start = System.nanoTime();
+		private boolean done;
+
+		PendingGet(Map<Key, Entity> entities, Future<Map<Key, Entity>> fetch, RequestScope scope) {
+			this.entities = entities;
+			this.fetch = fetch;
+			this.scope = scope;
+			this.done = fetch == null;
+		}
+
+		public Map<Key, Entity> get() throws InterruptedException, ExecutionException {
+			return done ? entities : complete(fetch.get());
+		}
+
+		public Map<Key, Entity> get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			return done ? entities : complete(fetch.get(timeout, unit));
+		}
+
+		public boolean isDone() {
+			return done || fetch.isDone();
+		}
+
+		public boolean isCancelled() {
+			return fetch != null && fetch.isCancelled();
+		}
+
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return fetch != null && fetch.cancel(mayInterruptIfRunning);
+		}
+
+		private synchronized Map<Key, Entity> complete(Map<Key, Entity> fetched) {
+			if (!done) {
+				// timed until the result is first asked for
+				RequestMetrics.recordCall(sink, "get", System.nanoTime() - start, fetched.size(), false);
+				for (Entity entity : fetched.values()) {
+					Integer expirationSeconds = getExpirationSeconds(entity.getKey());
+					if (expirationSeconds != null) {
+						cache.put(entity.getKey(), entity, expirationSeconds);
+					}
+				}
+				remember(scope, fetched.values());
+				entities.putAll(fetched);
+				done = true;
+			}
+			return entities;
+		}
+	}
+
+	private final DatastoreService datastore;
+	private final ConfiguredDatastore configured;
+	private final ProducerSettings settings;
+	private final MetricsSink sink;
+	private final EntityCache cache;
+	private final CacheStats stats = new CacheStats();
+	private final ThreadLocal<RequestScope> requestScope = new ThreadLocal<RequestScope>();
+	private final Map<Transaction, List<Key>> writes = new HashMap<Transaction, List<Key>>();
+
+	CachedDatastore(DatastoreService datastore, ConfiguredDatastore configured, ProducerSettings settings, MetricsSink sink) {
+		this.datastore = datastore;
+		this.configured = configured;
+		this.settings = settings;
+		this.sink = sink;
+		this.cache = ProducerSettings.MEMCACHE.equals(settings.getEntityCache()) ? new MemcacheEntityCache() : new LocalEntityCache(settings.getEntityCacheSize());
+	}
+
+	CacheStats getStats() {
+		return stats;
+	}
+
+	void beginRequest() {
+		RequestScope scope = requestScope.get();
+		if (scope == null) {
+			scope = new RequestScope();
+			requestScope.set(scope);
+		}
+		scope.depth++;
+	}
+
+	void endRequest() {
+		RequestScope scope = requestScope.get();
+		if (scope != null && --scope.depth <= 0) {
+			requestScope.remove();
+		}
+	}
+
+	/**
+	 * Hedged for entity sets with odata.appengine.hedgeMillis configured.
+	 */
+	Entity get(Key key) throws EntityNotFoundException {
+		Entity entity = await(getAsync(Collections.singletonList(key), true)).get(key);
+		if (entity == null) {
+			throw new EntityNotFoundException(key);
+		}
+		return entity;
+	}
+
+	Map<Key, Entity> get(Collection<Key> keys) {
+		return await(getAsync(keys));
+	}
+
+	/**
+	 * Answers what it can from the identity map and the shared cache right away
+	 * and issues one asynchronous batch get for the rest.
+	 */
+	Future<Map<Key, Entity>> getAsync(Collection<Key> keys) {
+		return getAsync(keys, false);
+	}
+
+	private Future<Map<Key, Entity>> getAsync(Collection<Key> keys, boolean hedged) {
+		Map<Key, Entity> entities = new HashMap<Key, Entity>();
+		RequestScope scope = requestScope.get();
+		List<Key> missing = new ArrayList<Key>();
+		List<Key> cacheable = new ArrayList<Key>();
+		for (Key key : keys) {
+			Entity entity = scope != null ? scope.entities.get(key) : null;
+			if (entity != null) {
+				entities.put(key, entity);
+			} else {
+				missing.add(key);
+				if (getExpirationSeconds(key) != null) {
+					cacheable.add(key);
+				}
+			}
+		}
+
+		if (cacheable.size() > 0) {
+			Map<Key, Entity> cached = cache.getAll(cacheable);
+			stats.hit(cached.size());
+			stats.miss(cacheable.size() - cached.size());
+			missing.removeAll(cached.keySet());
+			remember(scope, cached.values());
+			entities.putAll(cached);
+		}
+
+		return new PendingGet(entities, missing.size() > 0 ? configured.getAsync(missing, hedged) : null, scope);
+	}
+
+	static <T> T await(Future<T> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * The read of a read-modify-write, from the datastore rather than the
+	 * caches, whose entries can be older than the stored entities.
+	 */
+	Map<Key, Entity> get(Transaction txn, Collection<Key> keys) {
+		Map<Key, Entity> entities = txn != null ? datastore.get(txn, keys) : datastore.get(keys);
+		remember(requestScope.get(), entities.values());
+		return entities;
+	}
+
+	Key put(Entity entity) {
+		put(null, Collections.singletonList(entity));
+		return entity.getKey();
+	}
+
+	/**
+	 * Transactional writes only evict the cached entries after the commit, the
+	 * shared cache is refilled by the next read.
+	 */
+	void put(Transaction txn, Collection<Entity> entities) {
+		if (txn != null) {
+			datastore.put(txn, entities);
+		} else {
+			datastore.put(entities);
+		}
+		for (Entity entity : entities) {
+			Integer expirationSeconds = getExpirationSeconds(entity.getKey());
+			if (txn != null) {
+				written(txn, entity.getKey());
+			} else if (expirationSeconds != null) {
+				cache.put(entity.getKey(), entity, expirationSeconds);
+			}
+		}
+		remember(requestScope.get(), entities);
+	}
+
+	void delete(Key key) {
+		delete(null, Collections.singletonList(key));
+	}
+
+	void delete(Transaction txn, Collection<Key> keys) {
+		if (txn != null) {
+			datastore.delete(txn, keys);
+		} else {
+			datastore.delete(keys);
+		}
+		RequestScope scope = requestScope.get();
+		for (Key key : keys) {
+			if (txn != null) {
+				written(txn, key);
+			} else if (getExpirationSeconds(key) != null) {
+				cache.delete(key);
+			}
+			if (scope != null) {
+				scope.entities.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Evicts the shared entries of the entities the transaction wrote; called
+	 * right after the commit.
+	 */
+	void committed(Transaction txn) {
+		List<Key> keys;
+		synchronized (writes) {
+			keys = writes.remove(txn);
+		}
+		if (keys != null) {
+			for (Key key : keys) {
+				if (getExpirationSeconds(key) != null) {
+					cache.delete(key);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forgets the writes of a transaction that did not commit, including the
+	 * entities the request remembered from them; a no-op after committed.
+	 */
+	void discard(Transaction txn) {
+		List<Key> keys;
+		synchronized (writes) {
+			keys = writes.remove(txn);
+		}
+		RequestScope scope = requestScope.get();
+		if (keys != null && scope != null) {
+			for (Key key : keys) {
+				scope.entities.remove(key);
+			}
+		}
+	}
+
+	private void written(Transaction txn, Key key) {
+		synchronized (writes) {
+			List<Key> keys = writes.get(txn);
+			if (keys == null) {
+				keys = new ArrayList<Key>();
+				writes.put(txn, keys);
+			}
+			keys.add(key);
+		}
+	}
+
+	private Integer getExpirationSeconds(Key key) {
+		return settings.getEntityCacheSeconds(key.getKind());
+	}
+
+	private void remember(RequestScope scope, Collection<Entity> entities) {
+		if (scope != null) {
+			for (Entity entity : entities) {
+				scope.entities.put(entity.getKey(), entity);
+			}
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package org.odata.appengine;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.odata4j.core.OEntity;
+import org.odata4j.core.OEntityKey;
+import org.odata4j.producer.EntityResponse;
+
+/**
+ * Group of create, merge, update and delete operations that are written
+ * together, with one allocateIds call per kind for the created entities. An
+ * atomic change set reads the entities to merge or update with one batch get
+ * and writes with one batch put and one batch delete, in a cross-group
+ * transaction, which the datastore limits to 5 entity groups: it can write at
+ * most 5 different entities, or the request fails with 400 Bad Request before
+ * anything is written. Otherwise the created entities are written with one
+ * batch put and every merged or updated entity in a transaction of its own.
+ * Both check the request's If-Match against every entity they change.
+ */
+public class ChangeSet {
+
+	enum OperationType {
+		CREATE, MERGE, UPDATE, DELETE
+	}
+
+	static class Operation {
+		final OperationType type;
+		final String entitySetName;
+		final OEntity entity;
+		final OEntityKey entityKey;
+
+		private Operation(OperationType type, String entitySetName, OEntity entity, OEntityKey entityKey) {
+			this.type = type;
+			this.entitySetName = entitySetName;
+			this.entity = entity;
+			this.entityKey = entityKey;
+		}
+	}
+
+	private final Producer producer;
+	private final boolean atomic;
+	private final List<Operation> operations = new ArrayList<Operation>();
+
+	ChangeSet(Producer producer, boolean atomic) {
+		this.producer = producer;
+		this.atomic = atomic;
+	}
+
+	public ChangeSet createEntity(String entitySetName, OEntity entity) {
+		operations.add(new Operation(OperationType.CREATE, entitySetName, entity, null));
+		return this;
+	}
+
+	public ChangeSet mergeEntity(String entitySetName, OEntity entity) {
+		operations.add(new Operation(OperationType.MERGE, entitySetName, entity, entity.getEntityKey()));
+		return this;
+	}
+
+	public ChangeSet updateEntity(String entitySetName, OEntity entity) {
+		operations.add(new Operation(OperationType.UPDATE, entitySetName, entity, entity.getEntityKey()));
+		return this;
+	}
+
+	public ChangeSet deleteEntity(String entitySetName, OEntityKey entityKey) {
+		operations.add(new Operation(OperationType.DELETE, entitySetName, null, entityKey));
+		return this;
+	}
+
+	public boolean isAtomic() {
+		return atomic;
+	}
+
+	/**
+	 * Writes all operations and returns the created entities, in the order they
+	 * were added.
+	 */
+	public List<EntityResponse> commit() {
+		return producer.commit(atomic, operations);
+	}
+}
@@ -0,0 +1,218 @@
+package org.odata.appengine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.odata4j.edm.EdmCollectionType;
+import org.odata4j.edm.EdmDataServices;
+import org.odata4j.edm.EdmEntityContainer;
+import org.odata4j.edm.EdmEntitySet;
+import org.odata4j.edm.EdmFunctionImport;
+import org.odata4j.edm.EdmFunctionParameter;
+import org.odata4j.edm.EdmProperty.CollectionKind;
+import org.odata4j.edm.EdmSchema;
+import org.odata4j.edm.EdmSimpleType;
+import org.odata4j.exceptions.BadRequestException;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+
+/**
+ * Change tracking of the entity sets with odata.appengine.deltaRetentionSeconds
+ * configured, for sync clients. Every put of the producer stamps the entity
+ * with a modification marker in the indexed property _modified, every delete
+ * leaves a tombstone, a child of the deleted key, so it is written in the
+ * same transaction as the delete.
+ *
+ * A client asks DeltaToken() for a token before it syncs, then reads
+ * &lt;Set&gt;Changes and &lt;Set&gt;Deletes with the token of its previous
+ * sync, both paged with $skiptoken; the first sync reads &lt;Set&gt;Changes
+ * without a token. Markers come from the clock of the instance that wrote, so
+ * a token lies TOKEN_OVERLAP_MILLIS before it was issued, covering clocks
+ * running apart and queries not seeing the latest writes yet. Entities
+ * changed around a sync are sent again on the next one.
+ */
+class ChangeTracker {
+
+	static final String PROPERTY = "_modified";
+	static final String TOKEN_FUNCTION = "DeltaToken";
+	static final String TOKEN_PARAMETER = "DeltaToken";
+
+	private static final String CHANGES_SUFFIX = "Changes";
+	private static final String DELETES_SUFFIX = "Deletes";
+	private static final String TOMBSTONE_PREFIX = "Tombstone_";
+	private static final long TOKEN_OVERLAP_MILLIS = 10000;
+	private static final int PURGE_CHUNK_SIZE = 500;
+
+	private final DatastoreService datastore;
+	private final ProducerSettings settings;
+	private final AtomicLong lastMarker = new AtomicLong();
+
+	ChangeTracker(DatastoreService datastore, ProducerSettings settings) {
+		this.datastore = datastore;
+		this.settings = settings;
+	}
+
+	boolean isTracked(String entitySetName) {
+		return settings.getDeltaRetentionSeconds(entitySetName) != null;
+	}
+
+	/**
+	 * Declares the delta functions of the tracked sets in the EDM; the EDM is
+	 * returned as is when no set is tracked.
+	 */
+	static EdmDataServices declareFunctions(EdmDataServices metadata, ProducerSettings settings) {
+		List<String> tracked = new ArrayList<String>();
+		for (EdmEntitySet ees : metadata.getEntitySets()) {
+			if (settings.getDeltaRetentionSeconds(ees.getName()) != null) {
+				tracked.add(ees.getName());
+			}
+		}
+		if (tracked.size() == 0) {
+			return metadata;
+		}
+
+		EdmDataServices.Builder builder = EdmDataServices.newBuilder(metadata);
+		EdmEntityContainer.Builder container = null;
+		for (EdmSchema.Builder schema : builder.getSchemas()) {
+			if (schema.getEntityContainers().size() > 0) {
+				container = schema.getEntityContainers().get(0);
+				break;
+			}
+		}
+		container.addFunctionImports(EdmFunctionImport.newBuilder()
+				.setName(TOKEN_FUNCTION)
+				.setHttpMethod("GET")
+				.setReturnType(EdmSimpleType.STRING));
+		for (EdmEntitySet.Builder ees : container.getEntitySets()) {
+			if (!tracked.contains(ees.getName())) {
+				continue;
+			}
+			EdmCollectionType.Builder returnType = EdmCollectionType.newBuilder().setKind(CollectionKind.Collection).setCollectionType(builder.findEdmEntityType(metadata.getEdmEntitySet(ees.getName()).getType().getFullyQualifiedTypeName()));
+			container.addFunctionImports(
+					function(ees.getName() + CHANGES_SUFFIX, ees, returnType),
+					function(ees.getName() + DELETES_SUFFIX, ees, returnType));
+		}
+		return builder.build();
+	}
+
+	private static EdmFunctionImport.Builder function(String name, EdmEntitySet.Builder ees, EdmCollectionType.Builder returnType) {
+		return EdmFunctionImport.newBuilder()
+				.setName(name)
+				.setHttpMethod("GET")
+				.setEntitySet(ees)
+				.setReturnType(returnType)
+				.addParameters(EdmFunctionParameter.newBuilder().setName(TOKEN_PARAMETER).setType(EdmSimpleType.STRING).setNullable(true));
+	}
+
+	static boolean isChangesFunction(EdmFunctionImport function) {
+		return function.getEntitySet() != null && function.getName().equals(function.getEntitySet().getName() + CHANGES_SUFFIX);
+	}
+
+	static boolean isDeletesFunction(EdmFunctionImport function) {
+		return function.getEntitySet() != null && function.getName().equals(function.getEntitySet().getName() + DELETES_SUFFIX);
+	}
+
+	void stamp(Entity entity) {
+		if (isTracked(entity.getKind())) {
+			entity.setProperty(PROPERTY, nextMarker());
+		}
+	}
+
+	/**
+	 * Tombstones for the keys of tracked kinds, to be written with the delete.
+	 */
+	List<Entity> tombstones(Collection<Key> keys) {
+		List<Entity> tombstones = new ArrayList<Entity>();
+		for (Key key : keys) {
+			if (isTracked(key.getKind())) {
+				Entity tombstone = new Entity(KeyFactory.createKey(key, TOMBSTONE_PREFIX + key.getKind(), 1));
+				tombstone.setProperty(PROPERTY, nextMarker());
+				tombstones.add(tombstone);
+			}
+		}
+		return tombstones;
+	}
+
+	String newToken() {
+		return Long.toString((System.currentTimeMillis() - TOKEN_OVERLAP_MILLIS) * 1000);
+	}
+
+	/**
+	 * The entities of the set changed since the token.
+	 */
+	Filter changedSince(String entitySetName, String token) {
+		return new FilterPredicate(PROPERTY, FilterOperator.GREATER_THAN_OR_EQUAL, parseToken(entitySetName, token));
+	}
+
+	/**
+	 * Keys-only query of the tombstones of the set written since the token,
+	 * whose parents are the deleted keys.
+	 */
+	Query deletedSince(String entitySetName, String token) {
+		return new Query(TOMBSTONE_PREFIX + entitySetName).setFilter(new FilterPredicate(PROPERTY, FilterOperator.GREATER_THAN_OR_EQUAL, parseToken(entitySetName, token))).setKeysOnly();
+	}
+
+	/**
+	 * Deletes the tombstones of the set older than the retention, e.g. from a
+	 * cron job; returns how many were deleted.
+	 */
+	int purge(String entitySetName) {
+		Integer retentionSeconds = settings.getDeltaRetentionSeconds(entitySetName);
+		if (retentionSeconds == null) {
+			return 0;
+		}
+		Query q = new Query(TOMBSTONE_PREFIX + entitySetName).setFilter(new FilterPredicate(PROPERTY, FilterOperator.LESS_THAN, expiry(retentionSeconds))).setKeysOnly();
+		List<Key> keys = new ArrayList<Key>(PURGE_CHUNK_SIZE);
+		int purged = 0;
+		for (Entity tombstone : datastore.prepare(q).asIterable(FetchOptions.Builder.withChunkSize(PURGE_CHUNK_SIZE))) {
+			keys.add(tombstone.getKey());
+			if (keys.size() == PURGE_CHUNK_SIZE) {
+				datastore.delete(keys);
+				purged += keys.size();
+				keys.clear();
+			}
+		}
+		datastore.delete(keys);
+		return purged + keys.size();
+	}
+
+	// a token older than the retention may have missed purged tombstones
+	private long parseToken(String entitySetName, String token) {
+		long since;
+		try {
+			since = Long.parseLong(token);
+		} catch (NumberFormatException e) {
+			throw new BadRequestException("Invalid " + TOKEN_PARAMETER + " " + token);
+		}
+		if (since < expiry(settings.getDeltaRetentionSeconds(entitySetName))) {
+			throw new DeltaTokenExpiredException(entitySetName);
+		}
+		return since;
+	}
+
+	private static long expiry(int retentionSeconds) {
+		return (System.currentTimeMillis() - retentionSeconds * 1000L) * 1000;
+	}
+
+	// microseconds, increasing on this instance even when the clock is not
+	private long nextMarker() {
+		long now = System.currentTimeMillis() * 1000;
+		while (true) {
+			long last = lastMarker.get();
+			long next = Math.max(now, last + 1);
+			if (lastMarker.compareAndSet(last, next)) {
+				return next;
+			}
+		}
+	}
+}
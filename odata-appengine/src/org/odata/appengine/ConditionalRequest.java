@@ -0,0 +1,93 @@
+package org.odata.appengine;
+
+/**
+ * The If-Match and If-None-Match preconditions of the current request and the
+ * ETag of the entity it returned, bound to the request thread by
+ * ConditionalRequestFilter. Without the filter there are no preconditions and
+ * no ETag header.
+ *
+ * Every write that changes the version of the entity a request addresses is
+ * checked against its preconditions in the write's transaction: updates,
+ * merges, deletes, change sets and links kept in a key list on the source
+ * entity. Links stored as foreign keys or link entities leave the source
+ * entity as it is, requests changing them with preconditions fail with 400
+ * Bad Request. The targets whose foreign keys such links set are written
+ * without a check, the preconditions are not about them.
+ */
+class ConditionalRequest {
+
+	private static final ThreadLocal<ConditionalRequest> current = new ThreadLocal<ConditionalRequest>();
+
+	private final String ifMatch;
+	private final String ifNoneMatch;
+	private String entityTag;
+
+	private ConditionalRequest(String ifMatch, String ifNoneMatch) {
+		this.ifMatch = ifMatch;
+		this.ifNoneMatch = ifNoneMatch;
+	}
+
+	static ConditionalRequest begin(String ifMatch, String ifNoneMatch) {
+		ConditionalRequest request = new ConditionalRequest(ifMatch, ifNoneMatch);
+		current.set(request);
+		return request;
+	}
+
+	void end() {
+		current.remove();
+	}
+
+	String getEntityTag() {
+		return entityTag;
+	}
+
+	static boolean hasPreconditions() {
+		ConditionalRequest request = current.get();
+		return request != null && (request.ifMatch != null || request.ifNoneMatch != null);
+	}
+
+	/**
+	 * Checks the preconditions of a read against the ETag of the entity it
+	 * returns, before the entity is converted.
+	 */
+	static void checkRead(String etag) {
+		ConditionalRequest request = current.get();
+		if (request == null) {
+			return;
+		}
+		if (request.ifMatch != null && !EntityVersion.matches(request.ifMatch, etag, false)) {
+			throw new PreconditionFailedException("If-Match " + request.ifMatch + " does not match ETag " + etag);
+		}
+		if (request.ifNoneMatch != null && EntityVersion.matches(request.ifNoneMatch, etag, true)) {
+			throw new NotModifiedException(etag);
+		}
+	}
+
+	/**
+	 * Checks the preconditions of a write against the ETag of the entity as
+	 * read in the write's transaction.
+	 */
+	static void checkWrite(String etag) {
+		ConditionalRequest request = current.get();
+		if (request == null) {
+			return;
+		}
+		if (request.ifMatch != null && !EntityVersion.matches(request.ifMatch, etag, false)) {
+			throw new PreconditionFailedException("If-Match " + request.ifMatch + " does not match ETag " + etag);
+		}
+		if (request.ifNoneMatch != null && EntityVersion.matches(request.ifNoneMatch, etag, true)) {
+			throw new PreconditionFailedException("If-None-Match " + request.ifNoneMatch + " matches ETag " + etag);
+		}
+	}
+
+	/**
+	 * The ETag of the entity returned or written by the request, sent in the
+	 * ETag header.
+	 */
+	static void setEntityTag(String etag) {
+		ConditionalRequest request = current.get();
+		if (request != null) {
+			request.entityTag = etag;
+		}
+	}
+}
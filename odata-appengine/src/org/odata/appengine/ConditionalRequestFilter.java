@@ -0,0 +1,143 @@
+package org.odata.appengine;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import javax.ws.rs.core.HttpHeaders;
+
+/**
+ * Hands the If-Match and If-None-Match headers of the OData requests it is
+ * mapped to to the producer and sends the version of the entity read or
+ * written back in the ETag header. A 304 is sent without a body. $batch
+ * requests are passed through, their preconditions belong to the parts.
+ *
+ * Register it in web.xml with a filter-mapping on the url-pattern of the
+ * OData servlet, e.g. /datastore.svc/*. The test webapp does not, its
+ * odata-appengine jar predates the filter.
+ */
+public class ConditionalRequestFilter implements Filter {
+
+	private static final String BATCH = "/$batch";
+
+	public void init(FilterConfig config) throws ServletException {
+	}
+
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+		if (!(request instanceof HttpServletRequest) || !(response instanceof HttpServletResponse)) {
+			chain.doFilter(request, response);
+			return;
+		}
+		HttpServletRequest httpRequest = (HttpServletRequest) request;
+		if (httpRequest.getRequestURI().endsWith(BATCH)) {
+			chain.doFilter(request, response);
+			return;
+		}
+
+		ConditionalRequest conditional = ConditionalRequest.begin(httpRequest.getHeader(HttpHeaders.IF_MATCH), httpRequest.getHeader(HttpHeaders.IF_NONE_MATCH));
+		try {
+			TaggedResponse tagged = new TaggedResponse((HttpServletResponse) response, conditional);
+			chain.doFilter(request, tagged);
+			tagged.tag();
+		} finally {
+			conditional.end();
+		}
+	}
+
+	public void destroy() {
+	}
+
+	// sets the ETag header before the body is written, drops the body of a 304
+	private static class TaggedResponse extends HttpServletResponseWrapper {
+
+		private final ConditionalRequest conditional;
+		private boolean tagged;
+		private boolean notModified;
+		private ServletOutputStream discarded;
+		private PrintWriter discardedWriter;
+
+		TaggedResponse(HttpServletResponse response, ConditionalRequest conditional) {
+			super(response);
+			this.conditional = conditional;
+		}
+
+		@Override
+		public void setStatus(int sc) {
+			notModified = sc == SC_NOT_MODIFIED;
+			super.setStatus(sc);
+		}
+
+		@SuppressWarnings("deprecation")
+		@Override
+		public void setStatus(int sc, String sm) {
+			notModified = sc == SC_NOT_MODIFIED;
+			super.setStatus(sc, sm);
+		}
+
+		@Override
+		public void setContentLength(int len) {
+			if (!notModified) {
+				super.setContentLength(len);
+			}
+		}
+
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException {
+			tag();
+			if (!notModified) {
+				return super.getOutputStream();
+			}
+			if (discarded == null) {
+				discarded = new ServletOutputStream() {
+					@Override
+					public void write(int b) {
+					}
+
+					@Override
+					public void write(byte[] b, int off, int len) {
+					}
+				};
+			}
+			return discarded;
+		}
+
+		@Override
+		public PrintWriter getWriter() throws IOException {
+			tag();
+			if (!notModified) {
+				return super.getWriter();
+			}
+			if (discardedWriter == null) {
+				discardedWriter = new PrintWriter(new OutputStreamWriter(getOutputStream(), getCharacterEncoding()));
+			}
+			return discardedWriter;
+		}
+
+		@Override
+		public void flushBuffer() throws IOException {
+			tag();
+			super.flushBuffer();
+		}
+
+		void tag() {
+			if (tagged || isCommitted()) {
+				return;
+			}
+			tagged = true;
+			String etag = conditional.getEntityTag();
+			if (etag != null) {
+				setHeader(HttpHeaders.ETAG, etag);
+			}
+		}
+	}
+}
@@ -0,0 +1,516 @@
+package org.odata.appengine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreAttributes;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceConfig;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.DatastoreTimeoutException;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Index;
+import com.google.appengine.api.datastore.Index.IndexState;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyRange;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.ReadPolicy;
+import com.google.appengine.api.datastore.ReadPolicy.Consistency;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+import com.google.apphosting.api.ApiProxy;
+
+/**
+ * DatastoreService routing every call to a service configured for the kind
+ * it reads or writes: odata.appengine.readPolicy (strong or eventual) and
+ * odata.appengine.deadlineMillis per entity set. Transactional calls always
+ * read strongly.
+ *
+ * Gets, and puts and deletes of complete keys, made outside of a transaction
+ * are retried up to odata.appengine.retryAttempts times when they time out,
+ * after a random backoff below odata.appengine.retryBackoffMillis doubling
+ * with every attempt. Queries are read lazily and are not retried.
+ */
+class ConfiguredDatastore implements DatastoreService {
+
+	private static final Logger LOG = Logger.getLogger(ConfiguredDatastore.class.getName());
+
+	private static final int DEFAULT_RETRY_BACKOFF_MILLIS = 20;
+	private static final long HEDGE_POLL_NANOS = 1000000;
+
+	/**
+	 * An asynchronous get, issued again when it times out and retries are
+	 * configured. With odata.appengine.hedgeMillis it is also issued a second
+	 * time when the first one has not returned after that long; the first
+	 * result wins and an attempt only fails when both gets failed.
+	 */
+	private class ConfiguredGet implements Future<Map<Key, Entity>> {
+		private final Collection<Key> keys;
+		private final String kind;
+		private final AsyncDatastoreService async;
+		private final Integer hedgeMillis;
+		private Future<Map<Key, Entity>> first;
+		private Future<Map<Key, Entity>> second;
+		private long issued;
+		private int attempt = 1;
+
+		ConfiguredGet(Collection<Key> keys, String kind, AsyncDatastoreService async, Integer hedgeMillis) {
+			this.keys = keys;
+			this.kind = kind;
+			this.async = async;
+			this.hedgeMillis = hedgeMillis;
+			issue();
+		}
+
+		private void issue() {
+			issued = System.nanoTime();
+			first = async.get(keys);
+			second = null;
+		}
+
+		public Map<Key, Entity> get() throws InterruptedException, ExecutionException {
+			try {
+				return await(Long.MAX_VALUE);
+			} catch (TimeoutException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		public Map<Key, Entity> get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			return await(System.nanoTime() + unit.toNanos(timeout));
+		}
+
+		public synchronized boolean isDone() {
+			return first.isDone() || (second != null && second.isDone());
+		}
+
+		public synchronized boolean isCancelled() {
+			return first.isCancelled();
+		}
+
+		public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+			return first.cancel(mayInterruptIfRunning) | (second != null && second.cancel(mayInterruptIfRunning));
+		}
+
+		private synchronized Map<Key, Entity> await(long deadline) throws InterruptedException, ExecutionException, TimeoutException {
+			while (true) {
+				try {
+					return hedgeMillis != null ? awaitHedged(deadline) : awaitFirst(deadline);
+				} catch (ExecutionException e) {
+					if (!(e.getCause() instanceof RuntimeException) || !retry(kind, attempt, (RuntimeException) e.getCause())) {
+						throw e;
+					}
+					attempt++;
+					issue();
+				}
+			}
+		}
+
+		private Map<Key, Entity> awaitFirst(long deadline) throws InterruptedException, ExecutionException, TimeoutException {
+			return deadline == Long.MAX_VALUE ? first.get() : first.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+		}
+
+		private Map<Key, Entity> awaitHedged(long deadline) throws InterruptedException, ExecutionException, TimeoutException {
+			if (second == null) {
+				long hedgeAt = issued + hedgeMillis * 1000000L;
+				try {
+					return first.get(Math.max(Math.min(hedgeAt, deadline) - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+				} catch (TimeoutException e) {
+					if (deadline <= hedgeAt) {
+						throw e;
+					}
+				}
+				second = async.get(keys);
+			}
+			long secondIssued = System.nanoTime();
+			boolean firstFailed = false;
+			boolean secondFailed = false;
+			while (true) {
+				if (!firstFailed && first.isDone()) {
+					try {
+						return first.get();
+					} catch (ExecutionException e) {
+						if (secondFailed) {
+							throw e;
+						}
+						firstFailed = true;
+					}
+				}
+				if (!secondFailed && second.isDone()) {
+					try {
+						Map<Key, Entity> entities = second.get();
+						RequestMetrics.recordCall(sink, "hedgedGet", System.nanoTime() - secondIssued, entities.size(), false);
+						return entities;
+					} catch (ExecutionException e) {
+						if (firstFailed) {
+							throw e;
+						}
+						secondFailed = true;
+					}
+				}
+				if (System.nanoTime() >= deadline) {
+					throw new TimeoutException();
+				}
+				TimeUnit.NANOSECONDS.sleep(HEDGE_POLL_NANOS);
+			}
+		}
+	}
+
+	/**
+	 * The gets of a batch whose keys are routed to different services.
+	 */
+	private static class CombinedGet implements Future<Map<Key, Entity>> {
+		private final Collection<Future<Map<Key, Entity>>> fetches;
+
+		CombinedGet(Collection<Future<Map<Key, Entity>>> fetches) {
+			this.fetches = fetches;
+		}
+
+		public Map<Key, Entity> get() throws InterruptedException, ExecutionException {
+			Map<Key, Entity> entities = new HashMap<Key, Entity>();
+			for (Future<Map<Key, Entity>> fetch : fetches) {
+				entities.putAll(fetch.get());
+			}
+			return entities;
+		}
+
+		public Map<Key, Entity> get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			long deadline = System.nanoTime() + unit.toNanos(timeout);
+			Map<Key, Entity> entities = new HashMap<Key, Entity>();
+			for (Future<Map<Key, Entity>> fetch : fetches) {
+				entities.putAll(fetch.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS));
+			}
+			return entities;
+		}
+
+		public boolean isDone() {
+			for (Future<Map<Key, Entity>> fetch : fetches) {
+				if (!fetch.isDone()) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		public boolean isCancelled() {
+			for (Future<Map<Key, Entity>> fetch : fetches) {
+				if (fetch.isCancelled()) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean cancelled = false;
+			for (Future<Map<Key, Entity>> fetch : fetches) {
+				cancelled |= fetch.cancel(mayInterruptIfRunning);
+			}
+			return cancelled;
+		}
+	}
+
+	private final ProducerSettings settings;
+	private final MetricsSink sink;
+	private final DatastoreService defaultService;
+	private final Map<DatastoreServiceConfig, DatastoreService> services = new HashMap<DatastoreServiceConfig, DatastoreService>();
+	private final Map<DatastoreServiceConfig, AsyncDatastoreService> asyncServices = new HashMap<DatastoreServiceConfig, AsyncDatastoreService>();
+	private final Map<String, DatastoreServiceConfig> configs = new HashMap<String, DatastoreServiceConfig>();
+	private final Random random = new Random();
+
+	ConfiguredDatastore(ProducerSettings settings, MetricsSink sink) {
+		this.settings = settings;
+		this.sink = sink;
+		this.defaultService = service(null, false);
+	}
+
+	/**
+	 * The configuration of the kind, strong if it is read in a transaction.
+	 * Configurations are kept per key, so equal ones share their services.
+	 */
+	private synchronized DatastoreServiceConfig config(String kind, boolean transactional) {
+		String policy = settings.getReadPolicy(kind);
+		if (!ProducerSettings.STRONG.equals(policy) && !ProducerSettings.EVENTUAL.equals(policy)) {
+			throw new IllegalArgumentException("Property odata.appengine." + ProducerSettings.READ_POLICY + " is neither " + ProducerSettings.STRONG + " nor " + ProducerSettings.EVENTUAL + ": " + policy);
+		}
+		Consistency consistency = transactional || ProducerSettings.STRONG.equals(policy) ? Consistency.STRONG : Consistency.EVENTUAL;
+		Integer deadlineMillis = settings.getDeadlineMillis(kind);
+		String key = consistency + ":" + deadlineMillis;
+		DatastoreServiceConfig config = configs.get(key);
+		if (config == null) {
+			config = DatastoreServiceConfig.Builder.withReadPolicy(new ReadPolicy(consistency));
+			if (deadlineMillis != null) {
+				config.deadline(deadlineMillis / 1000.0);
+			}
+			configs.put(key, config);
+		}
+		return config;
+	}
+
+	private synchronized DatastoreService service(String kind, boolean transactional) {
+		DatastoreServiceConfig config = config(kind, transactional);
+		DatastoreService service = services.get(config);
+		if (service == null) {
+			service = DatastoreServiceFactory.getDatastoreService(config);
+			services.put(config, service);
+		}
+		return service;
+	}
+
+	private synchronized AsyncDatastoreService asyncService(String kind) {
+		DatastoreServiceConfig config = config(kind, false);
+		AsyncDatastoreService service = asyncServices.get(config);
+		if (service == null) {
+			service = DatastoreServiceFactory.getAsyncDatastoreService(config);
+			asyncServices.put(config, service);
+		}
+		return service;
+	}
+
+	/**
+	 * Asynchronous get of the keys, hedged when asked for and the kind of a
+	 * single key has odata.appengine.hedgeMillis configured.
+	 */
+	Future<Map<Key, Entity>> getAsync(Collection<Key> keys, boolean hedged) {
+		Map<AsyncDatastoreService, List<Key>> batches = new LinkedHashMap<AsyncDatastoreService, List<Key>>();
+		for (Key key : keys) {
+			AsyncDatastoreService service = asyncService(key.getKind());
+			List<Key> batch = batches.get(service);
+			if (batch == null) {
+				batch = new ArrayList<Key>();
+				batches.put(service, batch);
+			}
+			batch.add(key);
+		}
+		Integer hedgeMillis = hedged && keys.size() == 1 ? settings.getHedgeMillis(keys.iterator().next().getKind()) : null;
+		List<Future<Map<Key, Entity>>> fetches = new ArrayList<Future<Map<Key, Entity>>>();
+		for (Map.Entry<AsyncDatastoreService, List<Key>> batch : batches.entrySet()) {
+			fetches.add(new ConfiguredGet(batch.getValue(), batch.getValue().get(0).getKind(), batch.getKey(), hedgeMillis));
+		}
+		if (fetches.size() == 1) {
+			return fetches.get(0);
+		}
+		return new CombinedGet(fetches);
+	}
+
+	private static String kind(Iterable<Key> keys) {
+		Iterator<Key> it = keys.iterator();
+		return it.hasNext() ? it.next().getKind() : null;
+	}
+
+	private static String kind(Key... keys) {
+		return keys.length > 0 ? keys[0].getKind() : null;
+	}
+
+	private static boolean isComplete(Iterable<Entity> entities) {
+		for (Entity entity : entities) {
+			if (!entity.getKey().isComplete()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Sleeps before the next attempt of a call that timed out; false when e is
+	 * not to be retried.
+	 */
+	private boolean retry(String kind, int attempt, RuntimeException e) {
+		Integer attempts = settings.getRetryAttempts(kind);
+		boolean transientError = e instanceof DatastoreTimeoutException || e instanceof ApiProxy.ApiDeadlineExceededException || e instanceof ConcurrentModificationException;
+		if (!transientError || attempts == null || attempt > attempts) {
+			return false;
+		}
+		Integer baseMillis = settings.getRetryBackoffMillis(kind);
+		long ceiling = (baseMillis != null ? baseMillis : DEFAULT_RETRY_BACKOFF_MILLIS) << Math.min(attempt - 1, 10);
+		long millis;
+		synchronized (random) {
+			millis = (long) (random.nextDouble() * ceiling);
+		}
+		LOG.fine("retrying " + kind + " after " + e + " in " + millis + "ms, attempt " + attempt + " of " + attempts);
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return true;
+	}
+
+	public Entity get(Key key) throws EntityNotFoundException {
+		for (int attempt = 1;; attempt++) {
+			try {
+				return service(key.getKind(), false).get(key);
+			} catch (RuntimeException e) {
+				if (!retry(key.getKind(), attempt, e)) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	public Entity get(Transaction txn, Key key) throws EntityNotFoundException {
+		return txn != null ? service(key.getKind(), true).get(txn, key) : get(key);
+	}
+
+	public Map<Key, Entity> get(Iterable<Key> keys) {
+		return CachedDatastore.await(getAsync(keys instanceof Collection ? (Collection<Key>) keys : copy(keys), false));
+	}
+
+	private static List<Key> copy(Iterable<Key> keys) {
+		List<Key> list = new ArrayList<Key>();
+		for (Key key : keys) {
+			list.add(key);
+		}
+		return list;
+	}
+
+	public Map<Key, Entity> get(Transaction txn, Iterable<Key> keys) {
+		return txn != null ? service(kind(keys), true).get(txn, keys) : get(keys);
+	}
+
+	public Key put(Entity entity) {
+		return put(null, entity);
+	}
+
+	public Key put(Transaction txn, Entity entity) {
+		String kind = entity.getKind();
+		boolean retried = txn == null && entity.getKey().isComplete();
+		for (int attempt = 1;; attempt++) {
+			try {
+				return txn != null ? service(kind, true).put(txn, entity) : service(kind, false).put(entity);
+			} catch (RuntimeException e) {
+				if (!retried || !retry(kind, attempt, e)) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	public List<Key> put(Iterable<Entity> entities) {
+		return put(null, entities);
+	}
+
+	// an entity without a complete key would be inserted again
+	public List<Key> put(Transaction txn, Iterable<Entity> entities) {
+		Iterator<Entity> it = entities.iterator();
+		String kind = it.hasNext() ? it.next().getKind() : null;
+		boolean retried = txn == null && isComplete(entities);
+		for (int attempt = 1;; attempt++) {
+			try {
+				return txn != null ? service(kind, true).put(txn, entities) : service(kind, false).put(entities);
+			} catch (RuntimeException e) {
+				if (!retried || !retry(kind, attempt, e)) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	public void delete(Key... keys) {
+		delete(null, keys);
+	}
+
+	public void delete(Transaction txn, Key... keys) {
+		String kind = kind(keys);
+		for (int attempt = 1;; attempt++) {
+			try {
+				if (txn != null) {
+					service(kind, true).delete(txn, keys);
+				} else {
+					service(kind, false).delete(keys);
+				}
+				return;
+			} catch (RuntimeException e) {
+				if (txn != null || !retry(kind, attempt, e)) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	public void delete(Iterable<Key> keys) {
+		delete(null, keys);
+	}
+
+	public void delete(Transaction txn, Iterable<Key> keys) {
+		String kind = kind(keys);
+		for (int attempt = 1;; attempt++) {
+			try {
+				if (txn != null) {
+					service(kind, true).delete(txn, keys);
+				} else {
+					service(kind, false).delete(keys);
+				}
+				return;
+			} catch (RuntimeException e) {
+				if (txn != null || !retry(kind, attempt, e)) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	public Transaction beginTransaction() {
+		return defaultService.beginTransaction();
+	}
+
+	public Transaction beginTransaction(TransactionOptions options) {
+		return defaultService.beginTransaction(options);
+	}
+
+	public KeyRange allocateIds(String kind, long num) {
+		return service(kind, false).allocateIds(kind, num);
+	}
+
+	public KeyRange allocateIds(Key parent, String kind, long num) {
+		return service(kind, false).allocateIds(parent, kind, num);
+	}
+
+	public KeyRangeState allocateIdRange(KeyRange range) {
+		return defaultService.allocateIdRange(range);
+	}
+
+	public DatastoreAttributes getDatastoreAttributes() {
+		return defaultService.getDatastoreAttributes();
+	}
+
+	public Map<Index, IndexState> getIndexes() {
+		return defaultService.getIndexes();
+	}
+
+	public PreparedQuery prepare(Query query) {
+		return service(query.getKind(), false).prepare(query);
+	}
+
+	public PreparedQuery prepare(Transaction txn, Query query) {
+		return service(query.getKind(), txn != null).prepare(txn, query);
+	}
+
+	public Transaction getCurrentTransaction() {
+		return defaultService.getCurrentTransaction();
+	}
+
+	public Transaction getCurrentTransaction(Transaction returnedIfNoTxn) {
+		return defaultService.getCurrentTransaction(returnedIfNoTxn);
+	}
+
+	public Collection<Transaction> getActiveTransactions() {
+		return defaultService.getActiveTransactions();
+	}
+}
@@ -0,0 +1,24 @@
+package org.odata.appengine;
+
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.Response.StatusType;
+
+import org.odata4j.exceptions.ODataProducerException;
+
+/**
+ * 410 for a delta token older than the retention of the set; the client has
+ * to sync the whole set again.
+ */
+class DeltaTokenExpiredException extends ODataProducerException {
+
+	private static final long serialVersionUID = 1L;
+
+	DeltaTokenExpiredException(String entitySetName) {
+		super("Delta token of " + entitySetName + " expired, sync the entity set again", null);
+	}
+
+	@Override
+	public StatusType getHttpStatus() {
+		return Status.GONE;
+	}
+}
@@ -0,0 +1,166 @@
+package org.odata.appengine;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.odata4j.edm.EdmAssociation;
+import org.odata4j.edm.EdmDataServices;
+import org.odata4j.edm.EdmEntityContainer;
+import org.odata4j.edm.EdmEntitySet;
+import org.odata4j.edm.EdmEntityType;
+import org.odata4j.edm.EdmNavigationProperty;
+import org.odata4j.edm.EdmProperty;
+import org.odata4j.edm.EdmSchema;
+import org.odata4j.format.xml.EdmxFormatParser;
+import org.odata4j.format.xml.EdmxFormatWriter;
+import org.odata4j.producer.jpa.JPAEdmGenerator;
+import org.odata4j.stax2.util.StaxUtil;
+
+/**
+ * The EDM of the service serialized as CSDL, so instances can load it instead
+ * of starting JPA to generate it. Run main at build time to write the
+ * snapshot into the classpath, with --check to fail the build when the
+ * snapshot no longer matches the JPA entities. main needs the enhanced JPA
+ * entities and their META-INF/persistence.xml on its classpath; the test
+ * webapp's snapshot is odata-appengine-test/src/odata-edm.xml, regenerated
+ * with EdmSnapshot src/odata-edm.xml after its kinds change.
+ */
+public class EdmSnapshot {
+
+	static final String PERSISTENCE_UNIT_NAME = "transactions-optional";
+	static final String NAMESPACE = "Datastore";
+
+	private static final String UTF8 = "UTF-8";
+
+	/**
+	 * Starts the persistence unit only for as long as the generation takes.
+	 */
+	static EdmDataServices generate() {
+		EntityManagerFactory emf = Persistence.createEntityManagerFactory(PERSISTENCE_UNIT_NAME);
+		try {
+			return new JPAEdmGenerator(emf, NAMESPACE).generateEdm(null).build();
+		} finally {
+			emf.close();
+		}
+	}
+
+	static EdmDataServices read(InputStream in) throws IOException {
+		return read(new InputStreamReader(in, UTF8));
+	}
+
+	static EdmDataServices read(String csdl) {
+		return read(new StringReader(csdl));
+	}
+
+	private static EdmDataServices read(Reader reader) {
+		return new EdmxFormatParser().parseMetadata(StaxUtil.newXMLEventReader(reader));
+	}
+
+	static String write(EdmDataServices metadata) {
+		StringWriter writer = new StringWriter();
+		EdmxFormatWriter.write(metadata, writer);
+		return writer.toString();
+	}
+
+	/**
+	 * Differences between two EDMs in the parts generated from the JPA
+	 * entities, independent of the order of their declarations; empty when
+	 * they match.
+	 */
+	static List<String> diff(EdmDataServices expected, EdmDataServices actual) {
+		Set<String> expectedItems = describe(expected);
+		Set<String> actualItems = describe(actual);
+		List<String> differences = new ArrayList<String>();
+		for (String item : expectedItems) {
+			if (!actualItems.contains(item)) {
+				differences.add("- " + item);
+			}
+		}
+		for (String item : actualItems) {
+			if (!expectedItems.contains(item)) {
+				differences.add("+ " + item);
+			}
+		}
+		return differences;
+	}
+
+	private static Set<String> describe(EdmDataServices metadata) {
+		Set<String> items = new TreeSet<String>();
+		for (EdmSchema schema : metadata.getSchemas()) {
+			for (EdmEntityType type : schema.getEntityTypes()) {
+				String name = type.getFullyQualifiedTypeName();
+				items.add("EntityType " + name + " key " + type.getKeys());
+				for (EdmProperty prop : type.getProperties()) {
+					items.add("Property " + name + "." + prop.getName() + " " + prop.getType().getFullyQualifiedTypeName() + (prop.isNullable() ? "" : " not null"));
+				}
+				for (EdmNavigationProperty navProp : type.getNavigationProperties()) {
+					items.add("NavigationProperty " + name + "." + navProp.getName() + " " + navProp.getRelationship().getName() + " " + navProp.getFromRole().getRole() + " -> " + navProp.getToRole().getRole());
+				}
+			}
+			for (EdmAssociation association : schema.getAssociations()) {
+				items.add("Association " + association.getFQNamespaceName() + " " + association.getEnd1().getRole() + " " + association.getEnd1().getMultiplicity() + " "
+						+ association.getEnd2().getRole() + " " + association.getEnd2().getMultiplicity());
+			}
+			for (EdmEntityContainer container : schema.getEntityContainers()) {
+				for (EdmEntitySet ees : container.getEntitySets()) {
+					items.add("EntitySet " + container.getName() + "." + ees.getName() + " " + ees.getType().getFullyQualifiedTypeName());
+				}
+			}
+		}
+		return items;
+	}
+
+	/**
+	 * EdmSnapshot &lt;file&gt; writes the snapshot, EdmSnapshot --check
+	 * &lt;file&gt; exits with 1 if it differs from the JPA entities.
+	 */
+	public static void main(String[] args) throws IOException {
+		boolean check = args.length == 2 && args[0].equals("--check");
+		if (args.length != (check ? 2 : 1)) {
+			System.err.println("usage: EdmSnapshot [--check] <file>");
+			System.exit(2);
+		}
+		String file = args[args.length - 1];
+		EdmDataServices generated = generate();
+
+		if (check) {
+			InputStream in = new FileInputStream(file);
+			List<String> differences;
+			try {
+				differences = diff(read(in), generated);
+			} finally {
+				in.close();
+			}
+			for (String difference : differences) {
+				System.err.println(difference);
+			}
+			if (differences.size() > 0) {
+				System.err.println(file + " is out of date with the JPA entities, regenerate it with EdmSnapshot " + file);
+				System.exit(1);
+			}
+			return;
+		}
+
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file), UTF8);
+		try {
+			writer.write(write(generated));
+		} finally {
+			writer.close();
+		}
+	}
+}
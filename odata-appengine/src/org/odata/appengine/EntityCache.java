@@ -0,0 +1,23 @@
+package org.odata.appengine;
+
+import java.util.Collection;
+import java.util.Map;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+
+/**
+ * Shared cache of datastore entities, keyed by datastore Key. Mirrors the
+ * subset of MemcacheService the producer needs so that memcache and a local
+ * in-process cache are interchangeable.
+ */
+public interface EntityCache {
+
+	Entity get(Key key);
+
+	Map<Key, Entity> getAll(Collection<Key> keys);
+
+	void put(Key key, Entity entity, int expirationSeconds);
+
+	void delete(Key key);
+}
@@ -0,0 +1,199 @@
+package org.odata.appengine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import org.odata4j.exceptions.BadRequestException;
+import org.odata4j.expression.BoolCommonExpression;
+import org.odata4j.expression.Expression;
+
+import com.google.appengine.api.ThreadManager;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+/**
+ * Answers $count and $inlinecount. Unfiltered counts of entity sets with
+ * odata.appengine.countShards configured are read from a sharded counter kept
+ * up to date by the producer's writes, everything else runs a keys-only count,
+ * or scans the full entities when part of the filter is evaluated in memory.
+ * Results can be cached for odata.appengine.countCacheSeconds, keyed by entity
+ * set and normalized filter.
+ *
+ * The shards are updated in a transaction of their own after the write of the
+ * entities committed, not in the write's transaction: a shard is an entity
+ * group of its own, so every write would need a cross-group transaction. A
+ * write failing in between leaves the count off until the base entry is
+ * deleted and seeded again.
+ */
+class EntityCounter {
+
+	private static final String SHARD_KIND = "EntityCounterShard";
+	private static final String COUNT_PROPERTY = "Count";
+	private static final String SEPARATOR = ":";
+	private static final String CACHE_NAMESPACE = "EntityCounter";
+	private static final int RESIDUAL_CHUNK_SIZE = 500;
+
+	private final DatastoreService datastore;
+	private final ProducerSettings settings;
+	private final MemcacheService cache;
+	private final Random random = new Random();
+
+	EntityCounter(DatastoreService datastore, ProducerSettings settings) {
+		this.datastore = datastore;
+		this.settings = settings;
+		this.cache = MemcacheServiceFactory.getMemcacheService(CACHE_NAMESPACE);
+	}
+
+	/**
+	 * Runs the count on a request thread when the runtime provides one, so the
+	 * caller can issue its own datastore calls meanwhile; counts inline
+	 * otherwise.
+	 */
+	Future<Integer> countAsync(final String entitySetName, final String scope, final Query query, final BoolCommonExpression filter, final EntityFilter residual) {
+		final RequestMetrics metrics = RequestMetrics.current();
+		FutureTask<Integer> task = new FutureTask<Integer>(new Callable<Integer>() {
+			public Integer call() {
+				RequestMetrics previous = RequestMetrics.current();
+				RequestMetrics.attach(metrics);
+				try {
+					return count(entitySetName, scope, query, filter, residual);
+				} finally {
+					RequestMetrics.attach(previous);
+				}
+			}
+		});
+		ThreadFactory threadFactory = requestThreadFactory();
+		if (threadFactory != null) {
+			threadFactory.newThread(task).start();
+		} else {
+			task.run();
+		}
+		return task;
+	}
+
+	/**
+	 * Counts the entities of the query; scope names the part of the entity set
+	 * the query is restricted to, e.g. the targets of a navigation property,
+	 * and is null for the whole set.
+	 */
+	int count(String entitySetName, String scope, Query query, BoolCommonExpression filter, EntityFilter residual) {
+		Integer cacheSeconds = settings.getCountCacheSeconds(entitySetName);
+		String cacheKey = null;
+		if (cacheSeconds != null) {
+			cacheKey = entitySetName + SEPARATOR + (scope != null ? scope : "") + SEPARATOR + (filter != null ? Expression.asPrintString(filter) : "");
+			Integer count = (Integer) cache.get(cacheKey);
+			if (count != null) {
+				return count;
+			}
+		}
+
+		int count;
+		if (filter == null && scope == null && settings.getCountShards(entitySetName) != null) {
+			count = shardedCount(entitySetName);
+		} else if (residual != null) {
+			// the parts of the filter the datastore cannot answer need the full entities
+			Integer scanLimit = settings.getResidualScanLimit(entitySetName);
+			count = 0;
+			int scanned = 0;
+			for (Entity entity : datastore.prepare(query).asIterable(FetchOptions.Builder.withChunkSize(RESIDUAL_CHUNK_SIZE))) {
+				if (scanLimit != null && ++scanned > scanLimit) {
+					throw new BadRequestException("Counting a filter evaluated in memory exceeds the scan limit of " + scanLimit + " entities");
+				}
+				if (residual.matches(entity)) {
+					count++;
+				}
+			}
+		} else {
+			query.setKeysOnly();
+			count = datastore.prepare(query).countEntities(FetchOptions.Builder.withDefaults());
+		}
+
+		if (cacheKey != null) {
+			cache.put(cacheKey, count, Expiration.byDeltaSeconds(cacheSeconds));
+		}
+		return count;
+	}
+
+	boolean isSharded(String entitySetName) {
+		return settings.getCountShards(entitySetName) != null;
+	}
+
+	void increment(String entitySetName, long delta) {
+		Integer shards = settings.getCountShards(entitySetName);
+		if (shards == null) {
+			return;
+		}
+
+		Key key = KeyFactory.createKey(SHARD_KIND, entitySetName + SEPARATOR + random.nextInt(shards));
+		Transaction txn = datastore.beginTransaction();
+		try {
+			Entity shard;
+			try {
+				shard = datastore.get(txn, key);
+			} catch (EntityNotFoundException e) {
+				shard = new Entity(key);
+				shard.setUnindexedProperty(COUNT_PROPERTY, 0L);
+			}
+			shard.setUnindexedProperty(COUNT_PROPERTY, (Long) shard.getProperty(COUNT_PROPERTY) + delta);
+			datastore.put(txn, shard);
+			txn.commit();
+		} finally {
+			if (txn.isActive()) {
+				txn.rollback();
+			}
+		}
+	}
+
+	private static ThreadFactory requestThreadFactory() {
+		try {
+			return ThreadManager.currentRequestThreadFactory();
+		} catch (RuntimeException e) {
+			// outside of a request, e.g. in tests
+			return null;
+		}
+	}
+
+	private int shardedCount(String entitySetName) {
+		int shards = settings.getCountShards(entitySetName);
+		Key baseKey = KeyFactory.createKey(SHARD_KIND, entitySetName);
+		List<Key> keys = new ArrayList<Key>(shards + 1);
+		keys.add(baseKey);
+		for (int i = 0; i < shards; i++) {
+			keys.add(KeyFactory.createKey(SHARD_KIND, entitySetName + SEPARATOR + i));
+		}
+
+		Map<Key, Entity> counters = datastore.get(keys);
+		long sum = 0;
+		for (Entity counter : counters.values()) {
+			if (!counter.getKey().equals(baseKey)) {
+				sum += (Long) counter.getProperty(COUNT_PROPERTY);
+			}
+		}
+
+		// the first count of a kind seeds the base with whatever the shards don't account for yet
+		Entity base = counters.get(baseKey);
+		if (base == null) {
+			Query q = new Query(entitySetName).setKeysOnly();
+			int count = datastore.prepare(q).countEntities(FetchOptions.Builder.withDefaults());
+			base = new Entity(baseKey);
+			base.setUnindexedProperty(COUNT_PROPERTY, count - sum);
+			datastore.put(base);
+		}
+		return (int) (sum + (Long) base.getProperty(COUNT_PROPERTY));
+	}
+}
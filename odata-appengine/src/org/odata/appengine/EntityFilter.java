@@ -0,0 +1,673 @@
+package org.odata.appengine;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.joda.time.LocalDateTime;
+import org.odata4j.exceptions.BadRequestException;
+import org.odata4j.exceptions.NotImplementedException;
+import org.odata4j.expression.AddExpression;
+import org.odata4j.expression.AndExpression;
+import org.odata4j.expression.BinaryCommonExpression;
+import org.odata4j.expression.BoolCommonExpression;
+import org.odata4j.expression.BoolParenExpression;
+import org.odata4j.expression.CeilingMethodCallExpression;
+import org.odata4j.expression.CommonExpression;
+import org.odata4j.expression.ConcatMethodCallExpression;
+import org.odata4j.expression.DayMethodCallExpression;
+import org.odata4j.expression.DivExpression;
+import org.odata4j.expression.EndsWithMethodCallExpression;
+import org.odata4j.expression.EntitySimpleProperty;
+import org.odata4j.expression.EqExpression;
+import org.odata4j.expression.FloorMethodCallExpression;
+import org.odata4j.expression.GeExpression;
+import org.odata4j.expression.GtExpression;
+import org.odata4j.expression.HourMethodCallExpression;
+import org.odata4j.expression.IndexOfMethodCallExpression;
+import org.odata4j.expression.LeExpression;
+import org.odata4j.expression.LengthMethodCallExpression;
+import org.odata4j.expression.LiteralExpression;
+import org.odata4j.expression.LtExpression;
+import org.odata4j.expression.MinuteMethodCallExpression;
+import org.odata4j.expression.ModExpression;
+import org.odata4j.expression.MonthMethodCallExpression;
+import org.odata4j.expression.MulExpression;
+import org.odata4j.expression.NeExpression;
+import org.odata4j.expression.NegateExpression;
+import org.odata4j.expression.NotExpression;
+import org.odata4j.expression.OrExpression;
+import org.odata4j.expression.ParenExpression;
+import org.odata4j.expression.ReplaceMethodCallExpression;
+import org.odata4j.expression.RoundMethodCallExpression;
+import org.odata4j.expression.SecondMethodCallExpression;
+import org.odata4j.expression.StartsWithMethodCallExpression;
+import org.odata4j.expression.SubExpression;
+import org.odata4j.expression.SubstringMethodCallExpression;
+import org.odata4j.expression.SubstringOfMethodCallExpression;
+import org.odata4j.expression.ToLowerMethodCallExpression;
+import org.odata4j.expression.ToUpperMethodCallExpression;
+import org.odata4j.expression.TrimMethodCallExpression;
+import org.odata4j.expression.YearMethodCallExpression;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Text;
+
+/**
+ * In-memory evaluation of the $filter conjuncts the datastore cannot answer,
+ * applied to the query results as they are streamed. The expression tree is
+ * compiled once into a tree of evaluators, literals are converted up front
+ * and every node dispatches straight to its operation, so a row costs the
+ * property lookups and the operations themselves.
+ */
+class EntityFilter {
+
+	private interface Evaluator {
+		Object evaluate(Entity entity);
+	}
+
+	private enum Arithmetic {
+		ADD, SUB, MUL, DIV, MOD
+	}
+
+	private enum Comparison {
+		EQ, NE, GT, GE, LT, LE
+	}
+
+	private enum DatePart {
+		YEAR, MONTH, DAY, HOUR, MINUTE, SECOND
+	}
+
+	/**
+	 * Iterator over the matching entities that stops after the page limit,
+	 * without reading ahead, or once the scan limit is reached or the time
+	 * budget is spent; a cursor taken from the source then points right behind
+	 * the last entity examined. The budget is checked between the entities
+	 * scanned, matching or not, so a filter matching few of them cannot keep
+	 * the request running past it. At least one entity is scanned, so the next
+	 * page makes progress, and $skip is scanned to the end, it does not carry
+	 * over to the next page.
+	 */
+	class Matches implements Iterator<Entity> {
+		private final Iterator<Entity> source;
+		private final int skip;
+		private final Integer limit;
+		private final Integer scanLimit;
+		private final Long deadlineNanos;
+		private final MetricsSink sink;
+		private Entity next;
+		private int skipped;
+		private int returned;
+		private int scanned;
+		private boolean truncated;
+
+		private Matches(Iterator<Entity> source, int skip, Integer limit, Integer scanLimit, Long deadlineNanos, MetricsSink sink) {
+			this.source = source;
+			this.skip = skip;
+			this.limit = limit;
+			this.scanLimit = scanLimit;
+			this.deadlineNanos = deadlineNanos;
+			this.sink = sink;
+		}
+
+		/**
+		 * Whether the scan limit or the time budget ended the iteration before
+		 * the source or the page limit did.
+		 */
+		boolean isTruncated() {
+			return truncated;
+		}
+
+		public boolean hasNext() {
+			if (next != null) {
+				return true;
+			}
+			if (truncated || (limit != null && returned >= limit)) {
+				return false;
+			}
+			// the limit is checked before the source reads ahead, so a position
+			// taken from it stays right behind the last entity scanned
+			while (true) {
+				if (scanLimit != null && scanned >= scanLimit) {
+					if (skipped < skip) {
+						throw new BadRequestException("$skip of a filter evaluated in memory exceeds the scan limit of " + scanLimit + " entities");
+					}
+					truncated = true;
+					return false;
+				}
+				if (deadlineNanos != null && scanned > 0 && skipped >= skip && System.nanoTime() - deadlineNanos >= 0) {
+					truncated = true;
+					RequestMetrics.recordTruncated(sink);
+					return false;
+				}
+				if (!source.hasNext()) {
+					return false;
+				}
+				Entity entity = source.next();
+				scanned++;
+				if (matches(entity)) {
+					if (skipped < skip) {
+						skipped++;
+					} else {
+						next = entity;
+						return true;
+					}
+				}
+			}
+		}
+
+		public Entity next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Entity entity = next;
+			next = null;
+			returned++;
+			return entity;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private final Evaluator[] conjuncts;
+
+	EntityFilter(List<BoolCommonExpression> conjuncts) {
+		this.conjuncts = new Evaluator[conjuncts.size()];
+		for (int i = 0; i < this.conjuncts.length; i++) {
+			this.conjuncts[i] = compile(conjuncts.get(i));
+		}
+	}
+
+	boolean matches(Entity entity) {
+		for (Evaluator conjunct : conjuncts) {
+			if (conjunct.evaluate(entity) != Boolean.TRUE) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	Matches apply(Iterator<Entity> source, int skip, Integer limit, Integer scanLimit) {
+		return new Matches(source, skip, limit, scanLimit, null, null);
+	}
+
+	/**
+	 * Matches ending once System.nanoTime() passes deadlineNanos, recorded
+	 * with the sink as a truncated response.
+	 */
+	Matches apply(Iterator<Entity> source, int skip, Integer limit, Integer scanLimit, Long deadlineNanos, MetricsSink sink) {
+		return new Matches(source, skip, limit, scanLimit, deadlineNanos, sink);
+	}
+
+	private static Evaluator compile(CommonExpression e) {
+		if (e instanceof EntitySimpleProperty)
+			return property(((EntitySimpleProperty) e).getPropertyName());
+		if (e instanceof LiteralExpression)
+			return constant(FilterPlanner.literalValue((LiteralExpression) e));
+		if (e instanceof BoolParenExpression)
+			return compile(((BoolParenExpression) e).getExpression());
+		if (e instanceof ParenExpression)
+			return compile(((ParenExpression) e).getExpression());
+		if (e instanceof NotExpression)
+			return not(compile(((NotExpression) e).getExpression()));
+		if (e instanceof NegateExpression)
+			return negate(compile(((NegateExpression) e).getExpression()));
+
+		if (e instanceof AndExpression)
+			return and(compile(((AndExpression) e).getLHS()), compile(((AndExpression) e).getRHS()));
+		if (e instanceof OrExpression)
+			return or(compile(((OrExpression) e).getLHS()), compile(((OrExpression) e).getRHS()));
+
+		if (e instanceof EqExpression)
+			return comparison(Comparison.EQ, (BinaryCommonExpression) e);
+		if (e instanceof NeExpression)
+			return comparison(Comparison.NE, (BinaryCommonExpression) e);
+		if (e instanceof GtExpression)
+			return comparison(Comparison.GT, (BinaryCommonExpression) e);
+		if (e instanceof GeExpression)
+			return comparison(Comparison.GE, (BinaryCommonExpression) e);
+		if (e instanceof LtExpression)
+			return comparison(Comparison.LT, (BinaryCommonExpression) e);
+		if (e instanceof LeExpression)
+			return comparison(Comparison.LE, (BinaryCommonExpression) e);
+
+		if (e instanceof AddExpression)
+			return arithmetic(Arithmetic.ADD, (BinaryCommonExpression) e);
+		if (e instanceof SubExpression)
+			return arithmetic(Arithmetic.SUB, (BinaryCommonExpression) e);
+		if (e instanceof MulExpression)
+			return arithmetic(Arithmetic.MUL, (BinaryCommonExpression) e);
+		if (e instanceof DivExpression)
+			return arithmetic(Arithmetic.DIV, (BinaryCommonExpression) e);
+		if (e instanceof ModExpression)
+			return arithmetic(Arithmetic.MOD, (BinaryCommonExpression) e);
+
+		if (e instanceof StartsWithMethodCallExpression) {
+			StartsWithMethodCallExpression m = (StartsWithMethodCallExpression) e;
+			return startsWith(compile(m.getTarget()), compile(m.getValue()));
+		}
+		if (e instanceof EndsWithMethodCallExpression) {
+			EndsWithMethodCallExpression m = (EndsWithMethodCallExpression) e;
+			return endsWith(compile(m.getTarget()), compile(m.getValue()));
+		}
+		if (e instanceof SubstringOfMethodCallExpression) {
+			SubstringOfMethodCallExpression m = (SubstringOfMethodCallExpression) e;
+			return substringOf(compile(m.getTarget()), compile(m.getValue()));
+		}
+		if (e instanceof IndexOfMethodCallExpression) {
+			IndexOfMethodCallExpression m = (IndexOfMethodCallExpression) e;
+			return indexOf(compile(m.getTarget()), compile(m.getValue()));
+		}
+		if (e instanceof LengthMethodCallExpression)
+			return length(compile(((LengthMethodCallExpression) e).getTarget()));
+		if (e instanceof ToLowerMethodCallExpression)
+			return toLower(compile(((ToLowerMethodCallExpression) e).getTarget()));
+		if (e instanceof ToUpperMethodCallExpression)
+			return toUpper(compile(((ToUpperMethodCallExpression) e).getTarget()));
+		if (e instanceof TrimMethodCallExpression)
+			return trim(compile(((TrimMethodCallExpression) e).getTarget()));
+		if (e instanceof SubstringMethodCallExpression) {
+			SubstringMethodCallExpression m = (SubstringMethodCallExpression) e;
+			return substring(compile(m.getTarget()), compile(m.getStart()), m.getLength() != null ? compile(m.getLength()) : null);
+		}
+		if (e instanceof ConcatMethodCallExpression) {
+			ConcatMethodCallExpression m = (ConcatMethodCallExpression) e;
+			return concat(compile(m.getLHS()), compile(m.getRHS()));
+		}
+		if (e instanceof ReplaceMethodCallExpression) {
+			ReplaceMethodCallExpression m = (ReplaceMethodCallExpression) e;
+			return replace(compile(m.getTarget()), compile(m.getFind()), compile(m.getReplace()));
+		}
+
+		if (e instanceof YearMethodCallExpression)
+			return datePart(DatePart.YEAR, compile(((YearMethodCallExpression) e).getTarget()));
+		if (e instanceof MonthMethodCallExpression)
+			return datePart(DatePart.MONTH, compile(((MonthMethodCallExpression) e).getTarget()));
+		if (e instanceof DayMethodCallExpression)
+			return datePart(DatePart.DAY, compile(((DayMethodCallExpression) e).getTarget()));
+		if (e instanceof HourMethodCallExpression)
+			return datePart(DatePart.HOUR, compile(((HourMethodCallExpression) e).getTarget()));
+		if (e instanceof MinuteMethodCallExpression)
+			return datePart(DatePart.MINUTE, compile(((MinuteMethodCallExpression) e).getTarget()));
+		if (e instanceof SecondMethodCallExpression)
+			return datePart(DatePart.SECOND, compile(((SecondMethodCallExpression) e).getTarget()));
+
+		if (e instanceof RoundMethodCallExpression)
+			return round(compile(((RoundMethodCallExpression) e).getTarget()));
+		if (e instanceof FloorMethodCallExpression)
+			return floor(compile(((FloorMethodCallExpression) e).getTarget()));
+		if (e instanceof CeilingMethodCallExpression)
+			return ceiling(compile(((CeilingMethodCallExpression) e).getTarget()));
+
+		throw new NotImplementedException("Filter expression not supported: " + e.getClass().getSimpleName());
+	}
+
+	private static Evaluator constant(Object value) {
+		final Object constant = value instanceof BigDecimal ? ((BigDecimal) value).doubleValue() : value;
+		return new Evaluator() {
+			public Object evaluate(Entity entity) {
+				return constant;
+			}
+		};
+	}
+
+	private static Evaluator property(String propName) {
+		// navigation properties are only filtered by key
+		int slash = propName.indexOf('/');
+		if (slash >= 0) {
+			final String navPropName = propName.substring(0, slash);
+			return new Evaluator() {
+				public Object evaluate(Entity entity) {
+					Object value = entity.getProperty(navPropName);
+					if (value instanceof Collection) {
+						List<Long> ids = new ArrayList<Long>();
+						for (Object key : (Collection<?>) value) {
+							if (key instanceof Key)
+								ids.add(((Key) key).getId());
+						}
+						return ids;
+					}
+					return value instanceof Key ? ((Key) value).getId() : null;
+				}
+			};
+		}
+		final String name = propName;
+		return new Evaluator() {
+			public Object evaluate(Entity entity) {
+				Object value = entity.getProperty(name);
+				return value instanceof Text ? ((Text) value).getValue() : value;
+			}
+		};
+	}
+
+	private static Evaluator not(final Evaluator operand) {
+		return new Evaluator() {
+			public Object evaluate(Entity entity) {
+				Object value = operand.evaluate(entity);
+				return value instanceof Boolean ? !(Boolean) value : null;
+			}
+		};
+	}
+
+	private static Evaluator and(final Evaluator lhs, final Evaluator rhs) {
+		return new Evaluator() {
+			public Object evaluate(Entity entity) {
+				return lhs.evaluate(entity) == Boolean.TRUE && rhs.evaluate(entity) == Boolean.TRUE;
+			}
+		};
+	}
+
+	private static Evaluator or(final Evaluator lhs, final Evaluator rhs) {
+		return new Evaluator() {
+			public Object evaluate(Entity entity) {
+				return lhs.evaluate(entity) == Boolean.TRUE || rhs.evaluate(entity) == Boolean.TRUE;
+			}
+		};
+	}
+
+	private static Evaluator comparison(final Comparison op, BinaryCommonExpression e) {
+		final Evaluator lhs = compile(e.getLHS());
+		final Evaluator rhs = compile(e.getRHS());
+		return new Evaluator() {
+			public Object evaluate(Entity entity) {
+				Object l = lhs.evaluate(entity);
+				Object r = rhs.evaluate(entity);
+				// a multi-valued property matches when one of its values does, as in the datastore
+				if (l instanceof Collection) {
+					for (Object value : (Collection<?>) l) {
+						if (compare(op, value, r))
+							return true;
+					}
+					return false;
+				}
+				if (r instanceof Collection) {
+					for (Object value : (Collection<?>) r) {
+						if (compare(op, l, value))
+							return true;
+					}
+					return false;
+				}
+				return compare(op, l, r);
+			}
+		};
+	}
+
+	private static boolean compare(Comparison op, Object l, Object r) {
+		switch (op) {
+		case EQ:
+			return equal(l, r);
+		case NE:
+			return !equal(l, r);
+		default:
+			Integer c = compare(l, r);
+			if (c == null)
+				return false;
+			if (op == Comparison.GT)
+				return c > 0;
+			if (op == Comparison.GE)
+				return c >= 0;
+			if (op == Comparison.LT)
+				return c < 0;
+			return c <= 0;
+		}
+	}
+
+	private static Evaluator arithmetic(final Arithmetic op, BinaryCommonExpression e) {
+		final Evaluator lhs = compile(e.getLHS());
+		final Evaluator rhs = compile(e.getRHS());
+		return new Evaluator() {
+			public Object evaluate(Entity entity) {
+				Object l = lhs.evaluate(entity);
+				Object r = rhs.evaluate(entity);
+				if (!(l instanceof Number) || !(r instanceof Number))
+					return null;
+				if (isIntegral((Number) l) && isIntegral((Number) r)) {
+					long a = ((Number) l).longValue();
+					long b = ((Number) r).longValue();
+					switch (op) {
+					case ADD:
+						return a + b;
+					case SUB:
+						return a - b;
+					case MUL:
+						return a * b;
+					case DIV:
+						return b != 0 ? a / b : null;
+					default:
+						return b != 0 ? a % b : null;
+					}
+				}
+				double a = ((Number) l).doubleValue();
+				double b = ((Number) r).doubleValue();
+				switch (op) {
+				case ADD:
+					return a + b;
+				case SUB:
+					return a - b;
+				case MUL:
+					return a * b;
+				case DIV:
+					return a / b;
+				default:
+					return a % b;
+				}
+			}
+		};
+	}
+
+	private static Evaluator negate(final Evaluator operand) {
+		return new Evaluator() {
+			public Object evaluate(Entity entity) {
+				Object value = operand.evaluate(entity);
+				if (!(value instanceof Number))
+					return null;
+				return isIntegral((Number) value) ? (Object) (-((Number) value).longValue()) : (Object) (-((Number) value).doubleValue());
+			}
+		};
+	}
+
+	private static Evaluator startsWith(final Evaluator target, final Evaluator value) {
+		return new Evaluator() {
+			public Object evaluate(Entity entity) {
+				Object t = target.evaluate(entity);
+				Object v = value.evaluate(entity);
+				return t instanceof String && v instanceof String && ((String) t).startsWith((String) v);
+			}
+		};
+	}
+
+	private static Evaluator endsWith(final Evaluator target, final Evaluator value) {
+		return new Evaluator() {
+			public Object evaluate(Entity entity) {
+				Object t = target.evaluate(entity);
+				Object v = value.evaluate(entity);
+				return t instanceof String && v instanceof String && ((String) t).endsWith((String) v);
+			}
+		};
+	}
+
+	private static Evaluator substringOf(final Evaluator target, final Evaluator value) {
+		return new Evaluator() {
+			public Object evaluate(Entity entity) {
+				Object t = target.evaluate(entity);
+				Object v = value.evaluate(entity);
+				return t instanceof String && v instanceof String && ((String) t).contains((String) v);
+			}
+		};
+	}
+
+	private static Evaluator indexOf(final Evaluator target, final Evaluator value) {
+		return new Evaluator() {
+			public Object evaluate(Entity entity) {
+				Object t = target.evaluate(entity);
+				Object v = value.evaluate(entity);
+				return t instanceof String && v instanceof String ? (Object) ((String) t).indexOf((String) v) : null;
+			}
+		};
+	}
+
+	private static Evaluator length(final Evaluator target) {
+		return new Evaluator() {
+			public Object evaluate(Entity entity) {
+				Object t = target.evaluate(entity);
+				return t instanceof String ? (Object) ((String) t).length() : null;
+			}
+		};
+	}
+
+	private static Evaluator toLower(final Evaluator target) {
+		return new Evaluator() {
+			public Object evaluate(Entity entity) {
+				Object t = target.evaluate(entity);
+				return t instanceof String ? ((String) t).toLowerCase() : null;
+			}
+		};
+	}
+
+	private static Evaluator toUpper(final Evaluator target) {
+		return new Evaluator() {
+			public Object evaluate(Entity entity) {
+				Object t = target.evaluate(entity);
+				return t instanceof String ? ((String) t).toUpperCase() : null;
+			}
+		};
+	}
+
+	private static Evaluator trim(final Evaluator target) {
+		return new Evaluator() {
+			public Object evaluate(Entity entity) {
+				Object t = target.evaluate(entity);
+				return t instanceof String ? ((String) t).trim() : null;
+			}
+		};
+	}
+
+	private static Evaluator substring(final Evaluator target, final Evaluator start, final Evaluator length) {
+		return new Evaluator() {
+			public Object evaluate(Entity entity) {
+				Object t = target.evaluate(entity);
+				Object s = start.evaluate(entity);
+				Object l = length != null ? length.evaluate(entity) : null;
+				if (!(t instanceof String) || !(s instanceof Number) || (length != null && !(l instanceof Number)))
+					return null;
+				String str = (String) t;
+				int begin = Math.min(Math.max(((Number) s).intValue(), 0), str.length());
+				int end = l != null ? Math.min(begin + Math.max(((Number) l).intValue(), 0), str.length()) : str.length();
+				return str.substring(begin, end);
+			}
+		};
+	}
+
+	private static Evaluator concat(final Evaluator lhs, final Evaluator rhs) {
+		return new Evaluator() {
+			public Object evaluate(Entity entity) {
+				Object l = lhs.evaluate(entity);
+				Object r = rhs.evaluate(entity);
+				return l != null && r != null ? l.toString() + r.toString() : null;
+			}
+		};
+	}
+
+	private static Evaluator replace(final Evaluator target, final Evaluator find, final Evaluator replacement) {
+		return new Evaluator() {
+			public Object evaluate(Entity entity) {
+				Object t = target.evaluate(entity);
+				Object f = find.evaluate(entity);
+				Object r = replacement.evaluate(entity);
+				return t instanceof String && f instanceof String && r instanceof String ? ((String) t).replace((String) f, (String) r) : null;
+			}
+		};
+	}
+
+	private static Evaluator datePart(final DatePart part, final Evaluator target) {
+		return new Evaluator() {
+			public Object evaluate(Entity entity) {
+				Object t = target.evaluate(entity);
+				if (!(t instanceof Date))
+					return null;
+				LocalDateTime date = new LocalDateTime(t);
+				switch (part) {
+				case YEAR:
+					return date.getYear();
+				case MONTH:
+					return date.getMonthOfYear();
+				case DAY:
+					return date.getDayOfMonth();
+				case HOUR:
+					return date.getHourOfDay();
+				case MINUTE:
+					return date.getMinuteOfHour();
+				default:
+					return date.getSecondOfMinute();
+				}
+			}
+		};
+	}
+
+	private static Evaluator round(final Evaluator target) {
+		return new Evaluator() {
+			public Object evaluate(Entity entity) {
+				Object t = target.evaluate(entity);
+				if (!(t instanceof Number))
+					return null;
+				return isIntegral((Number) t) ? t : (Object) (double) Math.round(((Number) t).doubleValue());
+			}
+		};
+	}
+
+	private static Evaluator floor(final Evaluator target) {
+		return new Evaluator() {
+			public Object evaluate(Entity entity) {
+				Object t = target.evaluate(entity);
+				if (!(t instanceof Number))
+					return null;
+				return isIntegral((Number) t) ? t : (Object) Math.floor(((Number) t).doubleValue());
+			}
+		};
+	}
+
+	private static Evaluator ceiling(final Evaluator target) {
+		return new Evaluator() {
+			public Object evaluate(Entity entity) {
+				Object t = target.evaluate(entity);
+				if (!(t instanceof Number))
+					return null;
+				return isIntegral((Number) t) ? t : (Object) Math.ceil(((Number) t).doubleValue());
+			}
+		};
+	}
+
+	private static boolean equal(Object lhs, Object rhs) {
+		if (lhs == null || rhs == null)
+			return lhs == rhs;
+		Integer c = compare(lhs, rhs);
+		return c != null ? c == 0 : lhs.equals(rhs);
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static Integer compare(Object lhs, Object rhs) {
+		if (lhs == null || rhs == null)
+			return null;
+		if (lhs instanceof Number && rhs instanceof Number) {
+			Number l = (Number) lhs;
+			Number r = (Number) rhs;
+			if (isIntegral(l) && isIntegral(r))
+				return Long.valueOf(l.longValue()).compareTo(r.longValue());
+			return Double.compare(l.doubleValue(), r.doubleValue());
+		}
+		if ((lhs instanceof String && rhs instanceof String) || (lhs instanceof Date && rhs instanceof Date) || (lhs instanceof Boolean && rhs instanceof Boolean))
+			return ((Comparable) lhs).compareTo(rhs);
+		return null;
+	}
+
+	private static boolean isIntegral(Number n) {
+		return n instanceof Long || n instanceof Integer || n instanceof Short || n instanceof Byte;
+	}
+}
@@ -0,0 +1,63 @@
+package org.odata.appengine;
+
+import java.util.Comparator;
+import java.util.List;
+
+import org.odata4j.exceptions.NotImplementedException;
+import org.odata4j.expression.EntitySimpleProperty;
+import org.odata4j.expression.OrderByExpression;
+import org.odata4j.expression.OrderByExpression.Direction;
+
+import com.google.appengine.api.datastore.Entity;
+
+/**
+ * In-memory $orderby for entities the datastore does not sort, e.g. the
+ * targets of a navigation property. Missing values sort first, numbers
+ * compare by value whatever their type, and ties are broken by key so that
+ * pages cut from the order are stable.
+ */
+class EntityOrdering implements Comparator<Entity> {
+
+	private final String[] propNames;
+	private final boolean[] descending;
+
+	EntityOrdering(List<OrderByExpression> orderBy) {
+		propNames = new String[orderBy.size()];
+		descending = new boolean[orderBy.size()];
+		for (int i = 0; i < propNames.length; i++) {
+			OrderByExpression ob = orderBy.get(i);
+			if (!(ob.getExpression() instanceof EntitySimpleProperty)) {
+				throw new NotImplementedException("Appengine only supports simple property expressions");
+			}
+			propNames[i] = ((EntitySimpleProperty) ob.getExpression()).getPropertyName();
+			descending[i] = ob.getDirection() == Direction.DESCENDING;
+		}
+	}
+
+	public int compare(Entity lhs, Entity rhs) {
+		for (int i = 0; i < propNames.length; i++) {
+			int c = compareValues(lhs.getProperty(propNames[i]), rhs.getProperty(propNames[i]));
+			if (c != 0) {
+				return descending[i] ? -c : c;
+			}
+		}
+		return lhs.getKey().compareTo(rhs.getKey());
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static int compareValues(Object lhs, Object rhs) {
+		if (lhs == null || rhs == null) {
+			return lhs == null ? (rhs == null ? 0 : -1) : 1;
+		}
+		if (lhs instanceof Number && rhs instanceof Number) {
+			if (lhs instanceof Long && rhs instanceof Long) {
+				return ((Long) lhs).compareTo((Long) rhs);
+			}
+			return Double.compare(((Number) lhs).doubleValue(), ((Number) rhs).doubleValue());
+		}
+		if (lhs.getClass() == rhs.getClass() && lhs instanceof Comparable) {
+			return ((Comparable) lhs).compareTo(rhs);
+		}
+		return lhs.getClass().getName().compareTo(rhs.getClass().getName());
+	}
+}
@@ -0,0 +1,260 @@
+package org.odata.appengine;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.LocalDateTime;
+import org.odata4j.core.UnsignedByte;
+import org.odata4j.edm.EdmEntitySet;
+import org.odata4j.edm.EdmEntityType;
+import org.odata4j.edm.EdmMultiplicity;
+import org.odata4j.edm.EdmNavigationProperty;
+import org.odata4j.edm.EdmProperty;
+import org.odata4j.edm.EdmSimpleType;
+import org.odata4j.edm.EdmType;
+import org.odata4j.exceptions.NotImplementedException;
+
+import com.google.appengine.api.datastore.DataTypeUtils;
+import com.google.appengine.api.datastore.ShortBlob;
+import com.google.appengine.api.datastore.Text;
+
+/**
+ * Conversion plan of an entity set, built once from the metadata: one slot per
+ * simple property with its read and write converters and datastore
+ * projection type resolved, and one slot per navigation property, so
+ * converting an entity is a pass over the slots without metadata lookups or
+ * type dispatch.
+ */
+class EntityTypePlan {
+
+	interface Converter {
+		Object convert(Object value);
+	}
+
+	static class PropertySlot {
+		final String name;
+		final EdmSimpleType<?> type;
+		final Converter read;
+		final Converter write;
+		final Class<?> projectionType;
+
+		private PropertySlot(String name, EdmSimpleType<?> type) {
+			this.name = name;
+			this.type = type;
+			this.read = READ_CONVERTERS.containsKey(type) ? READ_CONVERTERS.get(type) : IDENTITY;
+			this.write = writeConverter(type);
+			this.projectionType = PROJECTION_TYPES.get(type);
+		}
+	}
+
+	static class NavigationSlot {
+		final String name;
+		final EdmNavigationProperty navProp;
+		final String relationshipName;
+		final String targetSetName;
+		final EdmMultiplicity multiplicity;
+		final String storage;
+		final String foreignKey;
+
+		private NavigationSlot(EdmEntitySet ees, EdmNavigationProperty navProp, ProducerSettings settings) {
+			this.name = navProp.getName();
+			this.navProp = navProp;
+			this.relationshipName = navProp.getRelationship().getName();
+			this.targetSetName = navProp.getToRole().getRole();
+			this.multiplicity = navProp.getRelationship().getEnd2().getMultiplicity();
+			this.storage = settings.getRelationshipStorage(ees.getName(), name, multiplicity == EdmMultiplicity.MANY);
+			if (!storage.equals(ProducerSettings.KEY_LIST) && !storage.equals(ProducerSettings.FOREIGN_KEY) && !storage.equals(ProducerSettings.LINK_ENTITIES)) {
+				throw new IllegalArgumentException("Property odata.appengine." + ProducerSettings.RELATIONSHIP_STORAGE + "." + ees.getName() + "." + name + " is not a relationship storage: " + storage);
+			}
+			if (!storage.equals(ProducerSettings.KEY_LIST) && multiplicity != EdmMultiplicity.MANY) {
+				throw new IllegalArgumentException("Property odata.appengine." + ProducerSettings.RELATIONSHIP_STORAGE + "." + ees.getName() + "." + name + " only applies to MANY navigation properties");
+			}
+			this.foreignKey = storage.equals(ProducerSettings.FOREIGN_KEY) ? foreignKey(navProp) : null;
+		}
+
+		/**
+		 * Whether the targets are found with a query rather than read from a
+		 * key list on the source entity.
+		 */
+		boolean isQueried() {
+			return !storage.equals(ProducerSettings.KEY_LIST);
+		}
+
+		// the inverse navigation property of the target when there is one, so both ends share the key
+		private static String foreignKey(EdmNavigationProperty navProp) {
+			for (EdmNavigationProperty inverse : navProp.getToRole().getType().getNavigationProperties()) {
+				if (inverse.getRelationship().getName().equals(navProp.getRelationship().getName()) && inverse.getToRole().getRole().equals(navProp.getFromRole().getRole())
+						&& inverse.getToRole().getMultiplicity() != EdmMultiplicity.MANY) {
+					return inverse.getName();
+				}
+			}
+			return navProp.getRelationship().getName();
+		}
+	}
+
+	private static final Converter IDENTITY = new Converter() {
+		public Object convert(Object value) {
+			return value;
+		}
+	};
+
+	private static final Map<EdmType, Converter> READ_CONVERTERS = new HashMap<EdmType, Converter>();
+	private static final Map<EdmType, Converter> WRITE_CONVERTERS = new HashMap<EdmType, Converter>();
+	private static final Map<EdmType, Class<?>> PROJECTION_TYPES = new HashMap<EdmType, Class<?>>();
+	static {
+		// the datastore keeps every integer as long and every floating point number as double
+		READ_CONVERTERS.put(EdmSimpleType.BYTE, new Converter() {
+			public Object convert(Object value) {
+				return new UnsignedByte(((Number) value).intValue());
+			}
+		});
+		READ_CONVERTERS.put(EdmSimpleType.INT16, new Converter() {
+			public Object convert(Object value) {
+				return ((Number) value).shortValue();
+			}
+		});
+		READ_CONVERTERS.put(EdmSimpleType.INT32, new Converter() {
+			public Object convert(Object value) {
+				return ((Number) value).intValue();
+			}
+		});
+		READ_CONVERTERS.put(EdmSimpleType.SINGLE, new Converter() {
+			public Object convert(Object value) {
+				return ((Number) value).floatValue();
+			}
+		});
+		READ_CONVERTERS.put(EdmSimpleType.STRING, new Converter() {
+			public Object convert(Object value) {
+				return value instanceof Text ? ((Text) value).getValue() : value;
+			}
+		});
+		READ_CONVERTERS.put(EdmSimpleType.BINARY, new Converter() {
+			public Object convert(Object value) {
+				return value instanceof ShortBlob ? ((ShortBlob) value).getBytes() : value;
+			}
+		});
+
+		WRITE_CONVERTERS.put(EdmSimpleType.BOOLEAN, IDENTITY);
+		WRITE_CONVERTERS.put(EdmSimpleType.INT16, IDENTITY);
+		WRITE_CONVERTERS.put(EdmSimpleType.INT32, IDENTITY);
+		WRITE_CONVERTERS.put(EdmSimpleType.INT64, IDENTITY);
+		WRITE_CONVERTERS.put(EdmSimpleType.SINGLE, IDENTITY);
+		WRITE_CONVERTERS.put(EdmSimpleType.DOUBLE, IDENTITY);
+		WRITE_CONVERTERS.put(EdmSimpleType.BYTE, new Converter() {
+			public Object convert(Object value) {
+				return value != null ? (Object) ((Number) value).longValue() : null;
+			}
+		});
+		WRITE_CONVERTERS.put(EdmSimpleType.STRING, new Converter() {
+			public Object convert(Object value) {
+				String sValue = (String) value;
+				if (sValue != null && sValue.length() > DataTypeUtils.MAX_STRING_PROPERTY_LENGTH) {
+					return new Text(sValue);
+				}
+				return sValue;
+			}
+		});
+		WRITE_CONVERTERS.put(EdmSimpleType.BINARY, new Converter() {
+			public Object convert(Object value) {
+				byte[] bValue = (byte[]) value;
+				if (bValue == null) {
+					return null;
+				}
+				if (bValue.length > DataTypeUtils.MAX_SHORT_BLOB_PROPERTY_LENGTH) {
+					throw new RuntimeException("Bytes " + bValue.length + " exceeds the max supported length " + DataTypeUtils.MAX_SHORT_BLOB_PROPERTY_LENGTH);
+				}
+				return new ShortBlob(bValue);
+			}
+		});
+		WRITE_CONVERTERS.put(EdmSimpleType.DATETIME, new Converter() {
+			public Object convert(Object value) {
+				LocalDateTime dValue = (LocalDateTime) value;
+				return dValue != null ? dValue.toDateTime().toDate() : null; // TODO review
+			}
+		});
+
+		PROJECTION_TYPES.put(EdmSimpleType.BOOLEAN, Boolean.class);
+		PROJECTION_TYPES.put(EdmSimpleType.BYTE, Long.class);
+		PROJECTION_TYPES.put(EdmSimpleType.STRING, String.class);
+		PROJECTION_TYPES.put(EdmSimpleType.INT16, Long.class);
+		PROJECTION_TYPES.put(EdmSimpleType.INT32, Long.class);
+		PROJECTION_TYPES.put(EdmSimpleType.INT64, Long.class);
+		PROJECTION_TYPES.put(EdmSimpleType.SINGLE, Double.class);
+		PROJECTION_TYPES.put(EdmSimpleType.DOUBLE, Double.class);
+		PROJECTION_TYPES.put(EdmSimpleType.DATETIME, Date.class);
+	}
+
+	private final EdmEntitySet ees;
+	private final String keyName;
+	private final PropertySlot[] properties;
+	private final NavigationSlot[] navigations;
+	private final Map<String, PropertySlot> propertiesByName = new HashMap<String, PropertySlot>();
+	private final Map<String, NavigationSlot> navigationsByName = new HashMap<String, NavigationSlot>();
+
+	EntityTypePlan(EdmEntitySet ees, ProducerSettings settings) {
+		this.ees = ees;
+		EdmEntityType eet = ees.getType();
+		this.keyName = eet.getKeys().get(0);
+
+		List<PropertySlot> properties = new ArrayList<PropertySlot>();
+		for (EdmProperty prop : eet.getProperties()) {
+			if (!prop.getName().equals(keyName) && prop.getType() instanceof EdmSimpleType) {
+				PropertySlot slot = new PropertySlot(prop.getName(), (EdmSimpleType<?>) prop.getType());
+				properties.add(slot);
+				propertiesByName.put(slot.name, slot);
+			}
+		}
+		this.properties = properties.toArray(new PropertySlot[properties.size()]);
+
+		List<NavigationSlot> navigations = new ArrayList<NavigationSlot>();
+		for (EdmNavigationProperty navProp : eet.getNavigationProperties()) {
+			NavigationSlot slot = new NavigationSlot(ees, navProp, settings);
+			navigations.add(slot);
+			navigationsByName.put(slot.name, slot);
+		}
+		this.navigations = navigations.toArray(new NavigationSlot[navigations.size()]);
+	}
+
+	EdmEntitySet getEntitySet() {
+		return ees;
+	}
+
+	String getKeyName() {
+		return keyName;
+	}
+
+	PropertySlot[] getProperties() {
+		return properties;
+	}
+
+	NavigationSlot[] getNavigations() {
+		return navigations;
+	}
+
+	PropertySlot getProperty(String name) {
+		return propertiesByName.get(name);
+	}
+
+	NavigationSlot getNavigation(String name) {
+		return navigationsByName.get(name);
+	}
+
+	/**
+	 * Write converter for a property value of the given type, also used for
+	 * properties the metadata does not declare.
+	 */
+	static Converter writeConverter(final EdmType type) {
+		Converter converter = WRITE_CONVERTERS.get(type);
+		if (converter == null) {
+			return new Converter() {
+				public Object convert(Object value) {
+					throw new NotImplementedException("EdmType not supported: " + type);
+				}
+			};
+		}
+		return converter;
+	}
+}
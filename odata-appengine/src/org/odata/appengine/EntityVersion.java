@@ -0,0 +1,54 @@
+package org.odata.appengine;
+
+import com.google.appengine.api.datastore.Entity;
+
+/**
+ * Version counter the producer keeps on every entity it writes, in the
+ * unindexed property _version, and its ETag. Entities written before the
+ * producer kept versions, or by other code, are at version 0 until the
+ * producer writes them.
+ */
+class EntityVersion {
+
+	static final String PROPERTY = "_version";
+
+	private static final String ANY = "*";
+	private static final String WEAK_PREFIX = "W/";
+
+	static long get(Entity entity) {
+		Object version = entity.getProperty(PROPERTY);
+		return version instanceof Long ? (Long) version : 0;
+	}
+
+	static void increment(Entity entity) {
+		entity.setUnindexedProperty(PROPERTY, get(entity) + 1);
+	}
+
+	static String etag(Entity entity) {
+		return "\"" + get(entity) + "\"";
+	}
+
+	/**
+	 * Whether an If-Match or If-None-Match header lists the ETag. The weak
+	 * comparison of If-None-Match ignores the W/ prefix, the strong one of
+	 * If-Match never matches weak tags.
+	 */
+	static boolean matches(String header, String etag, boolean weak) {
+		for (String tag : header.split(",")) {
+			tag = tag.trim();
+			if (tag.equals(ANY)) {
+				return true;
+			}
+			if (tag.startsWith(WEAK_PREFIX)) {
+				if (!weak) {
+					continue;
+				}
+				tag = tag.substring(WEAK_PREFIX.length());
+			}
+			if (tag.equals(etag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,282 @@
+package org.odata.appengine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.joda.time.LocalDateTime;
+import org.odata4j.edm.EdmEntitySet;
+import org.odata4j.edm.EdmNavigationProperty;
+import org.odata4j.expression.AndExpression;
+import org.odata4j.expression.BinaryCommonExpression;
+import org.odata4j.expression.BoolCommonExpression;
+import org.odata4j.expression.BoolParenExpression;
+import org.odata4j.expression.CommonExpression;
+import org.odata4j.expression.EntitySimpleProperty;
+import org.odata4j.expression.EqExpression;
+import org.odata4j.expression.Expression;
+import org.odata4j.expression.GeExpression;
+import org.odata4j.expression.GtExpression;
+import org.odata4j.expression.LeExpression;
+import org.odata4j.expression.LiteralExpression;
+import org.odata4j.expression.LtExpression;
+import org.odata4j.expression.NeExpression;
+import org.odata4j.expression.OrExpression;
+import org.odata4j.expression.OrderByExpression;
+import org.odata4j.expression.StartsWithMethodCallExpression;
+
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query.CompositeFilter;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+
+/**
+ * Splits a $filter into the part the datastore can answer and a residual part
+ * evaluated in memory. The top level conjuncts are pushed down as one
+ * CompositeFilter as long as they only compare simple properties with
+ * literals, OR chains of equalities on one property become IN, startswith
+ * becomes a range on the property, and all pushed inequalities have to be on a
+ * single property which, when $orderby is given, must be the first sort
+ * property. Everything else ends up in the residual.
+ */
+class FilterPlanner {
+
+	static class Plan {
+		private final Filter filter;
+		private final EntityFilter residual;
+
+		private Plan(Filter filter, EntityFilter residual) {
+			this.filter = filter;
+			this.residual = residual;
+		}
+
+		/**
+		 * The datastore filter, null when nothing can be pushed down.
+		 */
+		Filter getFilter() {
+			return filter;
+		}
+
+		/**
+		 * Predicate the datastore results still have to pass, null when the
+		 * whole $filter was pushed down.
+		 */
+		EntityFilter getResidual() {
+			return residual;
+		}
+	}
+
+	private static class Pushdown {
+		private final Filter filter;
+		private final Set<String> inequalityProperties;
+		private final boolean multiQuery;
+
+		private Pushdown(Filter filter, Set<String> inequalityProperties, boolean multiQuery) {
+			this.filter = filter;
+			this.inequalityProperties = inequalityProperties;
+			this.multiQuery = multiQuery;
+		}
+	}
+
+	private static final Plan NO_FILTER = new Plan(null, null);
+
+	/**
+	 * OR, IN and != run as several datastore queries merged in memory, which
+	 * cannot hand out cursors; pass cursors to keep them in the residual.
+	 */
+	Plan plan(EdmEntitySet ees, BoolCommonExpression filter, List<OrderByExpression> orderBy, boolean cursors) {
+		if (filter == null) {
+			return NO_FILTER;
+		}
+
+		List<BoolCommonExpression> conjuncts = new ArrayList<BoolCommonExpression>();
+		collectConjuncts(filter, conjuncts);
+		List<Pushdown> pushdowns = new ArrayList<Pushdown>(conjuncts.size());
+		for (BoolCommonExpression conjunct : conjuncts) {
+			pushdowns.add(pushdown(ees, conjunct));
+		}
+
+		// the datastore allows inequalities on one property only, and it has to be sorted on first
+		String inequalityProperty = null;
+		if (orderBy != null && orderBy.size() > 0) {
+			CommonExpression sort = orderBy.get(0).getExpression();
+			inequalityProperty = sort instanceof EntitySimpleProperty ? ((EntitySimpleProperty) sort).getPropertyName() : "";
+		} else {
+			for (Pushdown pushdown : pushdowns) {
+				if (pushdown != null && !(cursors && pushdown.multiQuery) && pushdown.inequalityProperties.size() == 1) {
+					inequalityProperty = pushdown.inequalityProperties.iterator().next();
+					break;
+				}
+			}
+		}
+
+		List<Filter> filters = new ArrayList<Filter>();
+		List<BoolCommonExpression> residual = new ArrayList<BoolCommonExpression>();
+		for (int i = 0; i < conjuncts.size(); i++) {
+			Pushdown pushdown = pushdowns.get(i);
+			if (pushdown != null && !(cursors && pushdown.multiQuery) && (pushdown.inequalityProperties.size() == 0 || pushdown.inequalityProperties.equals(Collections.singleton(inequalityProperty)))) {
+				filters.add(pushdown.filter);
+			} else {
+				residual.add(conjuncts.get(i));
+			}
+		}
+
+		Filter datastoreFilter = filters.size() == 0 ? null : filters.size() == 1 ? filters.get(0) : CompositeFilterOperator.and(filters);
+		return new Plan(datastoreFilter, residual.size() > 0 ? new EntityFilter(residual) : null);
+	}
+
+	private static void collectConjuncts(BoolCommonExpression filter, List<BoolCommonExpression> conjuncts) {
+		filter = unwrap(filter);
+		if (filter instanceof AndExpression) {
+			AndExpression and = (AndExpression) filter;
+			collectConjuncts(and.getLHS(), conjuncts);
+			collectConjuncts(and.getRHS(), conjuncts);
+		} else {
+			conjuncts.add(filter);
+		}
+	}
+
+	private static BoolCommonExpression unwrap(BoolCommonExpression filter) {
+		while (filter instanceof BoolParenExpression) {
+			filter = (BoolCommonExpression) ((BoolParenExpression) filter).getExpression();
+		}
+		return filter;
+	}
+
+	private Pushdown pushdown(EdmEntitySet ees, BoolCommonExpression filter) {
+		filter = unwrap(filter);
+		if (filter instanceof EqExpression)
+			return pushdown(ees, (BinaryCommonExpression) filter, FilterOperator.EQUAL, FilterOperator.EQUAL);
+		if (filter instanceof NeExpression)
+			return pushdown(ees, (BinaryCommonExpression) filter, FilterOperator.NOT_EQUAL, FilterOperator.NOT_EQUAL);
+		if (filter instanceof GtExpression)
+			return pushdown(ees, (BinaryCommonExpression) filter, FilterOperator.GREATER_THAN, FilterOperator.LESS_THAN);
+		if (filter instanceof GeExpression)
+			return pushdown(ees, (BinaryCommonExpression) filter, FilterOperator.GREATER_THAN_OR_EQUAL, FilterOperator.LESS_THAN_OR_EQUAL);
+		if (filter instanceof LtExpression)
+			return pushdown(ees, (BinaryCommonExpression) filter, FilterOperator.LESS_THAN, FilterOperator.GREATER_THAN);
+		if (filter instanceof LeExpression)
+			return pushdown(ees, (BinaryCommonExpression) filter, FilterOperator.LESS_THAN_OR_EQUAL, FilterOperator.GREATER_THAN_OR_EQUAL);
+		if (filter instanceof AndExpression || filter instanceof OrExpression)
+			return pushdownComposite(ees, (BinaryCommonExpression) filter);
+		if (filter instanceof StartsWithMethodCallExpression)
+			return pushdownStartsWith((StartsWithMethodCallExpression) filter);
+		return null;
+	}
+
+	/**
+	 * startswith(Name,'ab') is the index range 'ab' &lt;= Name &lt; 'ac'.
+	 */
+	private Pushdown pushdownStartsWith(StartsWithMethodCallExpression e) {
+		if (!(e.getTarget() instanceof EntitySimpleProperty) || !(e.getValue() instanceof LiteralExpression)) {
+			return null;
+		}
+		String propName = ((EntitySimpleProperty) e.getTarget()).getPropertyName();
+		Object prefix = literalValue((LiteralExpression) e.getValue());
+		if (propName.contains("/") || !(prefix instanceof String) || ((String) prefix).length() == 0) {
+			return null;
+		}
+
+		String lower = (String) prefix;
+		char last = lower.charAt(lower.length() - 1);
+		if (last == Character.MAX_VALUE || Character.isHighSurrogate(last) || Character.isLowSurrogate(last)) {
+			return null;
+		}
+		String upper = lower.substring(0, lower.length() - 1) + (char) (last + 1);
+		Filter range = CompositeFilterOperator.and(new FilterPredicate(propName, FilterOperator.GREATER_THAN_OR_EQUAL, lower), new FilterPredicate(propName, FilterOperator.LESS_THAN, upper));
+		return new Pushdown(range, Collections.singleton(propName), false);
+	}
+
+	private Pushdown pushdownComposite(EdmEntitySet ees, BinaryCommonExpression filter) {
+		boolean or = filter instanceof OrExpression;
+		Pushdown lhs = pushdown(ees, (BoolCommonExpression) filter.getLHS());
+		Pushdown rhs = lhs != null ? pushdown(ees, (BoolCommonExpression) filter.getRHS()) : null;
+		if (rhs == null) {
+			return null;
+		}
+
+		Set<String> inequalityProperties = new HashSet<String>(lhs.inequalityProperties);
+		inequalityProperties.addAll(rhs.inequalityProperties);
+
+		// a chain of equalities on the same property is a single IN
+		if (or) {
+			List<Object> values = new ArrayList<Object>();
+			String propName = collectInValues(lhs.filter, null, values);
+			if (propName != null && collectInValues(rhs.filter, propName, values) != null) {
+				return new Pushdown(new FilterPredicate(propName, FilterOperator.IN, values), inequalityProperties, true);
+			}
+		}
+
+		List<Filter> subFilters = new ArrayList<Filter>();
+		for (Pushdown side : new Pushdown[] { lhs, rhs }) {
+			if (side.filter instanceof CompositeFilter && ((CompositeFilter) side.filter).getOperator() == (or ? CompositeFilterOperator.OR : CompositeFilterOperator.AND)) {
+				subFilters.addAll(((CompositeFilter) side.filter).getSubFilters());
+			} else {
+				subFilters.add(side.filter);
+			}
+		}
+		return new Pushdown(or ? CompositeFilterOperator.or(subFilters) : CompositeFilterOperator.and(subFilters), inequalityProperties, or || lhs.multiQuery || rhs.multiQuery);
+	}
+
+	private static String collectInValues(Filter filter, String propName, List<Object> values) {
+		if (!(filter instanceof FilterPredicate)) {
+			return null;
+		}
+		FilterPredicate predicate = (FilterPredicate) filter;
+		if (propName != null && !propName.equals(predicate.getPropertyName())) {
+			return null;
+		}
+		if (predicate.getOperator() == FilterOperator.EQUAL) {
+			values.add(predicate.getValue());
+		} else if (predicate.getOperator() == FilterOperator.IN) {
+			values.addAll((List<?>) predicate.getValue());
+		} else {
+			return null;
+		}
+		return predicate.getPropertyName();
+	}
+
+	private Pushdown pushdown(EdmEntitySet ees, BinaryCommonExpression e, FilterOperator op, FilterOperator reversedOp) {
+		EntitySimpleProperty property;
+		LiteralExpression literal;
+		if (e.getLHS() instanceof EntitySimpleProperty && e.getRHS() instanceof LiteralExpression) {
+			property = (EntitySimpleProperty) e.getLHS();
+			literal = (LiteralExpression) e.getRHS();
+		} else if (e.getLHS() instanceof LiteralExpression && e.getRHS() instanceof EntitySimpleProperty) {
+			property = (EntitySimpleProperty) e.getRHS();
+			literal = (LiteralExpression) e.getLHS();
+			op = reversedOp;
+		} else {
+			return null;
+		}
+
+		String propName = property.getPropertyName();
+		Object propValue = literalValue(literal);
+
+		// Support for filtering navigation properties by key
+		if (propName.contains("/")) {
+			propName = propName.substring(0, propName.indexOf("/"));
+			EdmNavigationProperty enp = ees.getType().findNavigationProperty(propName);
+			if (enp == null || propValue == null) {
+				return null;
+			}
+			long id = Long.parseLong(propValue.toString());
+			propValue = KeyFactory.createKey(enp.getToRole().getRole(), id);
+		}
+
+		Set<String> inequalityProperties = op == FilterOperator.EQUAL ? Collections.<String> emptySet() : Collections.singleton(propName);
+		return new Pushdown(new FilterPredicate(propName, op, propValue), inequalityProperties, op == FilterOperator.NOT_EQUAL);
+	}
+
+	static Object literalValue(LiteralExpression literal) {
+		Object value = Expression.literalValue(literal);
+		if (value instanceof LocalDateTime) {
+			value = ((LocalDateTime) value).toDateTime().toDate();
+		}
+		return value;
+	}
+}
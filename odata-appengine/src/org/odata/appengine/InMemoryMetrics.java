@@ -0,0 +1,169 @@
+package org.odata.appengine;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.ObjectName;
+
+/**
+ * Default MetricsSink, aggregating counts and latency histograms per
+ * operation, entity set and call or phase in memory. The default instance is
+ * registered as the MXBean org.odata.appengine:type=Metrics where the runtime
+ * allows it.
+ */
+public class InMemoryMetrics implements MetricsSink, InMemoryMetricsMXBean {
+
+	private static final Logger LOG = Logger.getLogger(InMemoryMetrics.class.getName());
+
+	private static final String OBJECT_NAME = "org.odata.appengine:type=Metrics";
+	private static final String TRUNCATED = "truncated";
+
+	private static InMemoryMetrics defaultMetrics;
+
+	private static class CallStats {
+		private final LatencyHistogram latency = new LatencyHistogram();
+		private final AtomicLong entities = new AtomicLong();
+		private final AtomicLong failures = new AtomicLong();
+	}
+
+	private final ConcurrentMap<String, CallStats> calls = new ConcurrentHashMap<String, CallStats>();
+	private final ConcurrentMap<String, LatencyHistogram> phases = new ConcurrentHashMap<String, LatencyHistogram>();
+	private final ConcurrentMap<String, AtomicLong> truncations = new ConcurrentHashMap<String, AtomicLong>();
+
+	public static synchronized InMemoryMetrics getDefault() {
+		if (defaultMetrics == null) {
+			defaultMetrics = new InMemoryMetrics();
+			try {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(defaultMetrics, new ObjectName(OBJECT_NAME));
+			} catch (Exception e) {
+				LOG.log(Level.INFO, "Metrics not registered with JMX", e);
+			} catch (LinkageError e) {
+				// java.lang.management is not available on App Engine
+				LOG.log(Level.FINE, "Metrics not registered with JMX", e);
+			}
+		}
+		return defaultMetrics;
+	}
+
+	public void recordCall(String operation, String entitySetName, String call, long nanos, int entities, boolean failed) {
+		String key = key(operation, entitySetName, call);
+		CallStats stats = calls.get(key);
+		if (stats == null) {
+			calls.putIfAbsent(key, new CallStats());
+			stats = calls.get(key);
+		}
+		stats.latency.record(nanos);
+		stats.entities.addAndGet(entities);
+		if (failed) {
+			stats.failures.incrementAndGet();
+		}
+	}
+
+	public void recordPhase(String operation, String entitySetName, String phase, long nanos) {
+		String key = key(operation, entitySetName, phase);
+		LatencyHistogram latency = phases.get(key);
+		if (latency == null) {
+			phases.putIfAbsent(key, new LatencyHistogram());
+			latency = phases.get(key);
+		}
+		latency.record(nanos);
+	}
+
+	public void recordTruncated(String operation, String entitySetName) {
+		String key = key(operation, entitySetName, TRUNCATED);
+		AtomicLong count = truncations.get(key);
+		if (count == null) {
+			truncations.putIfAbsent(key, new AtomicLong());
+			count = truncations.get(key);
+		}
+		count.incrementAndGet();
+	}
+
+	public Map<String, Long> getCallCounts() {
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for (Map.Entry<String, CallStats> entry : calls.entrySet()) {
+			counts.put(entry.getKey(), entry.getValue().latency.getCount());
+		}
+		return counts;
+	}
+
+	public Map<String, Long> getCallFailures() {
+		Map<String, Long> failures = new TreeMap<String, Long>();
+		for (Map.Entry<String, CallStats> entry : calls.entrySet()) {
+			failures.put(entry.getKey(), entry.getValue().failures.get());
+		}
+		return failures;
+	}
+
+	public Map<String, Long> getCallEntities() {
+		Map<String, Long> entities = new TreeMap<String, Long>();
+		for (Map.Entry<String, CallStats> entry : calls.entrySet()) {
+			entities.put(entry.getKey(), entry.getValue().entities.get());
+		}
+		return entities;
+	}
+
+	public Map<String, Double> getCallMeanMillis() {
+		Map<String, Double> means = new TreeMap<String, Double>();
+		for (Map.Entry<String, CallStats> entry : calls.entrySet()) {
+			means.put(entry.getKey(), entry.getValue().latency.getMeanMillis());
+		}
+		return means;
+	}
+
+	public Map<String, Double> getCallP99Millis() {
+		Map<String, Double> percentiles = new TreeMap<String, Double>();
+		for (Map.Entry<String, CallStats> entry : calls.entrySet()) {
+			percentiles.put(entry.getKey(), entry.getValue().latency.getPercentileMillis(99));
+		}
+		return percentiles;
+	}
+
+	public Map<String, Long> getPhaseCounts() {
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for (Map.Entry<String, LatencyHistogram> entry : phases.entrySet()) {
+			counts.put(entry.getKey(), entry.getValue().getCount());
+		}
+		return counts;
+	}
+
+	public Map<String, Double> getPhaseMeanMillis() {
+		Map<String, Double> means = new TreeMap<String, Double>();
+		for (Map.Entry<String, LatencyHistogram> entry : phases.entrySet()) {
+			means.put(entry.getKey(), entry.getValue().getMeanMillis());
+		}
+		return means;
+	}
+
+	public Map<String, Double> getPhaseP99Millis() {
+		Map<String, Double> percentiles = new TreeMap<String, Double>();
+		for (Map.Entry<String, LatencyHistogram> entry : phases.entrySet()) {
+			percentiles.put(entry.getKey(), entry.getValue().getPercentileMillis(99));
+		}
+		return percentiles;
+	}
+
+	public Map<String, Long> getTruncatedCounts() {
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : truncations.entrySet()) {
+			counts.put(entry.getKey(), entry.getValue().get());
+		}
+		return counts;
+	}
+
+	public void reset() {
+		calls.clear();
+		phases.clear();
+		truncations.clear();
+	}
+
+	private static String key(String operation, String entitySetName, String name) {
+		return (operation != null ? operation : "-") + " " + (entitySetName != null ? entitySetName : "-") + " " + name;
+	}
+}
@@ -0,0 +1,32 @@
+package org.odata.appengine;
+
+import java.util.Map;
+
+/**
+ * JMX view of InMemoryMetrics. Keys are "operation entitySet call" for the
+ * datastore calls, "operation entitySet phase" for the request phases and
+ * "operation entitySet truncated" for the responses cut short by their time
+ * budget.
+ */
+public interface InMemoryMetricsMXBean {
+
+	Map<String, Long> getCallCounts();
+
+	Map<String, Long> getCallFailures();
+
+	Map<String, Long> getCallEntities();
+
+	Map<String, Double> getCallMeanMillis();
+
+	Map<String, Double> getCallP99Millis();
+
+	Map<String, Long> getPhaseCounts();
+
+	Map<String, Double> getPhaseMeanMillis();
+
+	Map<String, Double> getPhaseP99Millis();
+
+	Map<String, Long> getTruncatedCounts();
+
+	void reset();
+}
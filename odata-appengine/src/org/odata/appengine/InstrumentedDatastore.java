@@ -0,0 +1,393 @@
+package org.odata.appengine;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreAttributes;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Index;
+import com.google.appengine.api.datastore.Index.IndexState;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyRange;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultIterable;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+
+/**
+ * DatastoreService delegate recording every call with its latency and entity
+ * count to a MetricsSink. Queries are recorded once per execution with the
+ * time spent fetching their results; a query that is not read to the end is
+ * recorded when the producer operation ends.
+ */
+class InstrumentedDatastore implements DatastoreService {
+
+	private final DatastoreService delegate;
+	private final MetricsSink sink;
+
+	InstrumentedDatastore(DatastoreService delegate, MetricsSink sink) {
+		this.delegate = delegate;
+		this.sink = sink;
+	}
+
+	private void record(String call, long start, int entities, boolean failed) {
+		RequestMetrics.recordCall(sink, call, System.nanoTime() - start, entities, failed);
+	}
+
+	private static int size(Iterable<?> iterable) {
+		return iterable instanceof Collection ? ((Collection<?>) iterable).size() : 0;
+	}
+
+	public Entity get(Key key) throws EntityNotFoundException {
+		return get(null, key);
+	}
+
+	public Entity get(Transaction txn, Key key) throws EntityNotFoundException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			Entity entity = txn != null ? delegate.get(txn, key) : delegate.get(key);
+			failed = false;
+			return entity;
+		} catch (EntityNotFoundException e) {
+			failed = false;
+			throw e;
+		} finally {
+			record("get", start, failed ? 0 : 1, failed);
+		}
+	}
+
+	public Map<Key, Entity> get(Iterable<Key> keys) {
+		return get(null, keys);
+	}
+
+	public Map<Key, Entity> get(Transaction txn, Iterable<Key> keys) {
+		long start = System.nanoTime();
+		Map<Key, Entity> entities = null;
+		try {
+			entities = txn != null ? delegate.get(txn, keys) : delegate.get(keys);
+			return entities;
+		} finally {
+			record("get", start, entities != null ? entities.size() : 0, entities == null);
+		}
+	}
+
+	public Key put(Entity entity) {
+		return put(null, entity);
+	}
+
+	public Key put(Transaction txn, Entity entity) {
+		long start = System.nanoTime();
+		Key key = null;
+		try {
+			key = txn != null ? delegate.put(txn, entity) : delegate.put(entity);
+			return key;
+		} finally {
+			record("put", start, 1, key == null);
+		}
+	}
+
+	public List<Key> put(Iterable<Entity> entities) {
+		return put(null, entities);
+	}
+
+	public List<Key> put(Transaction txn, Iterable<Entity> entities) {
+		long start = System.nanoTime();
+		List<Key> keys = null;
+		try {
+			keys = txn != null ? delegate.put(txn, entities) : delegate.put(entities);
+			return keys;
+		} finally {
+			record("put", start, keys != null ? keys.size() : size(entities), keys == null);
+		}
+	}
+
+	public void delete(Key... keys) {
+		delete(null, keys);
+	}
+
+	public void delete(Transaction txn, Key... keys) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			if (txn != null) {
+				delegate.delete(txn, keys);
+			} else {
+				delegate.delete(keys);
+			}
+			failed = false;
+		} finally {
+			record("delete", start, keys.length, failed);
+		}
+	}
+
+	public void delete(Iterable<Key> keys) {
+		delete(null, keys);
+	}
+
+	public void delete(Transaction txn, Iterable<Key> keys) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			if (txn != null) {
+				delegate.delete(txn, keys);
+			} else {
+				delegate.delete(keys);
+			}
+			failed = false;
+		} finally {
+			record("delete", start, size(keys), failed);
+		}
+	}
+
+	public Transaction beginTransaction() {
+		return beginTransaction(TransactionOptions.Builder.withDefaults());
+	}
+
+	public Transaction beginTransaction(TransactionOptions options) {
+		long start = System.nanoTime();
+		Transaction txn = null;
+		try {
+			txn = delegate.beginTransaction(options);
+			return txn;
+		} finally {
+			record("beginTransaction", start, 0, txn == null);
+		}
+	}
+
+	public KeyRange allocateIds(String kind, long num) {
+		return allocateIds(null, kind, num);
+	}
+
+	public KeyRange allocateIds(Key parent, String kind, long num) {
+		long start = System.nanoTime();
+		KeyRange range = null;
+		try {
+			range = parent != null ? delegate.allocateIds(parent, kind, num) : delegate.allocateIds(kind, num);
+			return range;
+		} finally {
+			record("allocateIds", start, 0, range == null);
+		}
+	}
+
+	public KeyRangeState allocateIdRange(KeyRange range) {
+		long start = System.nanoTime();
+		KeyRangeState state = null;
+		try {
+			state = delegate.allocateIdRange(range);
+			return state;
+		} finally {
+			record("allocateIdRange", start, 0, state == null);
+		}
+	}
+
+	public DatastoreAttributes getDatastoreAttributes() {
+		return delegate.getDatastoreAttributes();
+	}
+
+	public Map<Index, IndexState> getIndexes() {
+		return delegate.getIndexes();
+	}
+
+	public PreparedQuery prepare(Query query) {
+		return new InstrumentedQuery(delegate.prepare(query));
+	}
+
+	public PreparedQuery prepare(Transaction txn, Query query) {
+		return new InstrumentedQuery(delegate.prepare(txn, query));
+	}
+
+	public Transaction getCurrentTransaction() {
+		return delegate.getCurrentTransaction();
+	}
+
+	public Transaction getCurrentTransaction(Transaction returnedIfNoTxn) {
+		return delegate.getCurrentTransaction(returnedIfNoTxn);
+	}
+
+	public Collection<Transaction> getActiveTransactions() {
+		return delegate.getActiveTransactions();
+	}
+
+	private class InstrumentedQuery implements PreparedQuery {
+
+		private final PreparedQuery query;
+
+		InstrumentedQuery(PreparedQuery query) {
+			this.query = query;
+		}
+
+		public List<Entity> asList(FetchOptions fetchOptions) {
+			long start = System.nanoTime();
+			List<Entity> list = null;
+			try {
+				list = query.asList(fetchOptions);
+				return list;
+			} finally {
+				// the list is fetched lazily, only the first batch is timed
+				record("query", start, 0, list == null);
+			}
+		}
+
+		public QueryResultList<Entity> asQueryResultList(FetchOptions fetchOptions) {
+			long start = System.nanoTime();
+			QueryResultList<Entity> list = null;
+			try {
+				list = query.asQueryResultList(fetchOptions);
+				return list;
+			} finally {
+				record("query", start, list != null ? list.size() : 0, list == null);
+			}
+		}
+
+		public Iterable<Entity> asIterable(final FetchOptions fetchOptions) {
+			return new Iterable<Entity>() {
+				public Iterator<Entity> iterator() {
+					return asQueryResultIterator(fetchOptions);
+				}
+			};
+		}
+
+		public QueryResultIterable<Entity> asQueryResultIterable(final FetchOptions fetchOptions) {
+			return new QueryResultIterable<Entity>() {
+				public QueryResultIterator<Entity> iterator() {
+					return asQueryResultIterator(fetchOptions);
+				}
+			};
+		}
+
+		public Iterable<Entity> asIterable() {
+			return asIterable(FetchOptions.Builder.withDefaults());
+		}
+
+		public QueryResultIterable<Entity> asQueryResultIterable() {
+			return asQueryResultIterable(FetchOptions.Builder.withDefaults());
+		}
+
+		public Iterator<Entity> asIterator(FetchOptions fetchOptions) {
+			return asQueryResultIterator(fetchOptions);
+		}
+
+		public Iterator<Entity> asIterator() {
+			return asQueryResultIterator(FetchOptions.Builder.withDefaults());
+		}
+
+		public QueryResultIterator<Entity> asQueryResultIterator(FetchOptions fetchOptions) {
+			long start = System.nanoTime();
+			InstrumentedIterator iterator = new InstrumentedIterator(query.asQueryResultIterator(fetchOptions));
+			iterator.nanos += System.nanoTime() - start;
+			return iterator;
+		}
+
+		public QueryResultIterator<Entity> asQueryResultIterator() {
+			return asQueryResultIterator(FetchOptions.Builder.withDefaults());
+		}
+
+		public Entity asSingleEntity() throws TooManyResultsException {
+			long start = System.nanoTime();
+			boolean failed = true;
+			Entity entity = null;
+			try {
+				entity = query.asSingleEntity();
+				failed = false;
+				return entity;
+			} finally {
+				record("query", start, entity != null ? 1 : 0, failed);
+			}
+		}
+
+		public int countEntities(FetchOptions fetchOptions) {
+			long start = System.nanoTime();
+			boolean failed = true;
+			try {
+				int count = query.countEntities(fetchOptions);
+				failed = false;
+				return count;
+			} finally {
+				record("count", start, 0, failed);
+			}
+		}
+
+		@SuppressWarnings("deprecation")
+		public int countEntities() {
+			long start = System.nanoTime();
+			boolean failed = true;
+			try {
+				int count = query.countEntities();
+				failed = false;
+				return count;
+			} finally {
+				record("count", start, 0, failed);
+			}
+		}
+	}
+
+	private class InstrumentedIterator implements QueryResultIterator<Entity>, RequestMetrics.Pending {
+
+		private final QueryResultIterator<Entity> iterator;
+		private long nanos;
+		private int entities;
+		private boolean failed;
+		private boolean recorded;
+
+		InstrumentedIterator(QueryResultIterator<Entity> iterator) {
+			this.iterator = iterator;
+			RequestMetrics.defer(this);
+		}
+
+		public boolean hasNext() {
+			long start = System.nanoTime();
+			boolean hasNext = false;
+			failed = true;
+			try {
+				hasNext = iterator.hasNext();
+				failed = false;
+				return hasNext;
+			} finally {
+				nanos += System.nanoTime() - start;
+				if (!hasNext) {
+					flush();
+				}
+			}
+		}
+
+		public Entity next() {
+			long start = System.nanoTime();
+			try {
+				Entity entity = iterator.next();
+				entities++;
+				return entity;
+			} finally {
+				nanos += System.nanoTime() - start;
+			}
+		}
+
+		public void remove() {
+			iterator.remove();
+		}
+
+		public List<Index> getIndexList() {
+			return iterator.getIndexList();
+		}
+
+		public Cursor getCursor() {
+			return iterator.getCursor();
+		}
+
+		public void flush() {
+			if (!recorded) {
+				recorded = true;
+				RequestMetrics.recordCall(sink, "query", nanos, entities, failed);
+			}
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package org.odata.appengine;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free latency histogram with power of two microsecond buckets, bucket i
+ * holding latencies below 2^i microseconds. Percentiles are reported as the
+ * upper bound of their bucket.
+ */
+class LatencyHistogram {
+
+	private static final int BUCKETS = 32;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+
+	void record(long nanos) {
+		long micros = Math.max(nanos / 1000, 0);
+		int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+		buckets.incrementAndGet(bucket);
+		count.incrementAndGet();
+		totalNanos.addAndGet(nanos);
+	}
+
+	long getCount() {
+		return count.get();
+	}
+
+	double getMeanMillis() {
+		long count = getCount();
+		return count == 0 ? 0 : totalNanos.get() / 1e6 / count;
+	}
+
+	double getPercentileMillis(double percentile) {
+		long count = getCount();
+		if (count == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(count * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank) {
+				return (1L << i) / 1e3;
+			}
+		}
+		return (1L << (BUCKETS - 1)) / 1e3;
+	}
+}
@@ -0,0 +1,65 @@
+package org.odata.appengine;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+
+/**
+ * Links of navigation properties stored as linkEntities: one root entity per
+ * link, of kind Link_&lt;relationship&gt;, named after the source and target
+ * keys and with the source in an indexed property. Adding a link is a blind
+ * put and removing it a delete by key, neither touches the source entity.
+ * The targets are found with a keys-only query, since the key name carries
+ * the target, in the order of their key names.
+ */
+class LinkEntities {
+
+	private static final String KIND_PREFIX = "Link_";
+	private static final String SOURCE_PROPERTY = "Source";
+	private static final String SEPARATOR = ":";
+
+	private final DatastoreService datastore;
+
+	LinkEntities(DatastoreService datastore) {
+		this.datastore = datastore;
+	}
+
+	void add(Key source, EntityTypePlan.NavigationSlot slot, Key target) {
+		Entity link = new Entity(linkKey(source, slot, target));
+		link.setProperty(SOURCE_PROPERTY, source);
+		datastore.put(link);
+	}
+
+	void remove(Key source, EntityTypePlan.NavigationSlot slot, Key target) {
+		datastore.delete(linkKey(source, slot, target));
+	}
+
+	List<Key> targets(Key source, EntityTypePlan.NavigationSlot slot) {
+		List<Key> targets = new ArrayList<Key>();
+		for (Entity link : datastore.prepare(query(source, slot)).asIterable(FetchOptions.Builder.withChunkSize(1000))) {
+			String name = link.getKey().getName();
+			targets.add(KeyFactory.stringToKey(name.substring(name.indexOf(SEPARATOR) + 1)));
+		}
+		return targets;
+	}
+
+	int count(Key source, EntityTypePlan.NavigationSlot slot) {
+		return datastore.prepare(query(source, slot)).countEntities(FetchOptions.Builder.withDefaults());
+	}
+
+	private static Query query(Key source, EntityTypePlan.NavigationSlot slot) {
+		return new Query(KIND_PREFIX + slot.relationshipName).setFilter(new FilterPredicate(SOURCE_PROPERTY, FilterOperator.EQUAL, source)).setKeysOnly();
+	}
+
+	private static Key linkKey(Key source, EntityTypePlan.NavigationSlot slot, Key target) {
+		return KeyFactory.createKey(KIND_PREFIX + slot.relationshipName, KeyFactory.keyToString(source) + SEPARATOR + KeyFactory.keyToString(target));
+	}
+}
@@ -0,0 +1,73 @@
+package org.odata.appengine;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+
+/**
+ * Bounded in-process LRU entity cache, a stand-in for memcache.
+ */
+public class LocalEntityCache implements EntityCache {
+
+	private static class CacheEntry {
+		private final Entity entity;
+		private final long expires;
+
+		private CacheEntry(Entity entity, long expires) {
+			this.entity = entity;
+			this.expires = expires;
+		}
+	}
+
+	private final Map<Key, CacheEntry> entries;
+
+	public LocalEntityCache(final int maxSize) {
+		this.entries = new LinkedHashMap<Key, CacheEntry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, CacheEntry> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	@Override
+	public synchronized Entity get(Key key) {
+		CacheEntry entry = entries.get(key);
+		if (entry == null) {
+			return null;
+		}
+		if (entry.expires < System.currentTimeMillis()) {
+			entries.remove(key);
+			return null;
+		}
+		return entry.entity.clone();
+	}
+
+	@Override
+	public synchronized Map<Key, Entity> getAll(Collection<Key> keys) {
+		Map<Key, Entity> entities = new HashMap<Key, Entity>();
+		for (Key key : keys) {
+			Entity entity = get(key);
+			if (entity != null) {
+				entities.put(key, entity);
+			}
+		}
+		return entities;
+	}
+
+	@Override
+	public synchronized void put(Key key, Entity entity, int expirationSeconds) {
+		entries.put(key, new CacheEntry(entity.clone(), System.currentTimeMillis() + expirationSeconds * 1000L));
+	}
+
+	@Override
+	public synchronized void delete(Key key) {
+		entries.remove(key);
+	}
+}
@@ -0,0 +1,46 @@
+package org.odata.appengine;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+public class MemcacheEntityCache implements EntityCache {
+
+	private static final String NAMESPACE = "EntityCache";
+
+	private final MemcacheService memcache;
+
+	public MemcacheEntityCache() {
+		this.memcache = MemcacheServiceFactory.getMemcacheService(NAMESPACE);
+	}
+
+	@Override
+	public Entity get(Key key) {
+		return (Entity) memcache.get(key);
+	}
+
+	@Override
+	public Map<Key, Entity> getAll(Collection<Key> keys) {
+		Map<Key, Entity> entities = new HashMap<Key, Entity>();
+		for (Map.Entry<Key, Object> entry : memcache.getAll(keys).entrySet()) {
+			entities.put(entry.getKey(), (Entity) entry.getValue());
+		}
+		return entities;
+	}
+
+	@Override
+	public void put(Key key, Entity entity, int expirationSeconds) {
+		memcache.put(key, entity, Expiration.byDeltaSeconds(expirationSeconds));
+	}
+
+	@Override
+	public void delete(Key key) {
+		memcache.delete(key);
+	}
+}
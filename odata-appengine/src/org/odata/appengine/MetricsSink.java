@@ -0,0 +1,29 @@
+package org.odata.appengine;
+
+/**
+ * Receives the datastore calls and request phases measured by the producer,
+ * tagged with the OData operation (getEntities, getNavProperty, mergeEntity,
+ * ...) and entity set they were made for. The operation and entity set are
+ * null for calls made outside of a producer operation. Implementations are
+ * called concurrently from all request threads. Configured with
+ * odata.appengine.metricsSink, InMemoryMetrics by default.
+ */
+public interface MetricsSink {
+
+	/**
+	 * A datastore call (get, put, delete, query, count, ...) that took nanos
+	 * and read or wrote entities entities.
+	 */
+	void recordCall(String operation, String entitySetName, String call, long nanos, int entities, boolean failed);
+
+	/**
+	 * Time spent in a phase of a request: query, convert or serialize.
+	 */
+	void recordPhase(String operation, String entitySetName, String phase, long nanos);
+
+	/**
+	 * A response cut short by odata.appengine.queryBudgetMillis, returned with
+	 * a next link.
+	 */
+	void recordTruncated(String operation, String entitySetName);
+}
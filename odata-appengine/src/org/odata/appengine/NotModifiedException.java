@@ -0,0 +1,24 @@
+package org.odata.appengine;
+
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.Response.StatusType;
+
+import org.odata4j.exceptions.ODataProducerException;
+
+/**
+ * 304 for a read whose If-None-Match lists the ETag of the entity; the error
+ * body the mapper writes for it is dropped by ConditionalRequestFilter.
+ */
+class NotModifiedException extends ODataProducerException {
+
+	private static final long serialVersionUID = 1L;
+
+	NotModifiedException(String etag) {
+		super("Not modified, ETag " + etag, null);
+	}
+
+	@Override
+	public StatusType getHttpStatus() {
+		return Status.NOT_MODIFIED;
+	}
+}
@@ -0,0 +1,24 @@
+package org.odata.appengine;
+
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.Response.StatusType;
+
+import org.odata4j.exceptions.ODataProducerException;
+
+/**
+ * 412 for a request whose If-Match or If-None-Match does not hold for the
+ * current version of the entity.
+ */
+class PreconditionFailedException extends ODataProducerException {
+
+	private static final long serialVersionUID = 1L;
+
+	PreconditionFailedException(String message) {
+		super(message, null);
+	}
+
+	@Override
+	public StatusType getHttpStatus() {
+		return Status.PRECONDITION_FAILED;
+	}
+}
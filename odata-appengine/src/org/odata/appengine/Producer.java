@@ -3,16 +3,29 @@ package org.odata.appengine;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-import org.core4j.Enumerable;
 import org.core4j.Func1;
-import org.joda.time.LocalDateTime;
+import org.odata4j.core.OCollection;
+import org.odata4j.core.OCollections;
 import org.odata4j.core.OEntities;
 import org.odata4j.core.OEntity;
 import org.odata4j.core.OEntityId;
+import org.odata4j.core.OEntityIds;
 import org.odata4j.core.OEntityKey;
 import org.odata4j.core.OExtension;
 import org.odata4j.core.OFunctionParameter;
@@ -20,32 +33,23 @@ import org.odata4j.core.OLink;
 import org.odata4j.core.OLinks;
 import org.odata4j.core.OProperties;
 import org.odata4j.core.OProperty;
+import org.odata4j.core.OSimpleObject;
 import org.odata4j.edm.EdmDataServices;
 import org.odata4j.edm.EdmEntitySet;
 import org.odata4j.edm.EdmEntityType;
 import org.odata4j.edm.EdmFunctionImport;
 import org.odata4j.edm.EdmMultiplicity;
 import org.odata4j.edm.EdmNavigationProperty;
-import org.odata4j.edm.EdmProperty;
 import org.odata4j.edm.EdmSimpleType;
-import org.odata4j.edm.EdmType;
+import org.odata4j.exceptions.BadRequestException;
 import org.odata4j.exceptions.NotFoundException;
 import org.odata4j.exceptions.NotImplementedException;
-import org.odata4j.expression.AndExpression;
-import org.odata4j.expression.BinaryCommonExpression;
 import org.odata4j.expression.BoolCommonExpression;
 import org.odata4j.expression.EntitySimpleProperty;
-import org.odata4j.expression.EqExpression;
-import org.odata4j.expression.Expression;
-import org.odata4j.expression.GeExpression;
-import org.odata4j.expression.GtExpression;
-import org.odata4j.expression.LeExpression;
-import org.odata4j.expression.LiteralExpression;
-import org.odata4j.expression.LtExpression;
-import org.odata4j.expression.NeExpression;
 import org.odata4j.expression.OrderByExpression;
 import org.odata4j.expression.OrderByExpression.Direction;
 import org.odata4j.producer.BaseResponse;
+import org.odata4j.producer.CollectionResponse;
 import org.odata4j.producer.CountResponse;
 import org.odata4j.producer.EntitiesResponse;
 import org.odata4j.producer.EntityIdResponse;
@@ -57,34 +61,120 @@ import org.odata4j.producer.QueryInfo;
 import org.odata4j.producer.Responses;
 import org.odata4j.producer.edm.MetadataProducer;
 
-import com.google.appengine.api.datastore.DataTypeUtils;
+import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.PropertyProjection;
 import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.datastore.Query.CompositeFilter;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
 import com.google.appengine.api.datastore.Query.Filter;
 import com.google.appengine.api.datastore.Query.FilterOperator;
 import com.google.appengine.api.datastore.Query.FilterPredicate;
 import com.google.appengine.api.datastore.Query.SortDirection;
-import com.google.appengine.api.datastore.ShortBlob;
-import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
 
 public class Producer implements ODataProducer {
 
-	@SuppressWarnings("unchecked")
-	private static final Set<EdmType> SUPPORTED_TYPES = Enumerable.create(EdmSimpleType.BOOLEAN, EdmSimpleType.BYTE, EdmSimpleType.STRING, EdmSimpleType.INT16, EdmSimpleType.INT32, EdmSimpleType.INT64, EdmSimpleType.SINGLE, EdmSimpleType.DOUBLE, EdmSimpleType.DATETIME, EdmSimpleType.BINARY).cast(EdmType.class).toSet();
+	private static final Logger LOG = Logger.getLogger(Producer.class.getName());
+
+	private static final int MAX_CONDITIONAL_WRITE_ATTEMPTS = 3;
+	private static final int MAX_XG_ENTITY_GROUPS = 5;
+	private static final int RELATED_CHUNK_SIZE = 100;
+
+	private interface EntityWrite {
+		void write(Transaction txn, Entity e);
+	}
 
 	private final EdmDataServices metadata;
 	private final DatastoreService datastore;
+	private final ProducerSettings settings;
+	private final EntityCounter counter;
+	private final CachedDatastore store;
+	private final LinkEntities links;
+	private final FilterPlanner planner = new FilterPlanner();
+	private final Map<String, EntityTypePlan> typePlans = new HashMap<String, EntityTypePlan>();
+	private final MetricsSink sink;
+	private final QueryResultCache queryCache;
+	private final ChangeTracker changes;
+	private final RunningAggregates running;
+	private final Aggregator aggregator;
 
 	public Producer(EdmDataServices metadata) {
-		this.metadata = metadata;
-		this.datastore = DatastoreServiceFactory.getDatastoreService();
+		this(metadata, new ProducerSettings());
+	}
+
+	public Producer(EdmDataServices metadata, ProducerSettings settings) {
+		this.metadata = Aggregator.declareFunctions(ChangeTracker.declareFunctions(metadata, settings), settings);
+		this.settings = settings;
+		this.sink = createMetricsSink(settings.getMetricsSink());
+		ConfiguredDatastore configured = new ConfiguredDatastore(settings, sink);
+		this.datastore = new InstrumentedDatastore(configured, sink);
+		this.counter = new EntityCounter(datastore, settings);
+		for (EdmEntitySet ees : this.metadata.getEntitySets())
+			typePlans.put(ees.getName(), new EntityTypePlan(ees, settings));
+		this.store = new CachedDatastore(datastore, configured, settings, sink);
+		this.links = new LinkEntities(datastore);
+		this.queryCache = isQueryCacheConfigured(metadata, settings) ? new QueryResultCache(settings.getQueryCacheSize()) : null;
+		this.changes = new ChangeTracker(datastore, settings);
+		this.running = new RunningAggregates(datastore, settings);
+		this.aggregator = new Aggregator(datastore, settings, running);
+	}
+
+	// without a set to cache the writes need not bump generations
+	private static boolean isQueryCacheConfigured(EdmDataServices metadata, ProducerSettings settings) {
+		for (EdmEntitySet ees : metadata.getEntitySets()) {
+			if (settings.getQueryCacheSeconds(ees.getName()) != null)
+				return true;
+		}
+		return false;
+	}
+
+	private static MetricsSink createMetricsSink(String className) {
+		if (className == null)
+			return InMemoryMetrics.getDefault();
+		try {
+			return (MetricsSink) Class.forName(className).newInstance();
+		} catch (Exception e) {
+			throw new IllegalArgumentException("Property odata.appengine." + ProducerSettings.METRICS_SINK + " is not a MetricsSink: " + className, e);
+		}
+	}
+
+	public CacheStats getEntityCacheStats() {
+		return store.getStats();
+	}
+
+	public CacheStats getQueryCacheStats() {
+		return queryCache != null ? queryCache.getStats() : new CacheStats();
+	}
+
+	public MetricsSink getMetrics() {
+		return sink;
+	}
+
+	/**
+	 * Deletes the tombstones of the set older than
+	 * odata.appengine.deltaRetentionSeconds, e.g. from a cron job; returns how
+	 * many were deleted.
+	 */
+	public int purgeTombstones(String entitySetName) {
+		return changes.purge(entitySetName);
+	}
+
+	/**
+	 * The instrumented DatastoreService of the producer, e.g. for the
+	 * AccessControl checks of the same request.
+	 */
+	public DatastoreService getDatastoreService() {
+		return datastore;
 	}
 
 	@Override
@@ -99,201 +189,818 @@ public class Producer implements ODataProducer {
 
 	@Override
 	public EntityResponse getEntity(String entitySetName, OEntityKey entityKey, EntityQueryInfo queryInfo) {
-		Entity e = findEntity(entitySetName, entityKey);
-
-		EdmEntitySet ees = metadata.getEdmEntitySet(entitySetName);
-		return Responses.entity(toOEntity(ees, e, queryInfo, null));
+		begin("getEntity", entitySetName);
+		try {
+			Entity e = findEntity(entitySetName, entityKey);
+			String etag = EntityVersion.etag(e);
+			ConditionalRequest.checkRead(etag);
+			ConditionalRequest.setEntityTag(etag);
+
+			EdmEntitySet ees = metadata.getEdmEntitySet(entitySetName);
+			return Responses.entity(toOEntity(ees, e, queryInfo));
+		} finally {
+			end();
+		}
 	}
 
 	@Override
 	public EntitiesResponse getEntities(String entitySetName, QueryInfo queryInfo) {
-		final EdmEntitySet ees = metadata.getEdmEntitySet(entitySetName);
-		Query q = new Query(entitySetName);
-		if (queryInfo.filter != null)
-			applyFilter(q, queryInfo.filter);
+		begin("getEntities", entitySetName);
+		try {
+			EdmEntitySet ees = metadata.getEdmEntitySet(entitySetName);
+			Integer cacheSeconds = settings.getQueryCacheSeconds(entitySetName);
+			// a streamed response is not materialized, so it cannot be kept
+			if (cacheSeconds == null || settings.getStreamingChunkSize(entitySetName) != null)
+				return queryEntities(ees, queryInfo, null, null);
+
+			QueryResultCache.Lookup lookup = queryCache.lookup(entitySetName, readKinds(ees, queryInfo), queryInfo);
+			if (lookup.getResponse() != null)
+				return lookup.getResponse();
+			return lookup.fill(queryEntities(ees, queryInfo, null, null), cacheSeconds);
+		} finally {
+			end();
+		}
+	}
+
+	/**
+	 * The query behind getEntities, restricted to the entities matching scope
+	 * when one is given, e.g. the targets of a foreignKey navigation property;
+	 * scopeName identifies the restriction for the count cache.
+	 */
+	private EntitiesResponse queryEntities(EdmEntitySet ees, QueryInfo queryInfo, Filter scope, String scopeName) {
+		final String entitySetName = ees.getName();
+		Integer budgetMillis = settings.getQueryBudgetMillis(entitySetName);
+		final Long deadlineNanos = budgetMillis != null ? System.nanoTime() + budgetMillis * 1000000L : null;
+		// $top keeps applying across server-driven pages, $skip only to the first one
+		SkipToken skipToken = queryInfo.skipToken != null ? SkipToken.parse(queryInfo.skipToken) : null;
+		if (skipToken != null && skipToken.getCursor() == null)
+			throw new BadRequestException("Invalid $skiptoken " + queryInfo.skipToken);
+		final Integer remaining = skipToken != null ? skipToken.getRemaining() : queryInfo.top;
+		Integer maxPageSize = settings.getMaxPageSize(entitySetName);
+		final boolean paged = maxPageSize != null && (remaining == null || remaining > maxPageSize);
+		final Integer limit = paged ? maxPageSize : remaining;
+
+		final Integer scanLimit = settings.getResidualScanLimit(entitySetName);
+		// every query that may stop before its end needs a plan that hands out cursors
+		FilterPlanner.Plan plan = planner.plan(ees, queryInfo.filter, queryInfo.orderBy, paged || scanLimit != null || deadlineNanos != null);
+		EntityFilter residual = plan.getResidual();
+		Query q = createQuery(entitySetName, plan, scope);
 		if (queryInfo.orderBy != null && queryInfo.orderBy.size() > 0)
 			applySort(q, queryInfo.orderBy);
+		if (residual != null)
+			LOG.fine("getEntities " + entitySetName + ": full entity query, filtering in memory");
+		else if (applyKeysOnly(q, ees, queryInfo))
+			LOG.fine("getEntities " + entitySetName + ": keys-only query");
+		else if (applyProjection(q, ees, queryInfo))
+			LOG.fine("getEntities " + entitySetName + ": projection query " + q.getProjections());
+		else
+			LOG.fine("getEntities " + entitySetName + ": full entity query");
 		PreparedQuery pq = datastore.prepare(q);
 
-		Integer inlineCount = queryInfo.inlineCount == InlineCount.ALLPAGES ? pq.countEntities(FetchOptions.Builder.withDefaults()) : null;
+		// the count runs alongside the page query and the $expand gets
+		Future<Integer> inlineCountFuture = queryInfo.inlineCount == InlineCount.ALLPAGES ? counter.countAsync(entitySetName, scopeName, createQuery(entitySetName, plan, scope), queryInfo.filter, residual) : null;
+
+		if (limit != null && limit <= 0)
+			return Responses.entities(new ArrayList<OEntity>(), ees, await(inlineCountFuture), null);
+
+		// with a residual filter $skip and the page limit count matches, not datastore results
+		int skip = skipToken == null && queryInfo.skip != null ? queryInfo.skip : 0;
+		FetchOptions options = FetchOptions.Builder.withDefaults();
+		if (limit != null && residual == null)
+			options.limit(limit);
+		if (skipToken != null)
+			options.startCursor(skipToken.getCursor());
+		else if (skip > 0 && residual == null)
+			options.offset(skip);
+
+		Integer chunkSize = settings.getStreamingChunkSize(entitySetName);
+		if (chunkSize != null) {
+			options.chunkSize(chunkSize).prefetchSize(chunkSize);
+			final QueryResultIterator<Entity> results = pq.asQueryResultIterator(options);
+			final EntityFilter.Matches matches = residual != null ? residual.apply(results, skip, limit, scanLimit, deadlineNanos, sink) : null;
+			final BudgetedScan scan = deadlineNanos != null && matches == null ? new BudgetedScan(results, deadlineNanos, sink) : null;
+			Iterator<Entity> source = scan != null ? scan : matches != null ? matches : results;
+			return new StreamingEntitiesResponse(ees, await(inlineCountFuture), source, chunkSize, converter(ees, queryInfo), new Func1<Integer, String>() {
+				public String apply(Integer returned) {
+					boolean more = (paged && returned.equals(limit)) || (matches != null && matches.isTruncated()) || (scan != null && scan.isTruncated());
+					return more ? nextSkipToken(entitySetName, results.getCursor(), remaining, returned) : null;
+				}
+			});
+		}
 
-		FetchOptions options = null;
-		if (queryInfo.top != null)
-			options = FetchOptions.Builder.withLimit(queryInfo.top);
-		if (queryInfo.skip != null)
-			options = options == null ? FetchOptions.Builder.withOffset(queryInfo.skip) : options.offset(queryInfo.skip);
+		List<Entity> results;
+		Cursor cursor = null;
+		boolean more;
+		if (residual != null || deadlineNanos != null) {
+			QueryResultIterator<Entity> iterator = pq.asQueryResultIterator(options);
+			results = new ArrayList<Entity>();
+			EntityFilter.Matches matches = residual != null ? residual.apply(iterator, skip, limit, scanLimit, deadlineNanos, sink) : null;
+			BudgetedScan scan = deadlineNanos != null && matches == null ? new BudgetedScan(iterator, deadlineNanos, sink) : null;
+			Iterator<Entity> source = scan != null ? scan : matches;
+			while (source.hasNext())
+				results.add(source.next());
+			// a page cut short by the scan limit or the time budget continues where the scan stopped
+			more = (paged && results.size() == limit) || (matches != null && matches.isTruncated()) || (scan != null && scan.isTruncated());
+			if (more)
+				cursor = iterator.getCursor();
+		} else {
+			QueryResultList<Entity> list = pq.asQueryResultList(options);
+			results = list;
+			more = paged && results.size() == limit;
+			if (more)
+				cursor = list.getCursor();
+		}
 
-		Iterable<Entity> iter = options == null ? pq.asIterable() : pq.asIterable(options);
+		String nextSkipToken = more ? nextSkipToken(entitySetName, cursor, remaining, results.size()) : null;
 
-		final QueryInfo qi = queryInfo;
-		List<OEntity> entities = Enumerable.create(iter).select(new Func1<Entity, OEntity>() {
-			public OEntity apply(Entity input) {
-				return toOEntity(ees, input, qi, null);
-			}
-		}).toList();
+		List<OEntity> entities = toOEntities(ees, results, queryInfo);
 
-		return Responses.entities(entities, ees, inlineCount, null);
+		return Responses.entities(entities, ees, await(inlineCountFuture), nextSkipToken);
 	}
 
 	@Override
 	public EntityResponse createEntity(String entitySetName, OEntity entity) {
-		Entity e = new Entity(entitySetName);
-		applyProperties(e, entity.getProperties());
-		applyLinks(e, entity.getLinks());
-		datastore.put(e);
-		EdmEntitySet ees = metadata.getEdmEntitySet(entitySetName);
-		return Responses.entity(toOEntity(ees, e, null, null));
+		begin("createEntity", entitySetName);
+		try {
+			Entity e = new Entity(entitySetName);
+			applyProperties(e, typePlan(entitySetName), entity.getProperties());
+			applyLinks(e, entity.getLinks());
+			put(null, e);
+			addLinks(e, entity.getLinks());
+			ConditionalRequest.setEntityTag(EntityVersion.etag(e));
+			counter.increment(entitySetName, 1);
+			EdmEntitySet ees = metadata.getEdmEntitySet(entitySetName);
+			return Responses.entity(toOEntity(ees, e, null));
+		} finally {
+			end();
+		}
 	}
 
 	@Override
 	public void deleteEntity(String entitySetName, OEntityKey entityKey) {
-		long id = Long.parseLong(entityKey.asSingleValue().toString());
-		datastore.delete(KeyFactory.createKey(entitySetName, id));
+		begin("deleteEntity", entitySetName);
+		try {
+			long id = Long.parseLong(entityKey.asSingleValue().toString());
+			final Key key = KeyFactory.createKey(entitySetName, id);
+			if (ConditionalRequest.hasPreconditions()) {
+				writeEntity(entitySetName, entityKey, new EntityWrite() {
+					public void write(Transaction txn, Entity e) {
+						delete(txn, Collections.singletonList(key));
+					}
+				});
+				counter.increment(entitySetName, -1);
+			} else if (counter.isSharded(entitySetName)) {
+				if (store.get(null, Collections.singletonList(key)).isEmpty())
+					return;
+				delete(null, Collections.singletonList(key));
+				counter.increment(entitySetName, -1);
+			} else {
+				delete(null, Collections.singletonList(key));
+			}
+		} finally {
+			end();
+		}
 	}
 
 	@Override
-	public void mergeEntity(String entitySetName, OEntity entity) {
-		OEntityKey entityKey = entity.getEntityKey();
-		Entity e = findEntity(entitySetName, entityKey);
-
-		applyProperties(e, entity.getProperties());
-		applyLinks(e, entity.getLinks());
-		datastore.put(e);
+	public void mergeEntity(final String entitySetName, final OEntity entity) {
+		begin("mergeEntity", entitySetName);
+		try {
+			Entity e = writeEntity(entitySetName, entity.getEntityKey(), new EntityWrite() {
+				public void write(Transaction txn, Entity e) {
+					applyProperties(e, typePlan(entitySetName), entity.getProperties());
+					applyLinks(e, entity.getLinks());
+					put(txn, e);
+				}
+			});
+			addLinks(e, entity.getLinks());
+			ConditionalRequest.setEntityTag(EntityVersion.etag(e));
+		} finally {
+			end();
+		}
 	}
 
 	@Override
-	public void updateEntity(String entitySetName, OEntity entity) {
-		OEntityKey entityKey = entity.getEntityKey();
-		Entity e = findEntity(entitySetName, entityKey);
+	public void updateEntity(final String entitySetName, final OEntity entity) {
+		begin("updateEntity", entitySetName);
+		try {
+			Entity e = writeEntity(entitySetName, entity.getEntityKey(), new EntityWrite() {
+				public void write(Transaction txn, Entity e) {
+					clearProperties(e);
+					applyProperties(e, typePlan(entitySetName), entity.getProperties());
+					applyLinks(e, entity.getLinks());
+					put(txn, e);
+				}
+			});
+			addLinks(e, entity.getLinks());
+			ConditionalRequest.setEntityTag(EntityVersion.etag(e));
+		} finally {
+			end();
+		}
+	}
 
-		// clear existing props
-		for (String name : e.getProperties().keySet())
-			e.removeProperty(name);
+	/**
+	 * Starts a change set whose operations are written with batched datastore
+	 * calls; atomic change sets run in a cross-group transaction, so they can
+	 * write at most 5 entities, each created entity counting as one.
+	 */
+	public ChangeSet newChangeSet(boolean atomic) {
+		return new ChangeSet(this, atomic);
+	}
 
-		applyProperties(e, entity.getProperties());
-		applyLinks(e, entity.getLinks());
-		datastore.put(e);
+	public List<EntityResponse> createEntities(String entitySetName, List<OEntity> entities) {
+		ChangeSet changeSet = newChangeSet(false);
+		for (OEntity entity : entities)
+			changeSet.createEntity(entitySetName, entity);
+		return changeSet.commit();
 	}
 
-	private OEntity toOEntity(EdmEntitySet ees, Entity entity, QueryInfo queryInfo, String parentPropName) {
-		final List<OProperty<?>> properties = new ArrayList<OProperty<?>>();
-		final List<OLink> links = new ArrayList<OLink>();
+	List<EntityResponse> commit(boolean atomic, List<ChangeSet.Operation> operations) {
+		if (atomic)
+			checkEntityGroups(operations);
+		begin("commit", null);
+		Transaction txn = atomic ? datastore.beginTransaction(TransactionOptions.Builder.withXG(true)) : null;
+		try {
+			// one allocateIds call per kind, so the created keys are known before the put
+			Map<String, Integer> creates = new HashMap<String, Integer>();
+			Map<Key, List<ChangeSet.Operation>> writes = new LinkedHashMap<Key, List<ChangeSet.Operation>>();
+			Map<Key, String> deletes = new LinkedHashMap<Key, String>();
+			for (ChangeSet.Operation op : operations) {
+				if (op.type == ChangeSet.OperationType.CREATE) {
+					Integer count = creates.get(op.entitySetName);
+					creates.put(op.entitySetName, count == null ? 1 : count + 1);
+					continue;
+				}
+				Key key = entityKey(op.entitySetName, op.entityKey);
+				if (op.type == ChangeSet.OperationType.DELETE) {
+					writes.remove(key);
+					deletes.put(key, op.entitySetName);
+				} else if (deletes.containsKey(key)) {
+					throw new NotFoundException("Entity " + op.entitySetName + " with key " + op.entityKey + " not found.");
+				} else {
+					List<ChangeSet.Operation> ops = writes.get(key);
+					if (ops == null) {
+						ops = new ArrayList<ChangeSet.Operation>();
+						writes.put(key, ops);
+					}
+					ops.add(op);
+				}
+			}
+			Map<String, Iterator<Key>> ids = new HashMap<String, Iterator<Key>>();
+			for (Map.Entry<String, Integer> entry : creates.entrySet())
+				ids.put(entry.getKey(), datastore.allocateIds(entry.getKey(), entry.getValue()).iterator());
+
+			List<Entity> created = new ArrayList<Entity>();
+			Map<String, Integer> deltas = new HashMap<String, Integer>();
+			for (ChangeSet.Operation op : operations) {
+				if (op.type != ChangeSet.OperationType.CREATE)
+					continue;
+				Entity e = new Entity(ids.get(op.entitySetName).next());
+				running.markNew(e);
+				applyProperties(e, typePlan(op.entitySetName), op.entity.getProperties());
+				applyLinks(e, op.entity.getLinks());
+				created.add(e);
+				addDelta(deltas, op.entitySetName, 1);
+			}
+
+			Map<Key, Entity> written = atomic ? writeAll(txn, created, writes, deletes, deltas) : writeEach(created, writes, deletes, deltas);
 
-		EdmEntityType eet = ees.getType();
-		String entityKeyName = eet.getKeys().get(0);
-		OEntityKey entityKey = OEntityKey.create(OProperties.int64(entityKeyName, entity.getKey().getId()));
-		if (queryInfo == null || queryInfo.select == null || queryInfo.select.size() == 0 || containsProperty(queryInfo.select, entityKeyName, parentPropName)) {
-			properties.add(OProperties.int64(entityKeyName, entity.getKey().getId()));
+			// links stored outside of the entities are not part of the transaction
+			Iterator<Entity> createdEntities = created.iterator();
+			for (ChangeSet.Operation op : operations) {
+				if (op.type == ChangeSet.OperationType.CREATE)
+					addLinks(createdEntities.next(), op.entity.getLinks());
+				else if (op.type != ChangeSet.OperationType.DELETE && written.containsKey(entityKey(op.entitySetName, op.entityKey)))
+					addLinks(written.get(entityKey(op.entitySetName, op.entityKey)), op.entity.getLinks());
+			}
+			for (Map.Entry<String, Integer> delta : deltas.entrySet())
+				counter.increment(delta.getKey(), delta.getValue());
+
+			List<EntityResponse> responses = new ArrayList<EntityResponse>(created.size());
+			for (Entity e : created)
+				responses.add(Responses.entity(toOEntity(metadata.getEdmEntitySet(e.getKind()), e, null)));
+			return responses;
+		} finally {
+			if (txn != null && txn.isActive())
+				txn.rollback();
+			if (txn != null) {
+				store.discard(txn);
+				running.discard(txn);
+			}
+			end();
 		}
+	}
 
-		for (String propName : entity.getProperties().keySet()) {
-			Object propValue = entity.getProperty(propName);
-			if (propValue == null)
-				continue;
+	/**
+	 * Writes an atomic change set with one batch get, put and delete in its
+	 * transaction, checking the request's preconditions against every entity
+	 * it merges, updates or deletes.
+	 */
+	private Map<Key, Entity> writeAll(Transaction txn, List<Entity> created, Map<Key, List<ChangeSet.Operation>> writes, Map<Key, String> deletes, Map<String, Integer> deltas) {
+		Set<Key> reads = new HashSet<Key>(writes.keySet());
+		for (Map.Entry<Key, String> delete : deletes.entrySet()) {
+			if (counter.isSharded(delete.getValue()) || ConditionalRequest.hasPreconditions())
+				reads.add(delete.getKey());
+		}
+		Map<Key, Entity> existing = reads.size() > 0 ? store.get(txn, reads) : new HashMap<Key, Entity>();
+
+		Map<Key, Entity> written = new LinkedHashMap<Key, Entity>();
+		for (Map.Entry<Key, List<ChangeSet.Operation>> write : writes.entrySet()) {
+			Entity e = existing.get(write.getKey());
+			ChangeSet.Operation first = write.getValue().get(0);
+			if (e == null)
+				throw new NotFoundException("Entity " + first.entitySetName + " with key " + first.entityKey + " not found.");
+			ConditionalRequest.checkWrite(EntityVersion.etag(e));
+			applyOperations(e, write.getValue());
+			written.put(write.getKey(), e);
+		}
+		for (Map.Entry<Key, String> delete : deletes.entrySet()) {
+			Entity e = existing.get(delete.getKey());
+			if (e == null && ConditionalRequest.hasPreconditions())
+				throw new NotFoundException("Entity " + delete.getValue() + " with key " + delete.getKey().getId() + " not found.");
+			if (e != null) {
+				ConditionalRequest.checkWrite(EntityVersion.etag(e));
+				addDelta(deltas, delete.getValue(), -1);
+			}
+		}
 
-			if (queryInfo != null && queryInfo.select != null && queryInfo.select.size() > 0) {
-				if (!containsProperty(queryInfo.select, propName, parentPropName)) {
-					continue;
+		List<Entity> puts = new ArrayList<Entity>(created);
+		puts.addAll(written.values());
+		if (puts.size() > 0)
+			put(txn, puts);
+		if (deletes.size() > 0)
+			delete(txn, deletes.keySet());
+		txn.commit();
+		store.committed(txn);
+		running.committed(txn);
+		List<Key> keys = new ArrayList<Key>(deletes.keySet());
+		for (Entity e : puts)
+			keys.add(e.getKey());
+		invalidateQueries(keys);
+		return written;
+	}
+
+	/**
+	 * Writes a change set that is not atomic: the created entities with one
+	 * batch put, every merged or updated entity in a transaction of its own
+	 * like mergeEntity, so it starts from the stored entity and is checked
+	 * against the request's preconditions, and the deletes with one batch
+	 * delete unless there are preconditions to check. An operation that fails
+	 * leaves the entities written before it.
+	 */
+	private Map<Key, Entity> writeEach(List<Entity> created, Map<Key, List<ChangeSet.Operation>> writes, Map<Key, String> deletes, Map<String, Integer> deltas) {
+		if (created.size() > 0)
+			put(null, created);
+
+		Map<Key, Entity> written = new LinkedHashMap<Key, Entity>();
+		for (final Map.Entry<Key, List<ChangeSet.Operation>> write : writes.entrySet()) {
+			Entity e = writeEntity(write.getKey(), true, new EntityWrite() {
+				public void write(Transaction txn, Entity e) {
+					applyOperations(e, write.getValue());
+					put(txn, e);
 				}
+			});
+			ChangeSet.Operation first = write.getValue().get(0);
+			if (e == null)
+				throw new NotFoundException("Entity " + first.entitySetName + " with key " + first.entityKey + " not found.");
+			written.put(write.getKey(), e);
+		}
+
+		if (ConditionalRequest.hasPreconditions()) {
+			for (final Map.Entry<Key, String> delete : deletes.entrySet()) {
+				Entity e = writeEntity(delete.getKey(), true, new EntityWrite() {
+					public void write(Transaction txn, Entity e) {
+						delete(txn, Collections.singletonList(delete.getKey()));
+					}
+				});
+				if (e == null)
+					throw new NotFoundException("Entity " + delete.getValue() + " with key " + delete.getKey().getId() + " not found.");
+				addDelta(deltas, delete.getValue(), -1);
 			}
+			return written;
+		}
+		Set<Key> counted = new HashSet<Key>();
+		for (Map.Entry<Key, String> delete : deletes.entrySet()) {
+			if (counter.isSharded(delete.getValue()))
+				counted.add(delete.getKey());
+		}
+		for (Key key : counted.size() > 0 ? store.get(null, counted).keySet() : Collections.<Key> emptySet())
+			addDelta(deltas, deletes.get(key), -1);
+		if (deletes.size() > 0)
+			delete(null, deletes.keySet());
+		return written;
+	}
 
-			EdmProperty prop = eet.findProperty(propName);
-			if (prop != null) {
-				if (propValue instanceof Text) {
-					propValue = ((Text) propValue).getValue();
-				} else if (propValue instanceof ShortBlob) {
-					propValue = ((ShortBlob) propValue).getBytes();
+	// the merges and updates of a change set to one entity, in order
+	private void applyOperations(Entity e, List<ChangeSet.Operation> ops) {
+		for (ChangeSet.Operation op : ops) {
+			if (op.type == ChangeSet.OperationType.UPDATE)
+				clearProperties(e);
+			applyProperties(e, typePlan(op.entitySetName), op.entity.getProperties());
+			applyLinks(e, op.entity.getLinks());
+		}
+	}
+
+	// the datastore fails a cross-group transaction touching more groups only at the commit
+	private void checkEntityGroups(List<ChangeSet.Operation> operations) {
+		Set<Key> groups = new HashSet<Key>();
+		int creates = 0;
+		for (ChangeSet.Operation op : operations) {
+			if (op.type == ChangeSet.OperationType.CREATE) {
+				creates++;
+				continue;
+			}
+			Key key = entityKey(op.entitySetName, op.entityKey);
+			while (key.getParent() != null)
+				key = key.getParent();
+			groups.add(key);
+		}
+		if (groups.size() + creates > MAX_XG_ENTITY_GROUPS)
+			throw new BadRequestException("An atomic change set can write at most " + MAX_XG_ENTITY_GROUPS + " entity groups, this one writes " + (groups.size() + creates));
+	}
+
+	/**
+	 * Reads the entity from the datastore in a transaction and hands it to the
+	 * write running in it, so the write starts from the stored entity rather
+	 * than a cached one. Preconditions on the request are checked against the
+	 * entity as read; when another writer commits first the write is retried,
+	 * so it applies to the other writer's version.
+	 */
+	private Entity writeEntity(String entitySetName, OEntityKey entityKey, EntityWrite write) {
+		Entity e = writeEntity(entityKey(entitySetName, entityKey), true, write);
+		if (e == null)
+			throw new NotFoundException("Entity " + entitySetName + " with key " + entityKey + " not found.");
+		return e;
+	}
+
+	/**
+	 * The read-modify-write of an entity, or null when it does not exist.
+	 * Entities written along with the one the request addresses, like the
+	 * targets of links, are not checked against its preconditions.
+	 */
+	private Entity writeEntity(Key key, boolean conditional, EntityWrite write) {
+		for (int attempt = 1;; attempt++) {
+			Transaction txn = datastore.beginTransaction();
+			try {
+				Entity e = store.get(txn, Collections.singletonList(key)).get(key);
+				if (e == null)
+					return null;
+				if (conditional)
+					ConditionalRequest.checkWrite(EntityVersion.etag(e));
+				write.write(txn, e);
+				txn.commit();
+				store.committed(txn);
+				running.committed(txn);
+				invalidateQueries(Collections.singletonList(key));
+				return e;
+			} catch (ConcurrentModificationException ex) {
+				if (attempt == MAX_CONDITIONAL_WRITE_ATTEMPTS)
+					throw ex;
+				LOG.fine("write of " + key + " collided, attempt " + attempt);
+			} finally {
+				if (txn.isActive())
+					txn.rollback();
+				store.discard(txn);
+				running.discard(txn);
+			}
+		}
+	}
+
+	private void put(Transaction txn, Entity e) {
+		put(txn, Collections.singletonList(e));
+	}
+
+	/**
+	 * Every entity the producer writes goes through here to get a new version.
+	 * Writes in a transaction invalidate cached queries and update running
+	 * aggregates once it committed.
+	 */
+	private void put(Transaction txn, Collection<Entity> entities) {
+		for (Entity e : entities) {
+			EntityVersion.increment(e);
+			changes.stamp(e);
+		}
+		RunningAggregates.Delta delta = running.written(txn, entities);
+		store.put(txn, entities);
+		running.apply(txn, delta);
+		if (txn == null) {
+			List<Key> keys = new ArrayList<Key>(entities.size());
+			for (Entity e : entities)
+				keys.add(e.getKey());
+			invalidateQueries(keys);
+		}
+	}
+
+	/**
+	 * Deletes of tracked kinds leave tombstones, written first when there is no
+	 * transaction, so a failed delete leaves a tombstone rather than a delete
+	 * sync clients never learn about.
+	 */
+	private void delete(Transaction txn, Collection<Key> keys) {
+		List<Entity> tombstones = changes.tombstones(keys);
+		if (tombstones.size() > 0 && txn != null)
+			datastore.put(txn, tombstones);
+		else if (tombstones.size() > 0)
+			datastore.put(tombstones);
+		RunningAggregates.Delta delta = running.deleted(txn, keys);
+		store.delete(txn, keys);
+		running.apply(txn, delta);
+		if (txn == null)
+			invalidateQueries(keys);
+	}
+
+	private void invalidateQueries(Collection<Key> keys) {
+		if (queryCache == null)
+			return;
+		Set<String> kinds = new HashSet<String>();
+		for (Key key : keys)
+			kinds.add(key.getKind());
+		queryCache.invalidate(kinds);
+	}
+
+	// the kinds a response is read from, the entity set and the targets of its $expand
+	private Set<String> readKinds(EdmEntitySet ees, QueryInfo queryInfo) {
+		Set<String> kinds = new HashSet<String>();
+		addReadKinds(ees.getName(), projection(ees, queryInfo), kinds);
+		return kinds;
+	}
+
+	private static void addReadKinds(String entitySetName, ProjectionPlan projection, Set<String> kinds) {
+		kinds.add(entitySetName);
+		for (EntityTypePlan.NavigationSlot slot : projection.getExpands())
+			addReadKinds(slot.targetSetName, projection.getChild(slot.name), kinds);
+	}
+
+	// clears the entity for a replace, keeping its version
+	private static void clearProperties(Entity e) {
+		for (String name : new ArrayList<String>(e.getProperties().keySet())) {
+			if (!name.equals(EntityVersion.PROPERTY) && !name.equals(RunningAggregates.SHADOW_PROPERTY))
+				e.removeProperty(name);
+		}
+	}
+
+	private void begin(String operation, String entitySetName) {
+		RequestMetrics.begin(sink, operation, entitySetName);
+		store.beginRequest();
+	}
+
+	private void end() {
+		store.endRequest();
+		RequestMetrics.end();
+	}
+
+	private static void addDelta(Map<String, Integer> deltas, String entitySetName, int delta) {
+		Integer value = deltas.get(entitySetName);
+		deltas.put(entitySetName, value == null ? delta : value + delta);
+	}
+
+	EntityTypePlan typePlan(String entitySetName) {
+		EntityTypePlan plan = typePlans.get(entitySetName);
+		if (plan == null)
+			throw new NotFoundException("EdmEntitySet " + entitySetName + " not found.");
+		return plan;
+	}
+
+	private EntityTypePlan typePlan(EdmEntitySet ees) {
+		return typePlan(ees.getName());
+	}
+
+	private static <T> T await(Future<T> future) {
+		return future != null ? CachedDatastore.await(future) : null;
+	}
+
+	// a page with more entities to come fails rather than ending the results without a next link
+	private static String nextSkipToken(String entitySetName, Cursor cursor, Integer remaining, int returned) {
+		if (cursor == null)
+			throw new NotImplementedException("The query of " + entitySetName + " cannot be continued on a next page");
+		return new SkipToken(cursor, remaining != null ? remaining - returned : null).toString();
+	}
+
+	private Func1<List<Entity>, List<OEntity>> converter(final EdmEntitySet ees, QueryInfo queryInfo) {
+		final ProjectionPlan projection = projection(ees, queryInfo);
+		return new Func1<List<Entity>, List<OEntity>>() {
+			public List<OEntity> apply(List<Entity> entities) {
+				return toOEntities(ees, entities, projection);
+			}
+		};
+	}
+
+	ProjectionPlan projection(EdmEntitySet ees, QueryInfo queryInfo) {
+		if (queryInfo == null)
+			return ProjectionPlan.create(typePlans, typePlan(ees), null, null);
+		return ProjectionPlan.create(typePlans, typePlan(ees), queryInfo.select, queryInfo.expand);
+	}
+
+	private List<OEntity> toOEntities(EdmEntitySet ees, List<Entity> entities, QueryInfo queryInfo) {
+		return toOEntities(ees, entities, projection(ees, queryInfo));
+	}
+
+	private List<OEntity> toOEntities(EdmEntitySet ees, List<Entity> entities, ProjectionPlan projection) {
+		EntityTypePlan plan = typePlan(ees);
+		Map<String, Map<Key, OEntity>> expanded = expand(plan, entities, projection);
+		long start = System.nanoTime();
+		List<OEntity> oentities = new ArrayList<OEntity>(entities.size());
+		for (Entity entity : entities) {
+			oentities.add(toOEntity(plan, entity, projection, expanded));
+		}
+		RequestMetrics.recordConvert(System.nanoTime() - start);
+		return oentities;
+	}
+
+	private OEntity toOEntity(EdmEntitySet ees, Entity entity, QueryInfo queryInfo) {
+		return toOEntities(ees, Collections.singletonList(entity), queryInfo).get(0);
+	}
+
+	OEntity toOEntity(EntityTypePlan plan, Entity entity, ProjectionPlan projection, Map<String, Map<Key, OEntity>> expanded) {
+		EntityTypePlan.PropertySlot[] slots = plan.getProperties();
+		EntityTypePlan.NavigationSlot[] navSlots = plan.getNavigations();
+		final List<OProperty<?>> properties = new ArrayList<OProperty<?>>(slots.length + 1);
+		final List<OLink> links = new ArrayList<OLink>(navSlots.length);
+
+		OProperty<Long> keyProperty = OProperties.int64(plan.getKeyName(), entity.getKey().getId());
+		OEntityKey entityKey = OEntityKey.create(keyProperty);
+		if (projection.isKeySelected()) {
+			properties.add(keyProperty);
+		}
+
+		for (int i = 0; i < slots.length; i++) {
+			EntityTypePlan.PropertySlot slot = slots[i];
+			Object propValue = entity.getProperty(slot.name);
+			if (propValue == null || !projection.isPropertySelected(i))
+				continue;
+			properties.add(OProperties.simple(slot.name, slot.type, slot.read.convert(propValue)));
+		}
+
+		for (int i = 0; i < navSlots.length; i++) {
+			EntityTypePlan.NavigationSlot slot = navSlots[i];
+			if (slot.isQueried()) {
+				if (projection.isLinkSelected(i))
+					links.add(OLinks.relatedEntities(slot.relationshipName, slot.name, null));
+				continue;
+			}
+			Object propValue = entity.getProperty(slot.name);
+			if (propValue == null || !projection.isLinkSelected(i))
+				continue;
+
+			List<OEntity> expandedProps = new ArrayList<OEntity>();
+			Map<Key, OEntity> expandedEntities = expanded.get(slot.name);
+			if (expandedEntities != null) {
+				for (Key key : navPropKeys(slot.multiplicity, slot.name, propValue)) {
+					OEntity expandedEntity = expandedEntities.get(key);
+					if (expandedEntity != null) {
+						expandedProps.add(expandedEntity);
+					}
 				}
-				properties.add(OProperties.simple(propName, (EdmSimpleType<?>) prop.getType(), propValue));
+			}
+			if (expandedProps.size() == 0) {
+				links.add(OLinks.relatedEntity(slot.relationshipName, slot.name, null));
 			} else {
-				EdmNavigationProperty navProp = eet.findNavigationProperty(propName);
-				if (navProp != null) {
-					List<OEntity> expandedProps = new ArrayList<OEntity>();
-					try {
-						if (queryInfo != null && queryInfo.expand != null && queryInfo.expand.size() > 0) {
-							for (EntitySimpleProperty esp : queryInfo.expand) {
-								if (esp.getPropertyName().equals(propName)) {
-									EdmEntitySet eesNavProp = metadata.getEdmEntitySet(navProp.getToRole().getRole());
-									EdmMultiplicity emNavProp = navProp.getRelationship().getEnd2().getMultiplicity();
-									if (emNavProp == EdmMultiplicity.ZERO_TO_ONE) {
-										Entity e = datastore.get((Key) propValue);
-										expandedProps.add(toOEntity(eesNavProp, e, queryInfo, propName));
-									} else if (emNavProp == EdmMultiplicity.MANY) {
-										@SuppressWarnings("unchecked")
-										Collection<Key> keys = (Collection<Key>) propValue;
-										for (Key key : keys) {
-											Entity e = datastore.get(key);
-											expandedProps.add(toOEntity(eesNavProp, e, queryInfo, propName));
-										}
-									} else {
-										throw new NotImplementedException("Property " + propName + " of type " + propValue.getClass().getName());
-									}
-								}
-							}
-						}
-					} catch (EntityNotFoundException e) {
-						e.printStackTrace();
-					}
-					if (expandedProps.size() == 0) {
-						links.add(OLinks.relatedEntity(navProp.getRelationship().getName(), propName, null));
-					} else {
-						links.add(OLinks.relatedEntitiesInline(navProp.getRelationship().getName(), propName, null, expandedProps));
+				links.add(OLinks.relatedEntitiesInline(slot.relationshipName, slot.name, null, expandedProps));
+			}
+		}
+
+		// projection and keys-only results carry no version
+		String etag = entity.hasProperty(EntityVersion.PROPERTY) ? EntityVersion.etag(entity) : null;
+		return OEntities.create(plan.getEntitySet(), plan.getEntitySet().getType(), entityKey, etag, properties, links);
+	}
+
+	/**
+	 * Entities of a key list, fetched with one batch get per chunk; keys whose
+	 * entity no longer exists are skipped. Reads one entity ahead at most, so
+	 * the position behind the last key read is where a next page starts.
+	 */
+	private class ChunkedFetch implements Iterator<Entity> {
+		private final List<Key> keys;
+		private final int chunkSize;
+		private List<Key> chunkKeys = Collections.emptyList();
+		private Map<Key, Entity> chunk;
+		private int chunkStart;
+		private int index;
+		private Entity next;
+		private int position;
+
+		ChunkedFetch(List<Key> keys, int chunkSize) {
+			this.keys = keys;
+			this.chunkSize = chunkSize;
+		}
+
+		// behind the last entity returned, not the one hasNext read ahead
+		int getPosition() {
+			return position;
+		}
+
+		public boolean hasNext() {
+			while (next == null) {
+				if (index == chunkKeys.size()) {
+					int from = chunkStart + chunkKeys.size();
+					if (from >= keys.size()) {
+						return false;
 					}
-				} else {
-					throw new NotImplementedException("Property " + propName + " of type " + propValue.getClass().getName());
+					chunkStart = from;
+					chunkKeys = keys.subList(from, Math.min(keys.size(), from + chunkSize));
+					chunk = store.get(chunkKeys);
+					index = 0;
 				}
+				next = chunk.get(chunkKeys.get(index++));
 			}
+			return true;
 		}
 
-		return OEntities.create(ees, entityKey, properties, links);
+		public Entity next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Entity entity = next;
+			next = null;
+			position = chunkStart + index;
+			return entity;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
 	}
 
-	private boolean containsProperty(List<EntitySimpleProperty> properties, String propertyName, String parentPropName) {
-		boolean containsProp = false;
-		for (EntitySimpleProperty esp : properties) {
-			if (parentPropName == null) {
-				if (esp.getPropertyName().equals("*") || esp.getPropertyName().equals(propertyName) || esp.getPropertyName().startsWith(propertyName + "/")) {
-					containsProp = true;
-					break;
-				}
-			} else {
-				if (esp.getPropertyName().equals(parentPropName) || esp.getPropertyName().equals(parentPropName + "/*") || esp.getPropertyName().equals(parentPropName + "/" + propertyName)) {
-					containsProp = true;
-					break;
+	private Map<String, Map<Key, OEntity>> expand(EntityTypePlan plan, List<Entity> entities, ProjectionPlan projection) {
+		Map<String, Map<Key, OEntity>> expanded = new HashMap<String, Map<Key, OEntity>>();
+		List<EntityTypePlan.NavigationSlot> expands = projection.getExpands();
+		if (expands.size() == 0 || entities.size() == 0) {
+			return expanded;
+		}
+
+		// gather the referenced keys of the whole page, one batch get per nav property
+		Map<String, Set<Key>> navPropKeys = new LinkedHashMap<String, Set<Key>>();
+		for (EntityTypePlan.NavigationSlot slot : expands) {
+			if (slot.isQueried())
+				throw new NotImplementedException("$expand is not supported for EdmNavigationProperty " + slot.name + " stored as " + slot.storage);
+			Set<Key> keys = new LinkedHashSet<Key>();
+			for (Entity entity : entities) {
+				Object propValue = entity.getProperty(slot.name);
+				if (propValue != null) {
+					keys.addAll(navPropKeys(slot.multiplicity, slot.name, propValue));
 				}
 			}
+			if (keys.size() > 0) {
+				navPropKeys.put(slot.name, keys);
+			}
 		}
-		return containsProp;
-	}
 
-	private void applyProperties(Entity e, List<OProperty<?>> properties) {
-		for (OProperty<?> prop : properties) {
-			EdmType type = prop.getType();
-			if (!SUPPORTED_TYPES.contains(type)) {
-				throw new NotImplementedException("EdmType not supported: " + type);
+		// issue the gets together, at most maxConcurrentRpcs in flight
+		int maxConcurrentRpcs = settings.getMaxConcurrentRpcs();
+		Map<String, Future<Map<Key, Entity>>> pending = new LinkedHashMap<String, Future<Map<Key, Entity>>>();
+		Map<String, Map<Key, Entity>> fetched = new HashMap<String, Map<Key, Entity>>();
+		for (Map.Entry<String, Set<Key>> entry : navPropKeys.entrySet()) {
+			if (pending.size() >= maxConcurrentRpcs) {
+				String oldest = pending.keySet().iterator().next();
+				fetched.put(oldest, await(pending.remove(oldest)));
 			}
+			pending.put(entry.getKey(), store.getAsync(entry.getValue()));
+		}
+		for (Map.Entry<String, Future<Map<Key, Entity>>> entry : pending.entrySet()) {
+			fetched.put(entry.getKey(), await(entry.getValue()));
+		}
 
-			Object value = prop.getValue();
-			if (type.equals(EdmSimpleType.STRING)) {
-				String sValue = (String) value;
-				if (sValue != null && sValue.length() > DataTypeUtils.MAX_STRING_PROPERTY_LENGTH) {
-					value = new Text(sValue);
-				}
-			} else if (type.equals(EdmSimpleType.BINARY)) {
-				byte[] bValue = (byte[]) value;
-				if (bValue != null) {
-					if (bValue.length > DataTypeUtils.MAX_SHORT_BLOB_PROPERTY_LENGTH) {
-						throw new RuntimeException("Bytes " + bValue.length + " exceeds the max supported length " + DataTypeUtils.MAX_SHORT_BLOB_PROPERTY_LENGTH);
-					}
-					value = new ShortBlob(bValue);
-				}
-			} else if (type.equals(EdmSimpleType.DATETIME)) {
-				LocalDateTime dValue = (LocalDateTime) value;
-				if (dValue != null) {
-					value = dValue.toDateTime().toDate(); // TODO review
+		for (Map.Entry<String, Set<Key>> entry : navPropKeys.entrySet()) {
+			String propName = entry.getKey();
+			Map<Key, Entity> fetchedEntities = fetched.get(propName);
+			List<Entity> related = new ArrayList<Entity>(fetchedEntities.size());
+			for (Key key : entry.getValue()) {
+				Entity e = fetchedEntities.get(key);
+				if (e != null) {
+					related.add(e);
 				}
 			}
-			e.setProperty(prop.getName(), value);
+
+			EdmEntitySet eesNavProp = metadata.getEdmEntitySet(plan.getNavigation(propName).targetSetName);
+			List<OEntity> oentities = toOEntities(eesNavProp, related, projection.getChild(propName));
+			Map<Key, OEntity> expandedEntities = new HashMap<Key, OEntity>();
+			for (int i = 0; i < related.size(); i++) {
+				expandedEntities.put(related.get(i).getKey(), oentities.get(i));
+			}
+			expanded.put(propName, expandedEntities);
+		}
+		return expanded;
+	}
+
+	private Collection<Key> navPropKeys(EdmNavigationProperty navProp, String propName, Object propValue) {
+		return navPropKeys(navProp.getRelationship().getEnd2().getMultiplicity(), propName, propValue);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Collection<Key> navPropKeys(EdmMultiplicity emNavProp, String propName, Object propValue) {
+		if (emNavProp == EdmMultiplicity.ZERO_TO_ONE) {
+			return Collections.singletonList((Key) propValue);
+		} else if (emNavProp == EdmMultiplicity.MANY) {
+			return (Collection<Key>) propValue;
+		}
+		throw new NotImplementedException("Property " + propName + " of type " + propValue.getClass().getName());
+	}
+
+	void applyProperties(Entity e, EntityTypePlan plan, List<OProperty<?>> properties) {
+		for (OProperty<?> prop : properties) {
+			EntityTypePlan.PropertySlot slot = plan.getProperty(prop.getName());
+			EntityTypePlan.Converter write = slot != null && slot.type.equals(prop.getType()) ? slot.write : EntityTypePlan.writeConverter(prop.getType());
+			e.setProperty(prop.getName(), write.convert(prop.getValue()));
 		}
 	}
 
@@ -303,6 +1010,9 @@ public class Producer implements ODataProducer {
 				String uri = link.getHref();
 				String entitySetName = e.getKind();
 				String key = uri.substring(uri.lastIndexOf('('));
+				EntityTypePlan.NavigationSlot slot = typePlan(entitySetName).getNavigation(link.getRelation());
+				if (slot != null && slot.isQueried())
+					continue;
 				EdmEntitySet ees = metadata.getEdmEntitySet(entitySetName);
 				EdmEntityType eet = ees.getType();
 				EdmNavigationProperty enp = eet.findNavigationProperty(link.getRelation());
@@ -319,80 +1029,160 @@ public class Producer implements ODataProducer {
 		}
 	}
 
-	private Entity findEntity(String entitySetName, OEntityKey entityKey) {
+	/**
+	 * Adds the links of navigation properties stored outside of the entity,
+	 * once the entity is written and its key is complete.
+	 */
+	private void addLinks(Entity e, List<OLink> links) {
+		for (OLink link : links) {
+			EntityTypePlan.NavigationSlot slot = typePlan(e.getKind()).getNavigation(link.getRelation());
+			if (slot == null || !slot.isQueried())
+				continue;
+			try {
+				String uri = link.getHref();
+				Entity target = findEntity(slot.targetSetName, OEntityKey.parse(uri.substring(uri.lastIndexOf('('))));
+				addLink(e.getKey(), slot, target);
+			} catch (Exception ex) {
+				LOG.log(Level.WARNING, "link " + link.getRelation() + " of " + e.getKey() + " to " + link.getHref() + " not added", ex);
+			}
+		}
+	}
+
+	/**
+	 * Foreign keys are set and cleared in a transaction on the target as
+	 * stored, so the link does not overwrite a concurrent write of the target.
+	 */
+	private void addLink(final Key source, final EntityTypePlan.NavigationSlot slot, Entity target) {
+		if (slot.storage.equals(ProducerSettings.FOREIGN_KEY)) {
+			Entity e = writeEntity(target.getKey(), false, new EntityWrite() {
+				public void write(Transaction txn, Entity e) {
+					e.setProperty(slot.foreignKey, source);
+					put(txn, e);
+				}
+			});
+			if (e == null)
+				throw new NotFoundException("Entity " + slot.targetSetName + " with key " + target.getKey().getId() + " not found.");
+		} else {
+			links.add(source, slot, target.getKey());
+		}
+	}
+
+	private void removeLink(final Key source, final EntityTypePlan.NavigationSlot slot, Key target) {
+		if (slot.storage.equals(ProducerSettings.FOREIGN_KEY)) {
+			writeEntity(target, false, new EntityWrite() {
+				public void write(Transaction txn, Entity e) {
+					if (source.equals(e.getProperty(slot.foreignKey))) {
+						e.removeProperty(slot.foreignKey);
+						put(txn, e);
+					}
+				}
+			});
+		} else {
+			links.remove(source, slot, target);
+		}
+	}
+
+	private static Filter foreignKeyScope(EntityTypePlan.NavigationSlot slot, Key source) {
+		return new FilterPredicate(slot.foreignKey, FilterOperator.EQUAL, source);
+	}
+
+	private static String scopeName(Key source, EntityTypePlan.NavigationSlot slot) {
+		return KeyFactory.keyToString(source) + "/" + slot.name;
+	}
+
+	private Key entityKey(String entitySetName, OEntityKey entityKey) {
 		EdmEntitySet ees = metadata.getEdmEntitySet(entitySetName);
 		String kind = ees.getType().getName();
 
 		long id = Long.parseLong(entityKey.asSingleValue().toString());
+		return KeyFactory.createKey(kind, id);
+	}
+
+	private Entity findEntity(String entitySetName, OEntityKey entityKey) {
 		try {
-			return datastore.get(KeyFactory.createKey(kind, id));
+			return store.get(entityKey(entitySetName, entityKey));
 		} catch (EntityNotFoundException e) {
 			throw new NotFoundException("Entity " + entitySetName + " with key " + entityKey + " not found.");
 		}
 	}
 
-	private void applySort(Query q, List<OrderByExpression> orderBy) {
-		for (OrderByExpression ob : orderBy) {
-			if (!(ob.getExpression() instanceof EntitySimpleProperty)) {
-				throw new NotImplementedException("Appengine only supports simple property expressions");
-			}
-			String propName = ((EntitySimpleProperty) ob.getExpression()).getPropertyName();
-			q.addSort(propName, ob.getDirection() == Direction.ASCENDING ? SortDirection.ASCENDING : SortDirection.DESCENDING);
-		}
+	private Query createQuery(String entitySetName, FilterPlanner.Plan plan, Filter scope) {
+		Query q = new Query(entitySetName);
+		if (plan.getFilter() != null && scope != null)
+			q.setFilter(CompositeFilterOperator.and(scope, plan.getFilter()));
+		else if (plan.getFilter() != null)
+			q.setFilter(plan.getFilter());
+		else if (scope != null)
+			q.setFilter(scope);
+		return q;
 	}
 
-	private void applyFilter(Query q, BoolCommonExpression filter) {
-		// appengine supports simple filter predicates (name op value)
-
-		// one filter
-		if (filter instanceof EqExpression)
-			applyFilter(q, (EqExpression) filter, FilterOperator.EQUAL);
-		else if (filter instanceof NeExpression)
-			applyFilter(q, (NeExpression) filter, FilterOperator.NOT_EQUAL);
-		else if (filter instanceof GtExpression)
-			applyFilter(q, (GtExpression) filter, FilterOperator.GREATER_THAN);
-		else if (filter instanceof GeExpression)
-			applyFilter(q, (GeExpression) filter, FilterOperator.GREATER_THAN_OR_EQUAL);
-		else if (filter instanceof LtExpression)
-			applyFilter(q, (LtExpression) filter, FilterOperator.LESS_THAN);
-		else if (filter instanceof LeExpression)
-			applyFilter(q, (LeExpression) filter, FilterOperator.LESS_THAN_OR_EQUAL);
-
-		// and filter
-		else if (filter instanceof AndExpression) {
-			AndExpression e = (AndExpression) filter;
-			applyFilter(q, e.getLHS());
-			applyFilter(q, e.getRHS());
+	private boolean applyKeysOnly(Query q, EdmEntitySet ees, QueryInfo queryInfo) {
+		if (queryInfo.select == null || queryInfo.select.size() == 0)
+			return false;
+		if (queryInfo.expand != null && queryInfo.expand.size() > 0)
+			return false;
+		String entityKeyName = ees.getType().getKeys().get(0);
+		for (EntitySimpleProperty esp : queryInfo.select) {
+			if (!esp.getPropertyName().equals(entityKeyName))
+				return false;
 		}
-
-		else
-			throw new NotImplementedException("Appengine only supports simple property expressions");
+		q.setKeysOnly();
+		return true;
 	}
 
-	private void applyFilter(Query q, BinaryCommonExpression e, FilterOperator op) {
-		if (!(e.getLHS() instanceof EntitySimpleProperty))
-			throw new NotImplementedException("Appengine only supports simple property expressions");
-		if (!(e.getRHS() instanceof LiteralExpression))
-			throw new NotImplementedException("Appengine only supports simple property expressions");
-
-		EntitySimpleProperty lhs = (EntitySimpleProperty) e.getLHS();
-		LiteralExpression rhs = (LiteralExpression) e.getRHS();
+	private boolean applyProjection(Query q, EdmEntitySet ees, QueryInfo queryInfo) {
+		if (queryInfo.select == null || queryInfo.select.size() == 0)
+			return false;
+		if (queryInfo.expand != null && queryInfo.expand.size() > 0)
+			return false;
+		Set<String> indexedProperties = settings.getIndexedProperties(ees.getName());
+		if (indexedProperties == null)
+			return false;
+
+		// only indexed simple properties can be projected, and not the ones filtered by equality
+		EntityTypePlan plan = typePlan(ees);
+		String entityKeyName = plan.getKeyName();
+		Set<String> equalityProperties = new HashSet<String>();
+		collectEqualityProperties(q.getFilter(), equalityProperties);
+		Map<String, PropertyProjection> projections = new LinkedHashMap<String, PropertyProjection>();
+		for (EntitySimpleProperty esp : queryInfo.select) {
+			String propName = esp.getPropertyName();
+			if (propName.equals(entityKeyName))
+				continue;
+			EntityTypePlan.PropertySlot slot = plan.getProperty(propName);
+			Class<?> type = slot != null ? slot.projectionType : null;
+			if (type == null || !indexedProperties.contains(propName) || equalityProperties.contains(propName))
+				return false;
+			projections.put(propName, new PropertyProjection(propName, type));
+		}
+		if (projections.size() == 0)
+			return false;
 
-		String propName = lhs.getPropertyName();
-		Object propValue = Expression.literalValue(rhs);
+		for (PropertyProjection projection : projections.values())
+			q.addProjection(projection);
+		return true;
+	}
 
-		// Support for filtering navigation properties by key
-		if (propName.contains("/")) {
-			propName = propName.substring(0, propName.indexOf("/"));
-			EdmEntitySet ees = metadata.getEdmEntitySet(q.getKind());
-			EdmEntityType eet = ees.getType();
-			EdmNavigationProperty enp = eet.findNavigationProperty(propName);
-			long id = Long.parseLong(propValue.toString());
-			propValue = KeyFactory.createKey(enp.getToRole().getRole(), id);
+	static void collectEqualityProperties(Filter filter, Set<String> propNames) {
+		if (filter instanceof FilterPredicate) {
+			FilterPredicate predicate = (FilterPredicate) filter;
+			if (predicate.getOperator() == FilterOperator.EQUAL || predicate.getOperator() == FilterOperator.IN)
+				propNames.add(predicate.getPropertyName());
+		} else if (filter instanceof CompositeFilter) {
+			for (Filter subFilter : ((CompositeFilter) filter).getSubFilters())
+				collectEqualityProperties(subFilter, propNames);
 		}
+	}
 
-		Filter filter = new FilterPredicate(propName, op, propValue);
-		q.setFilter(filter);
+	private void applySort(Query q, List<OrderByExpression> orderBy) {
+		for (OrderByExpression ob : orderBy) {
+			if (!(ob.getExpression() instanceof EntitySimpleProperty)) {
+				throw new NotImplementedException("Appengine only supports simple property expressions");
+			}
+			String propName = ((EntitySimpleProperty) ob.getExpression()).getPropertyName();
+			q.addSort(propName, ob.getDirection() == Direction.ASCENDING ? SortDirection.ASCENDING : SortDirection.DESCENDING);
+		}
 	}
 
 	@Override
@@ -402,52 +1192,166 @@ public class Producer implements ODataProducer {
 
 	@Override
 	public BaseResponse getNavProperty(String entitySetName, OEntityKey entityKey, String navProp, QueryInfo queryInfo) {
-		final EdmEntitySet ees = metadata.getEdmEntitySet(entitySetName);
-		EdmEntityType eet = ees.getType();
-		EdmNavigationProperty enp = eet.findNavigationProperty(navProp);
-		if (enp == null) {
-			throw new NotFoundException("EdmNavigationProperty " + navProp + " not found.");
-		}
-		final EdmEntitySet eesNavProp = metadata.getEdmEntitySet(enp.getToRole().getRole());
-		EdmMultiplicity relMultiplicity = enp.getRelationship().getEnd2().getMultiplicity();
-
-		Entity entity = findEntity(entitySetName, entityKey);
-		Object navPropValue = entity.getProperties().get(navProp);
-		if (navPropValue == null) {
-			return Responses.entities(new ArrayList<OEntity>(), eesNavProp, 0, null);
-		}
-		if (relMultiplicity == EdmMultiplicity.ZERO_TO_ONE) {
-			try {
-				Entity relatedEntity = datastore.get((Key) navPropValue);
-				return Responses.entity(toOEntity(eesNavProp, relatedEntity, queryInfo, null));
-			} catch (EntityNotFoundException exception) {
-				exception.printStackTrace();
-				throw new NotImplementedException();
+		begin("getNavProperty", entitySetName);
+		try {
+			EdmEntitySet ees = metadata.getEdmEntitySet(entitySetName);
+			EdmEntityType eet = ees.getType();
+			EdmNavigationProperty enp = eet.findNavigationProperty(navProp);
+			if (enp == null) {
+				throw new NotFoundException("EdmNavigationProperty " + navProp + " not found.");
 			}
-		} else if (relMultiplicity == EdmMultiplicity.MANY) {
-			try {
+			EdmEntitySet eesNavProp = metadata.getEdmEntitySet(enp.getToRole().getRole());
+			EdmMultiplicity relMultiplicity = enp.getRelationship().getEnd2().getMultiplicity();
+
+			Entity entity = findEntity(entitySetName, entityKey);
+			EntityTypePlan.NavigationSlot slot = typePlan(entitySetName).getNavigation(navProp);
+			if (slot.storage.equals(ProducerSettings.FOREIGN_KEY)) {
+				return queryEntities(eesNavProp, queryInfo, foreignKeyScope(slot, entity.getKey()), scopeName(entity.getKey(), slot));
+			} else if (slot.storage.equals(ProducerSettings.LINK_ENTITIES)) {
+				return getRelatedEntities(eesNavProp, links.targets(entity.getKey(), slot), queryInfo);
+			}
+			Object navPropValue = entity.getProperties().get(navProp);
+			if (navPropValue == null) {
+				return Responses.entities(new ArrayList<OEntity>(), eesNavProp, 0, null);
+			}
+			if (relMultiplicity == EdmMultiplicity.ZERO_TO_ONE) {
+				try {
+					Entity relatedEntity = store.get((Key) navPropValue);
+					return Responses.entity(toOEntity(eesNavProp, relatedEntity, queryInfo));
+				} catch (EntityNotFoundException exception) {
+					LOG.log(Level.WARNING, "getNavProperty " + entitySetName + "(" + entityKey + ")/" + navProp + ": related entity not found", exception);
+					throw new NotImplementedException();
+				}
+			} else if (relMultiplicity == EdmMultiplicity.MANY) {
 				@SuppressWarnings("unchecked")
-				Collection<Key> relatedKeys = (Collection<Key>) navPropValue;
-				Map<Key, Entity> relatedEntities = datastore.get(relatedKeys);
-				final QueryInfo qi = queryInfo;
-
-				Iterable<Entity> iter = relatedEntities.values();
-				List<OEntity> entities = Enumerable.create(iter).select(new Func1<Entity, OEntity>() {
-					public OEntity apply(Entity input) {
-						return toOEntity(eesNavProp, input, qi, null);
+				List<Key> relatedKeys = new ArrayList<Key>((Collection<Key>) navPropValue);
+				return getRelatedEntities(eesNavProp, relatedKeys, queryInfo);
+			} else {
+				throw new NotImplementedException();
+			}
+		} finally {
+			end();
+		}
+	}
+
+	/**
+	 * A page of the entities of a MANY navigation property, in the order of
+	 * the stored keys. Without $filter and $orderby the key list is sliced and
+	 * only the page is fetched, continuing at a key offset. A $filter alone is
+	 * evaluated on the keys fetched chunk by chunk up to the end of the page.
+	 * $orderby, or $inlinecount with a $filter, reads all the targets chunk by
+	 * chunk but only keeps the entities up to the end of the page; the next
+	 * page starts at an offset into the sorted matches.
+	 */
+	private EntitiesResponse getRelatedEntities(EdmEntitySet ees, List<Key> keys, QueryInfo queryInfo) {
+		String entitySetName = ees.getName();
+		SkipToken skipToken = queryInfo.skipToken != null ? SkipToken.parse(queryInfo.skipToken) : null;
+		if (skipToken != null && skipToken.getOffset() == null)
+			throw new BadRequestException("Invalid $skiptoken " + queryInfo.skipToken);
+		final Integer remaining = skipToken != null ? skipToken.getRemaining() : queryInfo.top;
+		Integer maxPageSize = settings.getMaxPageSize(entitySetName);
+		final boolean paged = maxPageSize != null && (remaining == null || remaining > maxPageSize);
+		final Integer limit = paged ? maxPageSize : remaining;
+		Integer streamingChunkSize = settings.getStreamingChunkSize(entitySetName);
+		int chunkSize = streamingChunkSize != null ? streamingChunkSize : RELATED_CHUNK_SIZE;
+		boolean sorted = queryInfo.orderBy != null && queryInfo.orderBy.size() > 0;
+		boolean allPages = queryInfo.inlineCount == InlineCount.ALLPAGES;
+
+		if (queryInfo.filter == null && !sorted) {
+			Integer inlineCount = allPages ? keys.size() : null;
+			int start = Math.min(keys.size(), skipToken != null ? skipToken.getOffset() : queryInfo.skip != null ? queryInfo.skip : 0);
+			int end = limit != null ? Math.min(keys.size(), start + Math.max(limit, 0)) : keys.size();
+			final String nextSkipToken = paged && end < keys.size() ? new SkipToken(end, remaining != null ? remaining - (end - start) : null).toString() : null;
+			List<Key> page = keys.subList(start, end);
+			if (streamingChunkSize != null) {
+				return new StreamingEntitiesResponse(ees, inlineCount, new ChunkedFetch(page, chunkSize), chunkSize, converter(ees, queryInfo), new Func1<Integer, String>() {
+					public String apply(Integer returned) {
+						return nextSkipToken;
 					}
-				}).toList();
+				});
+			}
+			Map<Key, Entity> fetched = store.get(page);
+			List<Entity> entities = new ArrayList<Entity>(fetched.size());
+			for (Key key : page) {
+				Entity entity = fetched.get(key);
+				if (entity != null)
+					entities.add(entity);
+			}
+			return Responses.entities(toOEntities(ees, entities, queryInfo), ees, inlineCount, nextSkipToken);
+		}
 
-				Integer inlineCount = queryInfo.inlineCount == InlineCount.ALLPAGES ? entities.size() : null;
+		EntityFilter filter = queryInfo.filter != null ? new EntityFilter(Collections.singletonList(queryInfo.filter)) : null;
+		if (!sorted && !allPages) {
+			final int offset = skipToken != null ? Math.min(keys.size(), skipToken.getOffset()) : 0;
+			int skip = skipToken == null && queryInfo.skip != null ? queryInfo.skip : 0;
+			final ChunkedFetch source = new ChunkedFetch(keys.subList(offset, keys.size()), chunkSize);
+			final EntityFilter.Matches matches = filter.apply(source, skip, limit, settings.getResidualScanLimit(entitySetName));
+			Func1<Integer, String> skipTokenFactory = new Func1<Integer, String>() {
+				public String apply(Integer returned) {
+					boolean more = (paged && returned.equals(limit)) || matches.isTruncated();
+					return more ? new SkipToken(offset + source.getPosition(), remaining != null ? remaining - returned : null).toString() : null;
+				}
+			};
+			if (streamingChunkSize != null)
+				return new StreamingEntitiesResponse(ees, null, matches, chunkSize, converter(ees, queryInfo), skipTokenFactory);
+			List<Entity> entities = new ArrayList<Entity>();
+			while (matches.hasNext())
+				entities.add(matches.next());
+			return Responses.entities(toOEntities(ees, entities, queryInfo), ees, null, skipTokenFactory.apply(entities.size()));
+		}
 
-				return Responses.entities(entities, eesNavProp, inlineCount, null);
-			} catch (Exception exception) {
-				exception.printStackTrace();
-				throw new NotImplementedException();
+		if (!sorted) {
+			// counting the matches reads every target, the page keeps continuing at a key offset
+			int offset = skipToken != null ? skipToken.getOffset() : 0;
+			int skip = skipToken == null && queryInfo.skip != null ? queryInfo.skip : 0;
+			List<Entity> page = new ArrayList<Entity>();
+			int matched = 0;
+			int skipped = 0;
+			Integer nextOffset = null;
+			boolean more = false;
+			ChunkedFetch source = new ChunkedFetch(keys, chunkSize);
+			while (source.hasNext()) {
+				Entity entity = source.next();
+				if (!filter.matches(entity))
+					continue;
+				matched++;
+				if (nextOffset != null)
+					more = true;
+				else if (source.getPosition() <= offset)
+					continue;
+				else if (skipped < skip)
+					skipped++;
+				else if (limit == null || page.size() < limit) {
+					page.add(entity);
+					if (limit != null && page.size() == limit)
+						nextOffset = source.getPosition();
+				}
 			}
-		} else {
-			throw new NotImplementedException();
+			String nextSkipToken = paged && more ? new SkipToken(nextOffset, remaining != null ? remaining - page.size() : null).toString() : null;
+			return Responses.entities(toOEntities(ees, page, queryInfo), ees, matched, nextSkipToken);
 		}
+
+		// only the entities up to the end of the page are kept, the greatest one is evicted first
+		int start = skipToken != null ? skipToken.getOffset() : queryInfo.skip != null ? queryInfo.skip : 0;
+		Integer keep = limit != null ? start + Math.max(limit, 0) : null;
+		EntityOrdering ordering = new EntityOrdering(queryInfo.orderBy);
+		PriorityQueue<Entity> greatestFirst = new PriorityQueue<Entity>(11, Collections.reverseOrder(ordering));
+		int matched = 0;
+		ChunkedFetch source = new ChunkedFetch(keys, chunkSize);
+		while (source.hasNext()) {
+			Entity entity = source.next();
+			if (filter != null && !filter.matches(entity))
+				continue;
+			matched++;
+			greatestFirst.add(entity);
+			if (keep != null && greatestFirst.size() > keep)
+				greatestFirst.poll();
+		}
+		List<Entity> kept = new ArrayList<Entity>(greatestFirst);
+		Collections.sort(kept, ordering);
+		List<Entity> page = kept.subList(Math.min(start, kept.size()), kept.size());
+		String nextSkipToken = paged && matched > start + page.size() ? new SkipToken(start + page.size(), remaining != null ? remaining - page.size() : null).toString() : null;
+		return Responses.entities(toOEntities(ees, page, queryInfo), ees, allPages ? matched : null, nextSkipToken);
 	}
 
 	@Override
@@ -457,16 +1361,46 @@ public class Producer implements ODataProducer {
 
 	@Override
 	public EntityIdResponse getLinks(OEntityId sourceEntity, String targetNavProp) {
-		BaseResponse r = getNavProperty(sourceEntity.getEntitySetName(), sourceEntity.getEntityKey(), targetNavProp, null);
-		if (r instanceof EntitiesResponse) {
-			EntitiesResponse er = (EntitiesResponse) r;
-			return Responses.multipleIds(er.getEntities());
-		}
-		if (r instanceof EntityResponse) {
-			EntityResponse er = (EntityResponse) r;
-			return Responses.singleId(er.getEntity());
+		begin("getLinks", sourceEntity.getEntitySetName());
+		try {
+			EdmEntitySet ees = metadata.getEdmEntitySet(sourceEntity.getEntitySetName());
+			EdmNavigationProperty enp = ees.getType().findNavigationProperty(targetNavProp);
+			if (enp == null) {
+				throw new NotFoundException("EdmNavigationProperty " + targetNavProp + " of entity " + sourceEntity + " not found.");
+			}
+			String targetEntitySetName = enp.getToRole().getRole();
+
+			// the links are the keys stored on the source entity, the targets are not fetched
+			Entity entity = findEntity(sourceEntity.getEntitySetName(), sourceEntity.getEntityKey());
+			EntityTypePlan.NavigationSlot slot = typePlan(sourceEntity.getEntitySetName()).getNavigation(targetNavProp);
+			List<OEntityId> entityIds = new ArrayList<OEntityId>();
+			if (slot.isQueried()) {
+				Iterable<Key> targets;
+				if (slot.storage.equals(ProducerSettings.FOREIGN_KEY)) {
+					List<Key> keys = new ArrayList<Key>();
+					for (Entity target : datastore.prepare(new Query(targetEntitySetName).setFilter(foreignKeyScope(slot, entity.getKey())).setKeysOnly()).asIterable())
+						keys.add(target.getKey());
+					targets = keys;
+				} else {
+					targets = links.targets(entity.getKey(), slot);
+				}
+				for (Key key : targets)
+					entityIds.add(OEntityIds.create(targetEntitySetName, key.getId()));
+				return Responses.multipleIds(entityIds);
+			}
+			Object navPropValue = entity.getProperty(targetNavProp);
+			if (navPropValue != null) {
+				for (Key key : navPropKeys(enp, targetNavProp, navPropValue)) {
+					entityIds.add(OEntityIds.create(targetEntitySetName, key.getId()));
+				}
+				if (enp.getRelationship().getEnd2().getMultiplicity() == EdmMultiplicity.ZERO_TO_ONE) {
+					return Responses.singleId(entityIds.get(0));
+				}
+			}
+			return Responses.multipleIds(entityIds);
+		} finally {
+			end();
 		}
-		throw new NotFoundException("EdmNavigationProperty " + targetNavProp + " of entity " + sourceEntity + " not found.");
 	}
 
 	@Override
@@ -475,39 +1409,62 @@ public class Producer implements ODataProducer {
 	}
 
 	@Override
-	public void updateLink(OEntityId sourceEntity, String targetNavProp, OEntityKey oldTargetEntityKey, OEntityId newTargetEntity) {
-		Entity entity = findEntity(sourceEntity.getEntitySetName(), sourceEntity.getEntityKey());
-		EdmEntitySet ees = metadata.getEdmEntitySet(sourceEntity.getEntitySetName());
-		String targetEntityKind = ees.getType().findNavigationProperty(targetNavProp).getToRole().getRole();
+	public void updateLink(OEntityId sourceEntity, final String targetNavProp, final OEntityKey oldTargetEntityKey, OEntityId newTargetEntity) {
+		begin("updateLink", sourceEntity.getEntitySetName());
+		try {
+			EdmEntitySet ees = metadata.getEdmEntitySet(sourceEntity.getEntitySetName());
+			final String targetEntityKind = ees.getType().findNavigationProperty(targetNavProp).getToRole().getRole();
 
-		Entity newEntity = null;
-		if (newTargetEntity != null) {
-			newEntity = findEntity(newTargetEntity.getEntitySetName(), newTargetEntity.getEntityKey());
-			if (!newEntity.getKind().equals(targetEntityKind)) {
-				throw new NotImplementedException("EdmNavigationProperty " + targetNavProp + " is not of expected kind. Expecting " + targetEntityKind + ", got " + newEntity.getKind() + ".");
+			Entity newEntity = null;
+			if (newTargetEntity != null) {
+				newEntity = findEntity(newTargetEntity.getEntitySetName(), newTargetEntity.getEntityKey());
+				if (!newEntity.getKind().equals(targetEntityKind)) {
+					throw new NotImplementedException("EdmNavigationProperty " + targetNavProp + " is not of expected kind. Expecting " + targetEntityKind + ", got " + newEntity.getKind() + ".");
+				}
 			}
-		}
 
-		EdmMultiplicity multiplicity = ees.getType().findNavigationProperty(targetNavProp).getToRole().getMultiplicity();
-		if (multiplicity == EdmMultiplicity.ZERO_TO_ONE) {
-			entity.setProperty(targetNavProp, newEntity != null ? newEntity.getKey() : null);
-		} else {
-			@SuppressWarnings("unchecked")
-			Collection<Key> keys = (Collection<Key>) entity.getProperty(targetNavProp);
-			if (keys == null) {
-				keys = new ArrayList<Key>();
-			}
-			if (oldTargetEntityKey != null) {
-				long id = Long.parseLong(oldTargetEntityKey.asSingleValue().toString());
-				Key oldTargetKey = KeyFactory.createKey(targetEntityKind, id);
-				keys.remove(oldTargetKey);
-			}
-			if (newTargetEntity != null) {
-				keys.add(newEntity.getKey());
+			EntityTypePlan.NavigationSlot slot = typePlan(sourceEntity.getEntitySetName()).getNavigation(targetNavProp);
+			if (slot.isQueried()) {
+				// one write per link, the source entity stays as it is and its version does not change
+				if (ConditionalRequest.hasPreconditions())
+					throw new BadRequestException("If-Match and If-None-Match do not apply to the links of " + sourceEntity.getEntitySetName() + "." + targetNavProp + ", they are stored outside of the entity");
+				Entity entity = findEntity(sourceEntity.getEntitySetName(), sourceEntity.getEntityKey());
+				if (oldTargetEntityKey != null) {
+					long id = Long.parseLong(oldTargetEntityKey.asSingleValue().toString());
+					removeLink(entity.getKey(), slot, KeyFactory.createKey(targetEntityKind, id));
+				}
+				if (newEntity != null)
+					addLink(entity.getKey(), slot, newEntity);
+				return;
 			}
-			entity.setProperty(targetNavProp, keys);
+
+			// the key list is edited as stored, not as cached
+			final EdmMultiplicity multiplicity = ees.getType().findNavigationProperty(targetNavProp).getToRole().getMultiplicity();
+			final Key newTargetKey = newEntity != null ? newEntity.getKey() : null;
+			Entity e = writeEntity(sourceEntity.getEntitySetName(), sourceEntity.getEntityKey(), new EntityWrite() {
+				public void write(Transaction txn, Entity e) {
+					if (multiplicity == EdmMultiplicity.ZERO_TO_ONE) {
+						e.setProperty(targetNavProp, newTargetKey);
+					} else {
+						@SuppressWarnings("unchecked")
+						Collection<Key> stored = (Collection<Key>) e.getProperty(targetNavProp);
+						List<Key> keys = stored != null ? new ArrayList<Key>(stored) : new ArrayList<Key>();
+						if (oldTargetEntityKey != null) {
+							long id = Long.parseLong(oldTargetEntityKey.asSingleValue().toString());
+							keys.remove(KeyFactory.createKey(targetEntityKind, id));
+						}
+						if (newTargetKey != null) {
+							keys.add(newTargetKey);
+						}
+						e.setProperty(targetNavProp, keys);
+					}
+					put(txn, e);
+				}
+			});
+			ConditionalRequest.setEntityTag(EntityVersion.etag(e));
+		} finally {
+			end();
 		}
-		datastore.put(entity);
 	}
 
 	@Override
@@ -516,18 +1473,153 @@ public class Producer implements ODataProducer {
 	}
 
 	@Override
-	public BaseResponse callFunction(EdmFunctionImport name, Map<String, OFunctionParameter> params, QueryInfo queryInfo) {
-		throw new NotImplementedException();
+	public BaseResponse callFunction(EdmFunctionImport function, Map<String, OFunctionParameter> params, QueryInfo queryInfo) {
+		EdmEntitySet ees = function.getEntitySet();
+		String aggregatedSetName = aggregator.getEntitySetName(function);
+		begin("callFunction", ees != null ? ees.getName() : aggregatedSetName);
+		try {
+			if (aggregatedSetName != null)
+				return aggregate(function, metadata.getEdmEntitySet(aggregatedSetName), params, queryInfo);
+			if (function.getName().equals(ChangeTracker.TOKEN_FUNCTION))
+				return Responses.simple(EdmSimpleType.STRING, function.getName(), changes.newToken());
+			String token = stringParameter(params, ChangeTracker.TOKEN_PARAMETER);
+			if (ChangeTracker.isChangesFunction(function))
+				return entityCollection(function, getChanges(ees, token, queryInfo));
+			if (ChangeTracker.isDeletesFunction(function))
+				return entityCollection(function, getDeletes(ees, token, queryInfo));
+			throw new NotImplementedException("EdmFunctionImport " + function.getName() + " is not supported");
+		} finally {
+			end();
+		}
+	}
+
+	/**
+	 * The query of getEntities restricted to the entities changed since the
+	 * token, in the order they changed; all entities without a token.
+	 */
+	private EntitiesResponse getChanges(EdmEntitySet ees, String token, QueryInfo queryInfo) {
+		if (queryInfo.filter != null || (queryInfo.orderBy != null && queryInfo.orderBy.size() > 0))
+			throw new BadRequestException("$filter and $orderby are not supported for the changes of " + ees.getName());
+		if (token == null)
+			return queryEntities(ees, queryInfo, null, null);
+		return queryEntities(ees, queryInfo, changes.changedSince(ees.getName(), token), ChangeTracker.PROPERTY + token);
+	}
+
+	/**
+	 * The entities deleted since the token, with their key only.
+	 */
+	private EntitiesResponse getDeletes(EdmEntitySet ees, String token, QueryInfo queryInfo) {
+		if (token == null)
+			throw new BadRequestException(ChangeTracker.TOKEN_PARAMETER + " is required for the deletes of " + ees.getName());
+		SkipToken skipToken = queryInfo.skipToken != null ? SkipToken.parse(queryInfo.skipToken) : null;
+		if (skipToken != null && skipToken.getCursor() == null)
+			throw new BadRequestException("Invalid $skiptoken " + queryInfo.skipToken);
+		Integer maxPageSize = settings.getMaxPageSize(ees.getName());
+		FetchOptions options = FetchOptions.Builder.withDefaults();
+		if (maxPageSize != null)
+			options.limit(maxPageSize);
+		if (skipToken != null)
+			options.startCursor(skipToken.getCursor());
+		QueryResultList<Entity> tombstones = datastore.prepare(changes.deletedSince(ees.getName(), token)).asQueryResultList(options);
+
+		String keyName = typePlan(ees).getKeyName();
+		List<OEntity> entities = new ArrayList<OEntity>(tombstones.size());
+		for (Entity tombstone : tombstones) {
+			OProperty<Long> keyProperty = OProperties.int64(keyName, tombstone.getKey().getParent().getId());
+			entities.add(OEntities.create(ees, ees.getType(), OEntityKey.create(keyProperty), Collections.<OProperty<?>> singletonList(keyProperty), Collections.<OLink> emptyList()));
+		}
+		String nextSkipToken = maxPageSize != null && tombstones.size() == maxPageSize ? nextSkipToken(ees.getName(), tombstones.getCursor(), null, tombstones.size()) : null;
+		return Responses.entities(entities, ees, null, nextSkipToken);
+	}
+
+	/**
+	 * The Aggregate function of the set; the part of $filter the datastore
+	 * answers narrows the query, the rest is evaluated on the entities read.
+	 */
+	private CollectionResponse<?> aggregate(EdmFunctionImport function, EdmEntitySet ees, Map<String, OFunctionParameter> params, QueryInfo queryInfo) {
+		BoolCommonExpression filter = queryInfo != null ? queryInfo.filter : null;
+		FilterPlanner.Plan plan = planner.plan(ees, filter, null, false);
+		Query q = filter != null ? createQuery(ees.getName(), plan, null) : null;
+		return aggregator.aggregate(function, typePlan(ees), stringParameter(params, Aggregator.AGGREGATE_PARAMETER), stringParameter(params, Aggregator.GROUP_BY_PARAMETER), q, plan.getResidual());
+	}
+
+	// function results are written as collections, entities ones as a feed
+	private static CollectionResponse<?> entityCollection(EdmFunctionImport function, EntitiesResponse response) {
+		OCollection.Builder<OEntity> collection = OCollections.newBuilder(response.getEntitySet().getType());
+		for (OEntity entity : response.getEntities())
+			collection.add(entity);
+		return Responses.collection(collection.build(), response.getEntitySet(), response.getInlineCount(), response.getSkipToken(), function.getName());
+	}
+
+	private static String stringParameter(Map<String, OFunctionParameter> params, String name) {
+		OFunctionParameter param = params != null ? params.get(name) : null;
+		if (param == null || param.getValue() == null)
+			return null;
+		Object value = param.getValue() instanceof OSimpleObject ? ((OSimpleObject<?>) param.getValue()).getValue() : param.getValue();
+		return value != null ? value.toString() : null;
 	}
 
 	@Override
-	public CountResponse getEntitiesCount(String arg0, QueryInfo arg1) {
-		throw new NotImplementedException();
+	public CountResponse getEntitiesCount(String entitySetName, QueryInfo queryInfo) {
+		begin("getEntitiesCount", entitySetName);
+		try {
+			EdmEntitySet ees = metadata.getEdmEntitySet(entitySetName);
+			FilterPlanner.Plan plan = planner.plan(ees, queryInfo.filter, null, false);
+			int count = counter.count(entitySetName, null, createQuery(entitySetName, plan, null), queryInfo.filter, plan.getResidual());
+			return Responses.count(applyPaging(count, queryInfo));
+		} finally {
+			end();
+		}
 	}
 
 	@Override
-	public CountResponse getNavPropertyCount(String arg0, OEntityKey arg1, String arg2, QueryInfo arg3) {
-		throw new NotImplementedException();
+	public CountResponse getNavPropertyCount(String entitySetName, OEntityKey entityKey, String navProp, QueryInfo queryInfo) {
+		begin("getNavPropertyCount", entitySetName);
+		try {
+			EdmEntitySet ees = metadata.getEdmEntitySet(entitySetName);
+			EdmNavigationProperty enp = ees.getType().findNavigationProperty(navProp);
+			if (enp == null) {
+				throw new NotFoundException("EdmNavigationProperty " + navProp + " not found.");
+			}
+			EntityTypePlan.NavigationSlot slot = typePlan(entitySetName).getNavigation(navProp);
+			if (slot.storage.equals(ProducerSettings.FOREIGN_KEY)) {
+				Key source = findEntity(entitySetName, entityKey).getKey();
+				EdmEntitySet eesNavProp = metadata.getEdmEntitySet(slot.targetSetName);
+				FilterPlanner.Plan plan = planner.plan(eesNavProp, queryInfo != null ? queryInfo.filter : null, null, false);
+				Query q = createQuery(slot.targetSetName, plan, foreignKeyScope(slot, source));
+				int count = counter.count(slot.targetSetName, scopeName(source, slot), q, queryInfo != null ? queryInfo.filter : null, plan.getResidual());
+				return Responses.count(applyPaging(count, queryInfo));
+			}
+			if (queryInfo != null && queryInfo.filter != null) {
+				throw new NotImplementedException("$filter is not supported when counting EdmNavigationProperty " + navProp);
+			}
+			if (slot.storage.equals(ProducerSettings.LINK_ENTITIES)) {
+				Key source = findEntity(entitySetName, entityKey).getKey();
+				return Responses.count(applyPaging(links.count(source, slot), queryInfo));
+			}
+
+			// the related keys are stored on the entity, no need to fetch the targets
+			Object navPropValue = findEntity(entitySetName, entityKey).getProperty(navProp);
+			int count = 0;
+			if (navPropValue instanceof Collection) {
+				count = ((Collection<?>) navPropValue).size();
+			} else if (navPropValue != null) {
+				count = 1;
+			}
+			return Responses.count(applyPaging(count, queryInfo));
+		} finally {
+			end();
+		}
+	}
+
+	private long applyPaging(int count, QueryInfo queryInfo) {
+		if (queryInfo == null)
+			return count;
+		if (queryInfo.skip != null)
+			count = Math.max(0, count - queryInfo.skip);
+		if (queryInfo.top != null)
+			count = Math.min(count, queryInfo.top);
+		return count;
 	}
 
 	@Override
@@ -1,24 +1,100 @@
 package org.odata.appengine;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
 import java.util.Properties;
-
-import javax.persistence.EntityManagerFactory;
-import javax.persistence.Persistence;
+import java.util.logging.Logger;
 
 import org.odata4j.edm.EdmDataServices;
 import org.odata4j.producer.ODataProducer;
 import org.odata4j.producer.ODataProducerFactory;
-import org.odata4j.producer.jpa.JPAEdmGenerator;
 
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.utils.SystemProperty;
+
+/**
+ * Loads the EDM from the snapshot on the classpath. Without one, the first
+ * instance of a deployment generates it from the JPA entities and stores it
+ * in the datastore for the following instances, so JPA is started at most
+ * once per deployment. The development server always compares the snapshot
+ * with the JPA entities and logs the differences.
+ */
 public class ProducerFactory implements ODataProducerFactory {
 
-	private static final String PERSISTENCE_UNIT_NAME = "transactions-optional";
-	private static final String NAMESPACE = "Datastore";
+	private static final Logger LOG = Logger.getLogger(ProducerFactory.class.getName());
+
+	private static final String SNAPSHOT_KIND = "EdmSnapshot";
+	private static final String SNAPSHOT_PROPERTY = "Csdl";
 
 	@Override
 	public ODataProducer create(Properties properties) {
-		EntityManagerFactory emf = Persistence.createEntityManagerFactory(PERSISTENCE_UNIT_NAME);
-		EdmDataServices metadata = new JPAEdmGenerator(emf, NAMESPACE).generateEdm(null).build();
-		return new Producer(metadata);
+		ProducerSettings settings = new ProducerSettings(properties);
+		return new Producer(loadMetadata(settings.getEdmSnapshot()), settings);
+	}
+
+	private static EdmDataServices loadMetadata(String resource) {
+		SystemProperty.Environment.Value environment = SystemProperty.environment.value();
+
+		InputStream in = ProducerFactory.class.getResourceAsStream(resource);
+		if (in != null) {
+			EdmDataServices metadata = readSnapshot(in, resource);
+			if (environment == SystemProperty.Environment.Value.Development) {
+				checkSnapshot(metadata, resource);
+			}
+			return metadata;
+		}
+
+		// the application version changes with every deployment of the same version id
+		String version = SystemProperty.applicationVersion.get();
+		boolean production = environment == SystemProperty.Environment.Value.Production && version != null;
+		DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+		Key key = production ? KeyFactory.createKey(SNAPSHOT_KIND, version) : null;
+		if (production) {
+			try {
+				Entity snapshot = datastore.get(key);
+				return EdmSnapshot.read(((Text) snapshot.getProperty(SNAPSHOT_PROPERTY)).getValue());
+			} catch (EntityNotFoundException e) {
+				// first instance of the deployment
+			}
+		}
+
+		LOG.warning("EDM snapshot " + resource + " not found, generating the EDM from the JPA entities; write it at build time with " + EdmSnapshot.class.getName());
+		EdmDataServices metadata = EdmSnapshot.generate();
+		if (production) {
+			Entity snapshot = new Entity(key);
+			snapshot.setUnindexedProperty(SNAPSHOT_PROPERTY, new Text(EdmSnapshot.write(metadata)));
+			datastore.put(snapshot);
+		}
+		return metadata;
+	}
+
+	private static EdmDataServices readSnapshot(InputStream in, String resource) {
+		try {
+			try {
+				return EdmSnapshot.read(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("EDM snapshot " + resource + " could not be read", e);
+		}
+	}
+
+	private static void checkSnapshot(EdmDataServices metadata, String resource) {
+		List<String> differences = EdmSnapshot.diff(metadata, EdmSnapshot.generate());
+		if (differences.size() > 0) {
+			StringBuilder message = new StringBuilder("EDM snapshot " + resource + " is out of date with the JPA entities:");
+			for (String difference : differences) {
+				message.append("\n").append(difference);
+			}
+			LOG.warning(message.toString());
+		}
 	}
 }
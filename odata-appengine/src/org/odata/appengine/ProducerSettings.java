@@ -0,0 +1,292 @@
+package org.odata.appengine;
+
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+public class ProducerSettings {
+
+	private static final String PREFIX = "odata.appengine.";
+
+	public static final String MAX_PAGE_SIZE = "maxPageSize";
+	public static final String COUNT_SHARDS = "countShards";
+	public static final String COUNT_CACHE_SECONDS = "countCacheSeconds";
+	public static final String INDEXED_PROPERTIES = "indexedProperties";
+	public static final String STREAMING_CHUNK_SIZE = "streamingChunkSize";
+	public static final String ENTITY_CACHE = "entityCache";
+	public static final String ENTITY_CACHE_SIZE = "entityCacheSize";
+	public static final String ENTITY_CACHE_SECONDS = "entityCacheSeconds";
+	public static final String MAX_CONCURRENT_RPCS = "maxConcurrentRpcs";
+	public static final String RESIDUAL_SCAN_LIMIT = "residualScanLimit";
+	public static final String METRICS_SINK = "metricsSink";
+	public static final String EDM_SNAPSHOT = "edmSnapshot";
+	public static final String RELATIONSHIP_STORAGE = "relationshipStorage";
+	public static final String QUERY_CACHE_SIZE = "queryCacheSize";
+	public static final String QUERY_CACHE_SECONDS = "queryCacheSeconds";
+	public static final String DELTA_RETENTION_SECONDS = "deltaRetentionSeconds";
+	public static final String QUERY_BUDGET_MILLIS = "queryBudgetMillis";
+	public static final String READ_POLICY = "readPolicy";
+	public static final String DEADLINE_MILLIS = "deadlineMillis";
+	public static final String RETRY_ATTEMPTS = "retryAttempts";
+	public static final String RETRY_BACKOFF_MILLIS = "retryBackoffMillis";
+	public static final String HEDGE_MILLIS = "hedgeMillis";
+	public static final String AGGREGATES = "aggregates";
+	public static final String RUNNING_AGGREGATES = "runningAggregates";
+
+	public static final String LOCAL = "local";
+	public static final String MEMCACHE = "memcache";
+
+	public static final String STRONG = "strong";
+	public static final String EVENTUAL = "eventual";
+
+	public static final String KEY_LIST = "keyList";
+	public static final String FOREIGN_KEY = "foreignKey";
+	public static final String LINK_ENTITIES = "linkEntities";
+
+	private static final int DEFAULT_ENTITY_CACHE_SIZE = 1000;
+	private static final int DEFAULT_MAX_CONCURRENT_RPCS = 4;
+	private static final int DEFAULT_QUERY_CACHE_SIZE = 100;
+	private static final String DEFAULT_EDM_SNAPSHOT = "/odata-edm.xml";
+
+	private final Properties properties;
+
+	public ProducerSettings() {
+		this(new Properties());
+	}
+
+	public ProducerSettings(Properties properties) {
+		this.properties = properties;
+	}
+
+	public Integer getMaxPageSize(String entitySetName) {
+		return getInteger(MAX_PAGE_SIZE, entitySetName);
+	}
+
+	/**
+	 * Results of the set are read and converted in chunks of this size while
+	 * the response is serialized instead of being materialized up front; not
+	 * streamed when unset.
+	 */
+	public Integer getStreamingChunkSize(String entitySetName) {
+		return getInteger(STREAMING_CHUNK_SIZE, entitySetName);
+	}
+
+	public Integer getCountShards(String entitySetName) {
+		return getInteger(COUNT_SHARDS, entitySetName);
+	}
+
+	public Integer getCountCacheSeconds(String entitySetName) {
+		return getInteger(COUNT_CACHE_SECONDS, entitySetName);
+	}
+
+	/**
+	 * Properties known to be indexed for every entity of the set, i.e. the ones
+	 * $select may be pushed down to a projection query for.
+	 */
+	public Set<String> getIndexedProperties(String entitySetName) {
+		return getStringSet(INDEXED_PROPERTIES, entitySetName);
+	}
+
+	/**
+	 * Shared entity cache implementation, either local (default) or memcache.
+	 */
+	public String getEntityCache() {
+		String value = getProperty(ENTITY_CACHE, null);
+		return value != null ? value : LOCAL;
+	}
+
+	public int getEntityCacheSize() {
+		Integer value = getInteger(ENTITY_CACHE_SIZE, null);
+		return value != null ? value : DEFAULT_ENTITY_CACHE_SIZE;
+	}
+
+	/**
+	 * Entities of the set are kept in the shared entity cache for this many
+	 * seconds; not cached when unset.
+	 */
+	public Integer getEntityCacheSeconds(String entitySetName) {
+		return getInteger(ENTITY_CACHE_SECONDS, entitySetName);
+	}
+
+	/**
+	 * Number of getEntities responses kept by the query result cache.
+	 */
+	public int getQueryCacheSize() {
+		Integer value = getInteger(QUERY_CACHE_SIZE, null);
+		return value != null ? value : DEFAULT_QUERY_CACHE_SIZE;
+	}
+
+	/**
+	 * getEntities responses of the set are cached for this many seconds, or
+	 * until the producer writes one of the kinds they were read from; not
+	 * cached when unset.
+	 */
+	public Integer getQueryCacheSeconds(String entitySetName) {
+		return getInteger(QUERY_CACHE_SECONDS, entitySetName);
+	}
+
+	/**
+	 * Changes of the set are tracked for delta sync; delta tokens and the
+	 * tombstones of deleted entities are kept this many seconds. Not tracked
+	 * when unset.
+	 */
+	public Integer getDeltaRetentionSeconds(String entitySetName) {
+		return getInteger(DELTA_RETENTION_SECONDS, entitySetName);
+	}
+
+	/**
+	 * Properties the &lt;Set&gt;Aggregate function import of the set computes
+	 * the sum (numeric ones), min and max of; the function is declared for
+	 * sets with this or runningAggregates configured.
+	 */
+	public Set<String> getAggregates(String entitySetName) {
+		return getStringSet(AGGREGATES, entitySetName);
+	}
+
+	/**
+	 * Groupings the count and the sums of the set are kept up to date for by
+	 * the producer's writes, besides the whole set; not maintained when unset.
+	 */
+	public Set<String> getRunningAggregates(String entitySetName) {
+		return getStringSet(RUNNING_AGGREGATES, entitySetName);
+	}
+
+	/**
+	 * At most this many entities are read per page when part of the $filter is
+	 * evaluated in memory; a page cut short ends with a next link. Unbounded
+	 * when unset.
+	 */
+	public Integer getResidualScanLimit(String entitySetName) {
+		return getInteger(RESIDUAL_SCAN_LIMIT, entitySetName);
+	}
+
+	/**
+	 * Queries of the set stop reading once this many milliseconds have passed
+	 * and return the entities read so far with a next link. Unbounded when
+	 * unset.
+	 */
+	public Integer getQueryBudgetMillis(String entitySetName) {
+		return getInteger(QUERY_BUDGET_MILLIS, entitySetName);
+	}
+
+	/**
+	 * Consistency of the reads of the set outside of transactions, either
+	 * strong (default) or eventual.
+	 */
+	public String getReadPolicy(String entitySetName) {
+		String value = getProperty(READ_POLICY, entitySetName);
+		return value != null ? value : STRONG;
+	}
+
+	/**
+	 * Datastore calls of the set fail after this many milliseconds; the
+	 * datastore default when unset.
+	 */
+	public Integer getDeadlineMillis(String entitySetName) {
+		return getInteger(DEADLINE_MILLIS, entitySetName);
+	}
+
+	/**
+	 * Gets, puts and deletes of the set that time out outside of a transaction
+	 * are retried this many times; not retried when unset.
+	 */
+	public Integer getRetryAttempts(String entitySetName) {
+		return getInteger(RETRY_ATTEMPTS, entitySetName);
+	}
+
+	/**
+	 * Upper bound of the random wait before the first retry, doubling with
+	 * every further attempt.
+	 */
+	public Integer getRetryBackoffMillis(String entitySetName) {
+		return getInteger(RETRY_BACKOFF_MILLIS, entitySetName);
+	}
+
+	/**
+	 * A get of a single entity of the set is issued a second time when the
+	 * first has not returned after this many milliseconds, and the first
+	 * result is used; not hedged when unset.
+	 */
+	public Integer getHedgeMillis(String entitySetName) {
+		return getInteger(HEDGE_MILLIS, entitySetName);
+	}
+
+	/**
+	 * Upper bound of the datastore calls a single request keeps in flight while
+	 * resolving $expand.
+	 */
+	public int getMaxConcurrentRpcs() {
+		Integer value = getInteger(MAX_CONCURRENT_RPCS, null);
+		return value != null ? value : DEFAULT_MAX_CONCURRENT_RPCS;
+	}
+
+	/**
+	 * Class name of the MetricsSink the datastore calls and request phases are
+	 * recorded to, the shared InMemoryMetrics when unset.
+	 */
+	public String getMetricsSink() {
+		return getProperty(METRICS_SINK, null);
+	}
+
+	/**
+	 * Classpath resource holding the EDM written by EdmSnapshot.
+	 */
+	public String getEdmSnapshot() {
+		String value = getProperty(EDM_SNAPSHOT, null);
+		return value != null ? value : DEFAULT_EDM_SNAPSHOT;
+	}
+
+	/**
+	 * How the targets of a MANY navigation property are stored, set with
+	 * odata.appengine.relationshipStorage.&lt;entitySetName&gt;.&lt;navProp&gt;:
+	 * keyList (default), foreignKey or linkEntities. The service wide
+	 * odata.appengine.relationshipStorage only applies to MANY navigation
+	 * properties, single-valued ones keep their key unless set one by one.
+	 */
+	public String getRelationshipStorage(String entitySetName, String navProp, boolean many) {
+		String value = many ? getProperty(RELATIONSHIP_STORAGE, entitySetName + "." + navProp) : properties.getProperty(PREFIX + RELATIONSHIP_STORAGE + "." + entitySetName + "." + navProp);
+		return value != null ? value.trim() : KEY_LIST;
+	}
+
+	/**
+	 * Looks up odata.appengine.&lt;name&gt;.&lt;entitySetName&gt; first and
+	 * falls back to the service wide odata.appengine.&lt;name&gt;.
+	 */
+	private String getProperty(String name, String entitySetName) {
+		String value = null;
+		if (entitySetName != null) {
+			value = properties.getProperty(PREFIX + name + "." + entitySetName);
+		}
+		if (value == null) {
+			value = properties.getProperty(PREFIX + name);
+		}
+		return value == null ? null : value.trim();
+	}
+
+	private Set<String> getStringSet(String name, String entitySetName) {
+		String value = getProperty(name, entitySetName);
+		if (value == null || value.length() == 0) {
+			return null;
+		}
+		Set<String> values = new HashSet<String>();
+		for (String v : value.split(",")) {
+			if (v.trim().length() > 0) {
+				values.add(v.trim());
+			}
+		}
+		return values;
+	}
+
+	private Integer getInteger(String name, String entitySetName) {
+		String value = getProperty(name, entitySetName);
+		if (value == null || value.length() == 0) {
+			return null;
+		}
+		try {
+			int i = Integer.parseInt(value);
+			return i > 0 ? i : null;
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Property " + PREFIX + name + " is not an integer: " + value);
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package org.odata.appengine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.odata4j.expression.EntitySimpleProperty;
+
+/**
+ * $select and $expand of a request resolved against the EntityTypePlan slots
+ * of each level: which simple properties and navigation links are returned,
+ * which navigation properties are expanded, and the plans of the nested
+ * levels. Built once per request so converting an entity does no string
+ * matching.
+ */
+class ProjectionPlan {
+
+	private static final ProjectionPlan ALL = new ProjectionPlan(null, null, Collections.<EntityTypePlan.NavigationSlot> emptyList(), Collections.<String, ProjectionPlan> emptyMap());
+
+	private final boolean[] properties;
+	private final boolean[] links;
+	private final List<EntityTypePlan.NavigationSlot> expands;
+	private final Map<String, ProjectionPlan> children;
+
+	private ProjectionPlan(boolean[] properties, boolean[] links, List<EntityTypePlan.NavigationSlot> expands, Map<String, ProjectionPlan> children) {
+		this.properties = properties;
+		this.links = links;
+		this.expands = expands;
+		this.children = children;
+	}
+
+	/**
+	 * Plan of the whole request; select and expand may be null.
+	 */
+	static ProjectionPlan create(Map<String, EntityTypePlan> typePlans, EntityTypePlan plan, List<EntitySimpleProperty> select, List<EntitySimpleProperty> expand) {
+		List<String> expandPaths = paths(expand);
+		return resolve(typePlans, plan, paths(select), expandPaths != null ? expandPaths : Collections.<String> emptyList());
+	}
+
+	private static ProjectionPlan resolve(Map<String, EntityTypePlan> typePlans, EntityTypePlan plan, List<String> select, List<String> expand) {
+		if (select == null && expand.size() == 0) {
+			return ALL;
+		}
+
+		EntityTypePlan.PropertySlot[] propertySlots = plan.getProperties();
+		EntityTypePlan.NavigationSlot[] navSlots = plan.getNavigations();
+		Map<String, List<String>> childSelects = new HashMap<String, List<String>>();
+		Map<String, List<String>> childExpands = new HashMap<String, List<String>>();
+
+		boolean[] properties = null;
+		boolean[] links = null;
+		if (select != null && !select.contains("*")) {
+			properties = new boolean[propertySlots.length + 1];
+			links = new boolean[navSlots.length];
+			for (String path : select) {
+				int slash = path.indexOf('/');
+				String name = slash < 0 ? path : path.substring(0, slash);
+				if (name.equals(plan.getKeyName())) {
+					properties[propertySlots.length] = true;
+				}
+				for (int i = 0; i < propertySlots.length; i++) {
+					if (propertySlots[i].name.equals(name)) {
+						properties[i] = true;
+					}
+				}
+				for (int i = 0; i < navSlots.length; i++) {
+					if (navSlots[i].name.equals(name)) {
+						links[i] = true;
+						// a nav property selected without a path returns all of its properties
+						addPath(childSelects, name, slash < 0 ? "*" : path.substring(slash + 1));
+					}
+				}
+			}
+		}
+
+		List<EntityTypePlan.NavigationSlot> expands = new ArrayList<EntityTypePlan.NavigationSlot>();
+		for (String path : expand) {
+			int slash = path.indexOf('/');
+			String name = slash < 0 ? path : path.substring(0, slash);
+			EntityTypePlan.NavigationSlot slot = plan.getNavigation(name);
+			if (slot == null) {
+				continue;
+			}
+			if (!expands.contains(slot)) {
+				expands.add(slot);
+			}
+			if (!childExpands.containsKey(name)) {
+				childExpands.put(name, new ArrayList<String>());
+			}
+			if (slash >= 0) {
+				childExpands.get(name).add(path.substring(slash + 1));
+			}
+		}
+
+		Map<String, ProjectionPlan> children = new HashMap<String, ProjectionPlan>();
+		for (EntityTypePlan.NavigationSlot slot : navSlots) {
+			List<String> childSelect = childSelects.get(slot.name);
+			List<String> childExpand = childExpands.get(slot.name);
+			EntityTypePlan childPlan = typePlans.get(slot.targetSetName);
+			if (childPlan != null && (childSelect != null || childExpand != null)) {
+				children.put(slot.name, resolve(typePlans, childPlan, childSelect, childExpand != null ? childExpand : Collections.<String> emptyList()));
+			}
+		}
+		return new ProjectionPlan(properties, links, expands, children);
+	}
+
+	private static List<String> paths(List<EntitySimpleProperty> properties) {
+		if (properties == null || properties.size() == 0) {
+			return null;
+		}
+		List<String> paths = new ArrayList<String>(properties.size());
+		for (EntitySimpleProperty esp : properties) {
+			paths.add(esp.getPropertyName());
+		}
+		return paths;
+	}
+
+	private static void addPath(Map<String, List<String>> paths, String name, String path) {
+		List<String> list = paths.get(name);
+		if (list == null) {
+			list = new ArrayList<String>();
+			paths.put(name, list);
+		}
+		list.add(path);
+	}
+
+	boolean isKeySelected() {
+		return properties == null || properties[properties.length - 1];
+	}
+
+	boolean isPropertySelected(int slot) {
+		return properties == null || properties[slot];
+	}
+
+	boolean isLinkSelected(int slot) {
+		return links == null || links[slot];
+	}
+
+	/**
+	 * Navigation properties to expand at this level, empty for none.
+	 */
+	List<EntityTypePlan.NavigationSlot> getExpands() {
+		return expands;
+	}
+
+	ProjectionPlan getChild(String navPropName) {
+		ProjectionPlan child = children.get(navPropName);
+		return child != null ? child : ALL;
+	}
+}
@@ -0,0 +1,184 @@
+package org.odata.appengine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.odata4j.core.OEntity;
+import org.odata4j.expression.EntitySimpleProperty;
+import org.odata4j.expression.Expression;
+import org.odata4j.expression.OrderByExpression;
+import org.odata4j.expression.OrderByExpression.Direction;
+import org.odata4j.producer.EntitiesResponse;
+import org.odata4j.producer.InlineCount;
+import org.odata4j.producer.QueryInfo;
+import org.odata4j.producer.Responses;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+/**
+ * getEntities responses of the entity sets with
+ * odata.appengine.queryCacheSeconds configured, kept in a bounded in-process
+ * LRU keyed by entity set and normalized query options. A response is tagged
+ * with the generations of the kinds it was read from, the set's own and those
+ * of its $expand targets, as they were before the query ran; the producer
+ * bumps the generation of every kind it writes, so a response whose tags
+ * differ from the current generations is stale. Generations live in memcache
+ * so that writes on other instances invalidate too. A write made outside of
+ * the producer, or one an eventually consistent query did not see yet, is
+ * only dropped when the response expires.
+ */
+class QueryResultCache {
+
+	private static final String NAMESPACE = "QueryResultCache";
+
+	private static class CacheEntry {
+		private final EntitiesResponse response;
+		private final Map<String, Long> generations;
+		private final long expires;
+
+		private CacheEntry(EntitiesResponse response, Map<String, Long> generations, long expires) {
+			this.response = response;
+			this.generations = generations;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * A lookup of one query; on a miss the response computed for it is filled
+	 * in under the generations read before the query ran.
+	 */
+	class Lookup {
+		private final List<Object> key;
+		private final Map<String, Long> generations;
+		private final EntitiesResponse response;
+
+		private Lookup(List<Object> key, Map<String, Long> generations, EntitiesResponse response) {
+			this.key = key;
+			this.generations = generations;
+			this.response = response;
+		}
+
+		EntitiesResponse getResponse() {
+			return response;
+		}
+
+		EntitiesResponse fill(EntitiesResponse response, int expirationSeconds) {
+			if (generations == null) {
+				return response;
+			}
+			EntitiesResponse cached = Responses.entities(Collections.unmodifiableList(new ArrayList<OEntity>(response.getEntities())), response.getEntitySet(), response.getInlineCount(), response.getSkipToken());
+			synchronized (entries) {
+				entries.put(key, new CacheEntry(cached, generations, System.currentTimeMillis() + expirationSeconds * 1000L));
+			}
+			return cached;
+		}
+	}
+
+	private final MemcacheService memcache;
+	private final Map<List<Object>, CacheEntry> entries;
+	private final CacheStats stats = new CacheStats();
+
+	QueryResultCache(final int maxSize) {
+		this.memcache = MemcacheServiceFactory.getMemcacheService(NAMESPACE);
+		this.entries = new LinkedHashMap<List<Object>, CacheEntry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<List<Object>, CacheEntry> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	CacheStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * Looks up the query of the entity set whose response is read from kinds.
+	 */
+	Lookup lookup(String entitySetName, Set<String> kinds, QueryInfo queryInfo) {
+		List<Object> key = key(entitySetName, queryInfo);
+		Map<String, Long> generations = generations(kinds);
+		CacheEntry entry;
+		synchronized (entries) {
+			entry = entries.get(key);
+			if (entry != null && (entry.expires < System.currentTimeMillis() || !entry.generations.equals(generations))) {
+				entries.remove(key);
+				entry = null;
+			}
+		}
+		if (entry != null && generations != null) {
+			stats.hit(1);
+			return new Lookup(key, generations, entry.response);
+		}
+		stats.miss(1);
+		return new Lookup(key, generations, null);
+	}
+
+	/**
+	 * Bumps the generations of the kinds written, after the write is visible.
+	 */
+	void invalidate(Collection<String> kinds) {
+		if (kinds.size() > 0) {
+			memcache.incrementAll(kinds, 1, System.currentTimeMillis());
+		}
+	}
+
+	// null while a generation is unknown, the response is not cached then
+	private Map<String, Long> generations(Set<String> kinds) {
+		Map<String, Object> values = memcache.getAll(kinds);
+		Map<String, Long> generations = new HashMap<String, Long>();
+		for (String kind : kinds) {
+			Object value = values.get(kind);
+			if (value == null) {
+				// seeded so that the next lookup can cache; the clock keeps a
+				// seed from repeating a generation memcache evicted
+				memcache.put(kind, System.currentTimeMillis(), null, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+				return null;
+			}
+			generations.put(kind, ((Number) value).longValue());
+		}
+		return generations;
+	}
+
+	// $select and $expand compare as sets, they do not change the order of the response
+	private static List<Object> key(String entitySetName, QueryInfo queryInfo) {
+		List<String> orderBy = new ArrayList<String>();
+		if (queryInfo.orderBy != null) {
+			for (OrderByExpression ob : queryInfo.orderBy) {
+				orderBy.add(Expression.asPrintString(ob.getExpression()) + (ob.getDirection() == Direction.DESCENDING ? " desc" : ""));
+			}
+		}
+		return Arrays.<Object> asList(
+				entitySetName,
+				queryInfo.filter != null ? Expression.asPrintString(queryInfo.filter) : null,
+				orderBy,
+				paths(queryInfo.select),
+				paths(queryInfo.expand),
+				queryInfo.top,
+				queryInfo.skipToken == null ? queryInfo.skip : null,
+				queryInfo.skipToken,
+				queryInfo.inlineCount == InlineCount.ALLPAGES);
+	}
+
+	private static Set<String> paths(List<EntitySimpleProperty> properties) {
+		Set<String> paths = new TreeSet<String>();
+		if (properties != null) {
+			for (EntitySimpleProperty esp : properties) {
+				paths.add(esp.getPropertyName());
+			}
+		}
+		return paths;
+	}
+}
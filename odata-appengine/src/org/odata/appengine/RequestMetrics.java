@@ -0,0 +1,208 @@
+package org.odata.appengine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measurements of the current request, bound to the request thread. A
+ * producer operation tags the datastore calls made while it runs and records
+ * its query and convert phases when it ends; MetricsFilter keeps the
+ * measurements across the operations of an HTTP request to add the
+ * serialize phase. Without the filter they only live for one operation.
+ */
+class RequestMetrics {
+
+	static final String QUERY = "query";
+	static final String CONVERT = "convert";
+	static final String SERIALIZE = "serialize";
+
+	interface Pending {
+		void flush();
+	}
+
+	private static final ThreadLocal<RequestMetrics> current = new ThreadLocal<RequestMetrics>();
+
+	private final boolean request;
+	private final Thread thread = Thread.currentThread();
+	private int depth;
+	private MetricsSink sink;
+	private String operation;
+	private String entitySetName;
+	private long operationStart;
+	private long operationConvertNanos;
+	private long streamedConvertNanos;
+	private final List<Pending> pending = new ArrayList<Pending>();
+
+	// shared with the threads a request starts, e.g. for $inlinecount
+	private final AtomicInteger rpcs = new AtomicInteger();
+	private final AtomicLong rpcNanos = new AtomicLong();
+	private final AtomicLong queryNanos = new AtomicLong();
+	private final AtomicLong convertNanos = new AtomicLong();
+
+	private RequestMetrics(boolean request) {
+		this.request = request;
+	}
+
+	static RequestMetrics current() {
+		return current.get();
+	}
+
+	/**
+	 * Starts measuring an HTTP request on this thread.
+	 */
+	static RequestMetrics beginRequest() {
+		RequestMetrics metrics = new RequestMetrics(true);
+		current.set(metrics);
+		return metrics;
+	}
+
+	void endRequest() {
+		current.remove();
+	}
+
+	/**
+	 * Binds the measurements of a request to a thread working for it.
+	 */
+	static void attach(RequestMetrics metrics) {
+		if (metrics != null) {
+			current.set(metrics);
+		} else {
+			current.remove();
+		}
+	}
+
+	/**
+	 * Starts a producer operation; operations started by another one are
+	 * measured as part of it. Without a sink only the calls are tagged.
+	 */
+	static void begin(MetricsSink sink, String operation, String entitySetName) {
+		RequestMetrics metrics = current.get();
+		if (metrics == null) {
+			metrics = new RequestMetrics(false);
+			current.set(metrics);
+		}
+		if (metrics.depth++ == 0) {
+			if (sink != null) {
+				metrics.sink = sink;
+			}
+			metrics.operation = operation;
+			metrics.entitySetName = entitySetName;
+			metrics.operationStart = System.nanoTime();
+			metrics.operationConvertNanos = 0;
+		}
+	}
+
+	static void end() {
+		RequestMetrics metrics = current.get();
+		if (metrics == null || --metrics.depth > 0) {
+			return;
+		}
+		for (Pending p : metrics.pending) {
+			p.flush();
+		}
+		metrics.pending.clear();
+
+		long queryNanos = System.nanoTime() - metrics.operationStart - metrics.operationConvertNanos;
+		metrics.queryNanos.addAndGet(queryNanos);
+		if (metrics.sink != null) {
+			metrics.sink.recordPhase(metrics.operation, metrics.entitySetName, QUERY, queryNanos);
+			metrics.sink.recordPhase(metrics.operation, metrics.entitySetName, CONVERT, metrics.operationConvertNanos);
+		}
+		if (!metrics.request) {
+			current.remove();
+		}
+	}
+
+	/**
+	 * Records a datastore call, tagged with the current operation if any.
+	 */
+	static void recordCall(MetricsSink sink, String call, long nanos, int entities, boolean failed) {
+		RequestMetrics metrics = current.get();
+		if (metrics != null) {
+			metrics.rpcs.incrementAndGet();
+			metrics.rpcNanos.addAndGet(nanos);
+			sink.recordCall(metrics.operation, metrics.entitySetName, call, nanos, entities, failed);
+		} else {
+			sink.recordCall(null, null, call, nanos, entities, failed);
+		}
+	}
+
+	/**
+	 * Records a response cut short by its time budget, tagged with the current
+	 * operation if any.
+	 */
+	static void recordTruncated(MetricsSink sink) {
+		RequestMetrics metrics = current.get();
+		if (metrics != null) {
+			sink.recordTruncated(metrics.operation, metrics.entitySetName);
+		} else {
+			sink.recordTruncated(null, null);
+		}
+	}
+
+	/**
+	 * Records entity conversion. Streamed results are converted after the
+	 * operation returned, while the response is written; that part is recorded
+	 * along with the serialize phase.
+	 */
+	static void recordConvert(long nanos) {
+		RequestMetrics metrics = current.get();
+		if (metrics != null) {
+			metrics.convertNanos.addAndGet(nanos);
+			if (metrics.depth > 0) {
+				metrics.operationConvertNanos += nanos;
+			} else {
+				metrics.streamedConvertNanos += nanos;
+			}
+		}
+	}
+
+	/**
+	 * Registers a measurement to be recorded when the operation ends at the
+	 * latest, e.g. a query iterator that is not read to the end. Only on the
+	 * request thread itself.
+	 */
+	static boolean defer(Pending p) {
+		RequestMetrics metrics = current.get();
+		if (metrics == null || metrics.depth == 0 || metrics.thread != Thread.currentThread()) {
+			return false;
+		}
+		metrics.pending.add(p);
+		return true;
+	}
+
+	/**
+	 * Records the serialize phase of a request that took totalNanos, tagged
+	 * with its last operation.
+	 */
+	void recordSerialize(long totalNanos) {
+		if (sink != null) {
+			if (streamedConvertNanos > 0) {
+				sink.recordPhase(operation, entitySetName, CONVERT, streamedConvertNanos);
+			}
+			sink.recordPhase(operation, entitySetName, SERIALIZE, getSerializeNanos(totalNanos));
+		}
+	}
+
+	int getRpcs() {
+		return rpcs.get();
+	}
+
+	long getRpcNanos() {
+		return rpcNanos.get();
+	}
+
+	long getQueryNanos() {
+		return queryNanos.get();
+	}
+
+	long getConvertNanos() {
+		return convertNanos.get();
+	}
+
+	long getSerializeNanos(long totalNanos) {
+		return Math.max(totalNanos - getQueryNanos() - getConvertNanos(), 0);
+	}
+}
@@ -0,0 +1,374 @@
+package org.odata.appengine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.EmbeddedEntity;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.PropertyContainer;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Transaction;
+
+/**
+ * Count and sums of the entity sets with odata.appengine.runningAggregates
+ * configured, kept up to date by the producer's writes for the whole set and
+ * for each grouping listed, so the Aggregate function import reads them
+ * instead of scanning. The sums are those of the numeric properties listed in
+ * odata.appengine.aggregates.
+ *
+ * Every entity carries the values it was last counted with in the unindexed
+ * property _aggregated, so a write moves the entity from the groups it was
+ * counted in to its current ones without reading it first; entities written
+ * before carry none and are read once. Like the sharded counter, the rows of
+ * a group are sharded by odata.appengine.countShards and updated after the
+ * write, and the first read of a grouping seeds it with a scan of the set.
+ */
+class RunningAggregates {
+
+	private static final String KIND = "RunningAggregate";
+	static final String SHADOW_PROPERTY = "_aggregated";
+	private static final String SET_PROPERTY = "Set";
+	private static final String GROUPING_PROPERTY = "Grouping";
+	private static final String GROUP_PROPERTY = "Group";
+	private static final String COUNT_PROPERTY = "Count";
+	private static final String SUM_PREFIX = "Sum_";
+	private static final String TOTAL = "";
+	private static final String BASE_SHARD = "base";
+	private static final String SEPARATOR = ":";
+
+	/**
+	 * Changes to the rows of the groups written, applied once the writes are
+	 * visible.
+	 */
+	static class Delta {
+		private final Map<String, Aggregator.Row> rows = new LinkedHashMap<String, Aggregator.Row>();
+		private final Map<String, Object[]> groups = new HashMap<String, Object[]>();
+
+		private void add(String entitySetName, Set<String> groupings, PropertyContainer counted, int sign) {
+			if (counted == null) {
+				return;
+			}
+			add(entitySetName, TOTAL, null, counted, sign);
+			for (String grouping : groupings) {
+				add(entitySetName, grouping, counted.getProperty(grouping), counted, sign);
+			}
+		}
+
+		private void add(String entitySetName, String grouping, Object group, PropertyContainer counted, int sign) {
+			String name = rowName(entitySetName, grouping, group);
+			Aggregator.Row row = rows.get(name);
+			if (row == null) {
+				row = new Aggregator.Row();
+				rows.put(name, row);
+				groups.put(name, new Object[] { entitySetName, grouping, group });
+			}
+			row.count += sign;
+			for (Map.Entry<String, Object> property : counted.getProperties().entrySet()) {
+				if (property.getKey().startsWith(SUM_PREFIX)) {
+					row.addSum(property.getKey().substring(SUM_PREFIX.length()), sign * ((Number) property.getValue()).doubleValue());
+				}
+			}
+		}
+
+		private void add(Delta delta) {
+			for (Map.Entry<String, Aggregator.Row> entry : delta.rows.entrySet()) {
+				Aggregator.Row row = rows.get(entry.getKey());
+				if (row == null) {
+					rows.put(entry.getKey(), entry.getValue());
+					groups.put(entry.getKey(), delta.groups.get(entry.getKey()));
+				} else {
+					row.add(entry.getValue());
+				}
+			}
+		}
+	}
+
+	private final DatastoreService datastore;
+	private final ProducerSettings settings;
+	private final Map<Transaction, Delta> pending = new HashMap<Transaction, Delta>();
+	private final Random random = new Random();
+
+	RunningAggregates(DatastoreService datastore, ProducerSettings settings) {
+		this.datastore = datastore;
+		this.settings = settings;
+	}
+
+	boolean isMaintained(String entitySetName) {
+		return settings.getRunningAggregates(entitySetName) != null;
+	}
+
+	boolean isMaintained(String entitySetName, String grouping) {
+		Set<String> groupings = settings.getRunningAggregates(entitySetName);
+		return groupings != null && (grouping == null || groupings.contains(grouping));
+	}
+
+	/**
+	 * Marks an entity with a complete key that is not stored yet as counted
+	 * nowhere, so it is not read when written.
+	 */
+	void markNew(Entity entity) {
+		if (isMaintained(entity.getKind())) {
+			entity.setUnindexedProperty(SHADOW_PROPERTY, null);
+		}
+	}
+
+	/**
+	 * Moves the entities about to be put to the groups of their current values
+	 * and updates what they are counted with.
+	 */
+	Delta written(Transaction txn, Collection<Entity> entities) {
+		Delta delta = new Delta();
+		List<Key> unmarked = new ArrayList<Key>();
+		for (Entity entity : entities) {
+			if (isMaintained(entity.getKind()) && !entity.hasProperty(SHADOW_PROPERTY) && entity.getKey().isComplete()) {
+				unmarked.add(entity.getKey());
+			}
+		}
+		Map<Key, Entity> stored = unmarked.size() > 0 ? datastore.get(txn, unmarked) : new HashMap<Key, Entity>();
+		for (Entity entity : entities) {
+			Set<String> groupings = settings.getRunningAggregates(entity.getKind());
+			if (groupings == null) {
+				continue;
+			}
+			delta.add(entity.getKind(), groupings, counted(entity.hasProperty(SHADOW_PROPERTY) ? entity : stored.get(entity.getKey())), -1);
+			EmbeddedEntity counted = values(entity);
+			delta.add(entity.getKind(), groupings, counted, 1);
+			entity.setUnindexedProperty(SHADOW_PROPERTY, counted);
+		}
+		return delta;
+	}
+
+	/**
+	 * Removes the entities about to be deleted from the groups they are
+	 * counted in.
+	 */
+	Delta deleted(Transaction txn, Collection<Key> keys) {
+		Delta delta = new Delta();
+		List<Key> maintained = new ArrayList<Key>();
+		for (Key key : keys) {
+			if (isMaintained(key.getKind())) {
+				maintained.add(key);
+			}
+		}
+		if (maintained.size() > 0) {
+			for (Entity entity : datastore.get(txn, maintained).values()) {
+				delta.add(entity.getKind(), settings.getRunningAggregates(entity.getKind()), counted(entity), -1);
+			}
+		}
+		return delta;
+	}
+
+	/**
+	 * Applies the delta of a write outside of a transaction, or keeps it until
+	 * the transaction committed.
+	 */
+	void apply(Transaction txn, Delta delta) {
+		if (delta.rows.size() == 0) {
+			return;
+		}
+		if (txn == null) {
+			apply(delta);
+			return;
+		}
+		synchronized (pending) {
+			Delta txnDelta = pending.get(txn);
+			if (txnDelta == null) {
+				pending.put(txn, delta);
+			} else {
+				txnDelta.add(delta);
+			}
+		}
+	}
+
+	void committed(Transaction txn) {
+		Delta delta;
+		synchronized (pending) {
+			delta = pending.remove(txn);
+		}
+		if (delta != null) {
+			apply(delta);
+		}
+	}
+
+	void discard(Transaction txn) {
+		synchronized (pending) {
+			pending.remove(txn);
+		}
+	}
+
+	/**
+	 * The rows of the grouping, keyed by group; null until the grouping is
+	 * seeded.
+	 */
+	Map<Object, Aggregator.Row> read(String entitySetName, String grouping) {
+		String groupingName = grouping != null ? grouping : TOTAL;
+		try {
+			datastore.get(KeyFactory.createKey(KIND, entitySetName + SEPARATOR + groupingName));
+		} catch (EntityNotFoundException e) {
+			return null;
+		}
+		Map<Object, Aggregator.Row> rows = new HashMap<Object, Aggregator.Row>();
+		for (Entity shard : datastore.prepare(query(entitySetName, groupingName)).asIterable(FetchOptions.Builder.withChunkSize(500))) {
+			Object group = shard.getProperty(GROUP_PROPERTY);
+			Aggregator.Row row = rows.get(group);
+			if (row == null) {
+				row = new Aggregator.Row();
+				rows.put(group, row);
+			}
+			row.add(toRow(shard));
+		}
+		return rows;
+	}
+
+	/**
+	 * Seeds the grouping with the rows scanned, less what the writes since the
+	 * setting was turned on added to the shards already.
+	 */
+	void seed(String entitySetName, String grouping, Map<Object, Aggregator.Row> scanned) {
+		String groupingName = grouping != null ? grouping : TOTAL;
+		Map<Object, Aggregator.Row> shards = new HashMap<Object, Aggregator.Row>();
+		for (Entity shard : datastore.prepare(query(entitySetName, groupingName)).asIterable(FetchOptions.Builder.withChunkSize(500))) {
+			Aggregator.Row row = shards.get(shard.getProperty(GROUP_PROPERTY));
+			if (row == null) {
+				row = new Aggregator.Row();
+				shards.put(shard.getProperty(GROUP_PROPERTY), row);
+			}
+			row.add(toRow(shard));
+		}
+		List<Entity> bases = new ArrayList<Entity>();
+		for (Map.Entry<Object, Aggregator.Row> entry : scanned.entrySet()) {
+			Aggregator.Row base = new Aggregator.Row();
+			base.add(entry.getValue());
+			Aggregator.Row written = shards.remove(entry.getKey());
+			if (written != null) {
+				base.subtract(written);
+			}
+			bases.add(toShard(entitySetName, groupingName, entry.getKey(), BASE_SHARD, base));
+		}
+		// groups the writes emptied again
+		for (Map.Entry<Object, Aggregator.Row> entry : shards.entrySet()) {
+			Aggregator.Row base = new Aggregator.Row();
+			base.subtract(entry.getValue());
+			bases.add(toShard(entitySetName, groupingName, entry.getKey(), BASE_SHARD, base));
+		}
+		bases.add(new Entity(KeyFactory.createKey(KIND, entitySetName + SEPARATOR + groupingName)));
+		datastore.put(bases);
+	}
+
+	// one transaction per group, on a random shard of it
+	private void apply(Delta delta) {
+		for (Map.Entry<String, Aggregator.Row> entry : delta.rows.entrySet()) {
+			Aggregator.Row change = entry.getValue();
+			if (change.isEmpty()) {
+				continue;
+			}
+			Object[] group = delta.groups.get(entry.getKey());
+			String entitySetName = (String) group[0];
+			Integer shards = settings.getCountShards(entitySetName);
+			String shard = Integer.toString(shards != null ? random.nextInt(shards) : 0);
+			Key key = KeyFactory.createKey(KIND, entry.getKey() + SEPARATOR + shard);
+			Transaction txn = datastore.beginTransaction();
+			try {
+				Aggregator.Row row = new Aggregator.Row();
+				try {
+					row.add(toRow(datastore.get(txn, key)));
+				} catch (EntityNotFoundException e) {
+					// first write to the shard
+				}
+				row.add(change);
+				datastore.put(txn, toShard(entitySetName, (String) group[1], group[2], shard, row));
+				txn.commit();
+			} finally {
+				if (txn.isActive()) {
+					txn.rollback();
+				}
+			}
+		}
+	}
+
+	// what the stored entity is counted with, its values when it carries none;
+	// null for a new one
+	private EmbeddedEntity counted(Entity entity) {
+		if (entity == null) {
+			return null;
+		}
+		return entity.hasProperty(SHADOW_PROPERTY) ? (EmbeddedEntity) entity.getProperty(SHADOW_PROPERTY) : values(entity);
+	}
+
+	// the grouping values and the numbers to sum of the entity
+	private EmbeddedEntity values(Entity entity) {
+		EmbeddedEntity values = new EmbeddedEntity();
+		for (String grouping : settings.getRunningAggregates(entity.getKind())) {
+			values.setUnindexedProperty(grouping, entity.getProperty(grouping));
+		}
+		Set<String> aggregates = settings.getAggregates(entity.getKind());
+		if (aggregates != null) {
+			for (String propName : aggregates) {
+				if (entity.getProperty(propName) instanceof Number) {
+					values.setUnindexedProperty(SUM_PREFIX + propName, entity.getProperty(propName));
+				}
+			}
+		}
+		return values;
+	}
+
+	private static Query query(String entitySetName, String groupingName) {
+		return new Query(KIND).setFilter(CompositeFilterOperator.and(
+				new FilterPredicate(SET_PROPERTY, FilterOperator.EQUAL, entitySetName),
+				new FilterPredicate(GROUPING_PROPERTY, FilterOperator.EQUAL, groupingName)));
+	}
+
+	private static Aggregator.Row toRow(Entity shard) {
+		Aggregator.Row row = new Aggregator.Row();
+		for (Map.Entry<String, Object> property : shard.getProperties().entrySet()) {
+			if (property.getKey().equals(COUNT_PROPERTY)) {
+				row.count = (Long) property.getValue();
+			} else if (property.getKey().startsWith(SUM_PREFIX)) {
+				row.addSum(property.getKey().substring(SUM_PREFIX.length()), (Double) property.getValue());
+			}
+		}
+		return row;
+	}
+
+	private static Entity toShard(String entitySetName, String groupingName, Object group, String shard, Aggregator.Row row) {
+		Entity entity = new Entity(KeyFactory.createKey(KIND, rowName(entitySetName, groupingName, group) + SEPARATOR + shard));
+		entity.setProperty(SET_PROPERTY, entitySetName);
+		entity.setProperty(GROUPING_PROPERTY, groupingName);
+		entity.setUnindexedProperty(GROUP_PROPERTY, group);
+		entity.setUnindexedProperty(COUNT_PROPERTY, row.count);
+		for (Map.Entry<String, Double> sum : row.getSums().entrySet()) {
+			entity.setUnindexedProperty(SUM_PREFIX + sum.getKey(), sum.getValue());
+		}
+		return entity;
+	}
+
+	// the group goes into key names, so groupings are meant for short values
+	private static String rowName(String entitySetName, String groupingName, Object group) {
+		String groupName;
+		if (group == null) {
+			groupName = "";
+		} else if (group instanceof Key) {
+			groupName = KeyFactory.keyToString((Key) group);
+		} else if (group instanceof Date) {
+			groupName = "Date" + SEPARATOR + ((Date) group).getTime();
+		} else {
+			groupName = group.getClass().getSimpleName() + SEPARATOR + group;
+		}
+		return entitySetName + SEPARATOR + groupingName + SEPARATOR + groupName;
+	}
+}
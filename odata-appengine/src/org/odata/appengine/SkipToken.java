@@ -0,0 +1,78 @@
+package org.odata.appengine;
+
+import org.odata4j.exceptions.BadRequestException;
+
+import com.google.appengine.api.datastore.Cursor;
+
+/**
+ * Server-driven paging token: the datastore cursor where the next page starts
+ * and, when $top was given, how many entities are still to be returned. The
+ * remaining count travels in the token because only some formats rewrite $top
+ * in the next link. Pages of a navigation property's stored keys start at an
+ * offset instead of a cursor, written as ~offset.
+ */
+class SkipToken {
+
+	private static final char SEPARATOR = '.';
+	private static final char OFFSET = '~';
+
+	private final Cursor cursor;
+	private final Integer offset;
+	private final Integer remaining;
+
+	SkipToken(Cursor cursor, Integer remaining) {
+		this(cursor, null, remaining);
+	}
+
+	SkipToken(int offset, Integer remaining) {
+		this(null, offset, remaining);
+	}
+
+	private SkipToken(Cursor cursor, Integer offset, Integer remaining) {
+		this.cursor = cursor;
+		this.offset = offset;
+		this.remaining = remaining;
+	}
+
+	/**
+	 * Null for an offset token.
+	 */
+	Cursor getCursor() {
+		return cursor;
+	}
+
+	/**
+	 * Null for a cursor token.
+	 */
+	Integer getOffset() {
+		return offset;
+	}
+
+	Integer getRemaining() {
+		return remaining;
+	}
+
+	static SkipToken parse(String skipToken) {
+		try {
+			int i = skipToken.lastIndexOf(SEPARATOR);
+			String position = i < 0 ? skipToken : skipToken.substring(0, i);
+			Integer remaining = i < 0 ? null : Integer.parseInt(skipToken.substring(i + 1));
+			if (position.length() > 0 && position.charAt(0) == OFFSET) {
+				int offset = Integer.parseInt(position.substring(1));
+				if (offset < 0) {
+					throw new IllegalArgumentException();
+				}
+				return new SkipToken(offset, remaining);
+			}
+			return new SkipToken(Cursor.fromWebSafeString(position), remaining);
+		} catch (Exception e) {
+			throw new BadRequestException("Invalid $skiptoken " + skipToken);
+		}
+	}
+
+	@Override
+	public String toString() {
+		String position = cursor != null ? cursor.toWebSafeString() : OFFSET + offset.toString();
+		return remaining != null ? position + SEPARATOR + remaining : position;
+	}
+}
@@ -0,0 +1,151 @@
+package org.odata.appengine;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.core4j.Func1;
+import org.odata4j.core.OEntity;
+import org.odata4j.edm.EdmEntitySet;
+import org.odata4j.producer.EntitiesResponse;
+
+import com.google.appengine.api.datastore.Entity;
+
+/**
+ * Entities response backed by a datastore iterator. Entities are read and
+ * converted one chunk at a time while the response is serialized, so at most
+ * one chunk of Entities and OEntities is held in memory. The response itself
+ * is not bounded: odata4j 0.7 serializes the whole feed into a StringWriter
+ * before it is written, so the serialized page still grows with $top. The
+ * skip token is only known once the source is exhausted; asking for it (or
+ * for random access) earlier buffers the remaining entities.
+ */
+class StreamingEntitiesResponse implements EntitiesResponse {
+
+	private final EdmEntitySet entitySet;
+	private final Integer inlineCount;
+	private final Iterator<Entity> source;
+	private final int chunkSize;
+	private final Func1<List<Entity>, List<OEntity>> converter;
+	private final Func1<Integer, String> skipTokenFactory;
+	private final List<OEntity> entities = new StreamingList();
+
+	private List<OEntity> buffered;
+	private boolean streaming;
+	private boolean exhausted;
+	private int count;
+	private String skipToken;
+
+	StreamingEntitiesResponse(EdmEntitySet entitySet, Integer inlineCount, Iterator<Entity> source, int chunkSize, Func1<List<Entity>, List<OEntity>> converter, Func1<Integer, String> skipTokenFactory) {
+		this.entitySet = entitySet;
+		this.inlineCount = inlineCount;
+		this.source = source;
+		this.chunkSize = chunkSize;
+		this.converter = converter;
+		this.skipTokenFactory = skipTokenFactory;
+	}
+
+	@Override
+	public EdmEntitySet getEntitySet() {
+		return entitySet;
+	}
+
+	@Override
+	public List<OEntity> getEntities() {
+		return entities;
+	}
+
+	@Override
+	public Integer getInlineCount() {
+		return inlineCount;
+	}
+
+	@Override
+	public String getSkipToken() {
+		if (!exhausted) {
+			buffer();
+		}
+		return skipToken;
+	}
+
+	private List<OEntity> nextChunk() {
+		List<Entity> chunk = new ArrayList<Entity>(chunkSize);
+		while (chunk.size() < chunkSize && source.hasNext()) {
+			chunk.add(source.next());
+		}
+		count += chunk.size();
+		if (!source.hasNext()) {
+			exhausted = true;
+			skipToken = skipTokenFactory != null ? skipTokenFactory.apply(count) : null;
+		}
+		return chunk.size() > 0 ? converter.apply(chunk) : new ArrayList<OEntity>();
+	}
+
+	private void buffer() {
+		if (streaming) {
+			throw new IllegalStateException("Streaming entities response is being iterated");
+		}
+		if (buffered == null) {
+			buffered = new ArrayList<OEntity>();
+		}
+		while (!exhausted) {
+			buffered.addAll(nextChunk());
+		}
+	}
+
+	private class StreamingList extends AbstractList<OEntity> {
+
+		@Override
+		public Iterator<OEntity> iterator() {
+			if (buffered != null || exhausted) {
+				buffer();
+				return buffered.iterator();
+			}
+			if (streaming) {
+				throw new IllegalStateException("Streaming entities response can only be iterated once");
+			}
+			streaming = true;
+			return new Iterator<OEntity>() {
+				private Iterator<OEntity> chunk = nextChunk().iterator();
+
+				@Override
+				public boolean hasNext() {
+					while (!chunk.hasNext() && !exhausted) {
+						chunk = nextChunk().iterator();
+					}
+					return chunk.hasNext();
+				}
+
+				@Override
+				public OEntity next() {
+					if (!hasNext()) {
+						throw new NoSuchElementException();
+					}
+					return chunk.next();
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+		@Override
+		public OEntity get(int index) {
+			buffer();
+			return buffered.get(index);
+		}
+
+		@Override
+		public int size() {
+			if (streaming && exhausted) {
+				return count;
+			}
+			buffer();
+			return buffered.size();
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package org.odata.appengine;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.odata4j.core.OEntities;
+import org.odata4j.core.OEntityIds;
+import org.odata4j.core.OEntityKey;
+import org.odata4j.core.OLink;
+import org.odata4j.core.OProperties;
+import org.odata4j.core.OProperty;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Transaction;
+
+public class CachedDatastoreTest extends ProducerTestCase {
+
+	@Test
+	public void mergeStartsFromTheStoredEntity() throws Exception {
+		set(ProducerSettings.ENTITY_CACHE_SECONDS, "Device", 60);
+		Key key = putDevices(1).get(0);
+		Producer producer = producer();
+		producer.getEntity("Device", OEntityKey.create(1L), null);
+
+		// written by another instance, whose cache this one does not share
+		Entity renamed = datastore.get(key);
+		renamed.setProperty("Name", "Renamed");
+		datastore.put(renamed);
+
+		producer.mergeEntity("Device", OEntities.create(producer.getMetadata().getEdmEntitySet("Device"), OEntityKey.create(1L),
+				Collections.<OProperty<?>> singletonList(OProperties.int64("Number", 100L)), Collections.<OLink> emptyList()));
+		Entity stored = datastore.get(key);
+		assertEquals("Renamed", stored.getProperty("Name"));
+		assertEquals(100L, stored.getProperty("Number"));
+		assertEquals("Renamed", producer.getEntity("Device", OEntityKey.create(1L), null).getEntity().getProperty("Name").getValue());
+	}
+
+	@Test
+	public void linkChangeStartsFromTheStoredEntity() throws Exception {
+		set(ProducerSettings.ENTITY_CACHE_SECONDS, "User", 60);
+		List<Key> devices = putDevices(2);
+		Entity user = new Entity("User");
+		user.setProperty("Name", "User");
+		user.setProperty("Devices", devices.subList(0, 1));
+		Key key = datastore.put(user);
+		OEntityKey userKey = OEntityKey.create(key.getId());
+		Producer linking = producer();
+		linking.getEntity("User", userKey, null);
+
+		Producer renaming = producer();
+		renaming.mergeEntity("User", OEntities.create(renaming.getMetadata().getEdmEntitySet("User"), userKey,
+				Collections.<OProperty<?>> singletonList(OProperties.string("Name", "Renamed")), Collections.<OLink> emptyList()));
+		linking.createLink(OEntityIds.create("User", key.getId()), "Devices", OEntityIds.create("Device", 2L));
+
+		Entity stored = datastore.get(key);
+		assertEquals("Renamed", stored.getProperty("Name"));
+		assertEquals(devices, stored.getProperty("Devices"));
+		assertEquals(2L, EntityVersion.get(stored));
+	}
+
+	@Test
+	public void transactionalWriteEvictsAfterTheCommit() {
+		set(ProducerSettings.ENTITY_CACHE_SECONDS, "Device", 60);
+		Key key = putDevices(1).get(0);
+		CachedDatastore store = store();
+
+		Transaction txn = datastore.beginTransaction();
+		Entity device = store.get(txn, Collections.singletonList(key)).get(key);
+		device.setProperty("Number", 100L);
+		store.put(txn, Collections.singletonList(device));
+		// a read racing the commit caches the entity as stored before it
+		assertEquals(1L, store.get(Collections.singletonList(key)).get(key).getProperty("Number"));
+		txn.commit();
+		store.committed(txn);
+
+		assertEquals(100L, store.get(Collections.singletonList(key)).get(key).getProperty("Number"));
+	}
+
+	@Test
+	public void rolledBackWriteIsForgotten() {
+		set(ProducerSettings.ENTITY_CACHE_SECONDS, "Device", 60);
+		Key key = putDevices(1).get(0);
+		CachedDatastore store = store();
+
+		store.beginRequest();
+		try {
+			Transaction txn = datastore.beginTransaction();
+			Entity device = store.get(txn, Collections.singletonList(key)).get(key);
+			device.setProperty("Number", 100L);
+			store.put(txn, Collections.singletonList(device));
+			txn.rollback();
+			store.discard(txn);
+
+			assertEquals(1L, store.get(Collections.singletonList(key)).get(key).getProperty("Number"));
+		} finally {
+			store.endRequest();
+		}
+	}
+
+	private CachedDatastore store() {
+		ProducerSettings producerSettings = new ProducerSettings(settings);
+		return new CachedDatastore(datastore, new ConfiguredDatastore(producerSettings, InMemoryMetrics.getDefault()), producerSettings, InMemoryMetrics.getDefault());
+	}
+}
@@ -0,0 +1,124 @@
+package org.odata.appengine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.odata4j.core.OEntities;
+import org.odata4j.core.OEntity;
+import org.odata4j.core.OEntityKey;
+import org.odata4j.core.OLink;
+import org.odata4j.core.OProperties;
+import org.odata4j.core.OProperty;
+import org.odata4j.edm.EdmEntitySet;
+import org.odata4j.exceptions.BadRequestException;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+
+public class ChangeSetTest extends ProducerTestCase {
+
+	@Test
+	public void atomicChangeSetWritesFiveEntityGroups() {
+		putDevices(3);
+		Producer producer = producer();
+
+		ChangeSet changeSet = producer.newChangeSet(true);
+		changeSet.createEntity("Device", device(producer, null, 10));
+		changeSet.createEntity("Device", device(producer, null, 11));
+		changeSet.mergeEntity("Device", device(producer, 1L, 100));
+		changeSet.updateEntity("Device", device(producer, 2L, 200));
+		changeSet.mergeEntity("Device", device(producer, 2L, 201));
+		changeSet.deleteEntity("Device", OEntityKey.create(3L));
+		assertEquals(2, changeSet.commit().size());
+
+		assertEquals(numbers(10, 11, 100, 201), readPages(producer, "Device", null, "Number", 1));
+	}
+
+	@Test
+	public void atomicChangeSetOverSixEntityGroupsFailsUpFront() {
+		putDevices(4);
+		Producer producer = producer();
+
+		ChangeSet changeSet = producer.newChangeSet(true);
+		changeSet.createEntity("Device", device(producer, null, 10));
+		changeSet.createEntity("Device", device(producer, null, 11));
+		for (long id = 1; id <= 4; id++)
+			changeSet.mergeEntity("Device", device(producer, id, 100 + id));
+		try {
+			changeSet.commit();
+			fail();
+		} catch (BadRequestException expected) {
+		}
+		assertEquals(4, datastore.prepare(new Query("Device")).countEntities(FetchOptions.Builder.withDefaults()));
+		assertEquals(numbers(1, 2, 3, 4), readPages(producer, "Device", null, "Number", 1));
+	}
+
+	@Test
+	public void nonAtomicChangeSetHasNoEntityGroupLimit() {
+		putDevices(6);
+		Producer producer = producer();
+
+		ChangeSet changeSet = producer.newChangeSet(false);
+		for (long id = 1; id <= 6; id++)
+			changeSet.mergeEntity("Device", device(producer, id, 100 + id));
+		changeSet.commit();
+		assertEquals(numbers(101, 102, 103, 104, 105, 106), readPages(producer, "Device", null, "Number", 1));
+	}
+
+	@Test
+	public void nonAtomicChangeSetStartsFromTheStoredEntities() throws Exception {
+		set(ProducerSettings.ENTITY_CACHE_SECONDS, "Device", 60);
+		Key key = putDevices(1).get(0);
+		Producer producer = producer();
+		producer.getEntity("Device", OEntityKey.create(1L), null);
+
+		// written by another instance, whose cache this one does not share
+		Entity renamed = datastore.get(key);
+		renamed.setProperty("Name", "Renamed");
+		EntityVersion.increment(renamed);
+		datastore.put(renamed);
+
+		ChangeSet changeSet = producer.newChangeSet(false);
+		changeSet.mergeEntity("Device", device(producer, 1L, 100));
+		changeSet.mergeEntity("Device", device(producer, 1L, 101));
+		changeSet.commit();
+		Entity stored = datastore.get(key);
+		assertEquals("Renamed", stored.getProperty("Name"));
+		assertEquals(101L, stored.getProperty("Number"));
+		assertEquals(2L, EntityVersion.get(stored));
+	}
+
+	@Test
+	public void changeSetsCheckIfMatch() {
+		putDevices(2);
+		Producer producer = producer();
+		for (boolean atomic : new boolean[] { true, false }) {
+			ConditionalRequest request = ConditionalRequest.begin("\"1\"", null);
+			try {
+				ChangeSet changeSet = producer.newChangeSet(atomic);
+				changeSet.mergeEntity("Device", device(producer, 1L, 100));
+				changeSet.deleteEntity("Device", OEntityKey.create(2L));
+				changeSet.commit();
+				fail();
+			} catch (PreconditionFailedException expected) {
+			} finally {
+				request.end();
+			}
+		}
+		assertEquals(numbers(1, 2), readPages(producer, "Device", null, "Number", 1));
+	}
+
+	private static OEntity device(Producer producer, Long id, long number) {
+		EdmEntitySet ees = producer.getMetadata().getEdmEntitySet("Device");
+		List<OProperty<?>> properties = Collections.<OProperty<?>> singletonList(OProperties.int64("Number", number));
+		if (id == null)
+			return OEntities.createRequest(ees, properties, Collections.<OLink> emptyList());
+		return OEntities.create(ees, OEntityKey.create(id), properties, Collections.<OLink> emptyList());
+	}
+}
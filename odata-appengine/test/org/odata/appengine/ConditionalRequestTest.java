@@ -0,0 +1,69 @@
+package org.odata.appengine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+
+import org.junit.Test;
+import org.odata4j.core.OEntityIds;
+import org.odata4j.exceptions.BadRequestException;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+
+public class ConditionalRequestTest extends ProducerTestCase {
+
+	@Test
+	public void linkChangeChecksIfMatch() throws Exception {
+		List<Key> devices = putDevices(2);
+		Key user = putUser();
+		Producer producer = producer();
+
+		ConditionalRequest request = ConditionalRequest.begin("\"1\"", null);
+		try {
+			producer.createLink(OEntityIds.create("User", user.getId()), "Devices", OEntityIds.create("Device", 1L));
+			fail();
+		} catch (PreconditionFailedException expected) {
+		} finally {
+			request.end();
+		}
+		assertNull(datastore.get(user).getProperty("Devices"));
+
+		request = ConditionalRequest.begin("\"0\"", null);
+		try {
+			producer.createLink(OEntityIds.create("User", user.getId()), "Devices", OEntityIds.create("Device", 1L));
+			assertEquals("\"1\"", request.getEntityTag());
+		} finally {
+			request.end();
+		}
+		Entity stored = datastore.get(user);
+		assertEquals(devices.subList(0, 1), stored.getProperty("Devices"));
+		assertEquals(1L, EntityVersion.get(stored));
+	}
+
+	@Test
+	public void linkStoredOutsideOfTheEntityRejectsIfMatch() throws Exception {
+		set(ProducerSettings.RELATIONSHIP_STORAGE, "User.Devices", ProducerSettings.FOREIGN_KEY);
+		Key device = putDevices(1).get(0);
+		Key user = putUser();
+		Producer producer = producer();
+
+		ConditionalRequest request = ConditionalRequest.begin("\"0\"", null);
+		try {
+			producer.createLink(OEntityIds.create("User", user.getId()), "Devices", OEntityIds.create("Device", 1L));
+			fail();
+		} catch (BadRequestException expected) {
+		} finally {
+			request.end();
+		}
+		assertEquals(0L, EntityVersion.get(datastore.get(device)));
+	}
+
+	private Key putUser() {
+		Entity user = new Entity("User");
+		user.setProperty("Name", "User");
+		return datastore.put(user);
+	}
+}
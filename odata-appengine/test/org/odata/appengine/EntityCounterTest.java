@@ -0,0 +1,66 @@
+package org.odata.appengine;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.odata4j.core.OEntityKey;
+import org.odata4j.producer.EntitiesResponse;
+
+import com.google.appengine.api.datastore.KeyFactory;
+
+public class EntityCounterTest extends ProducerTestCase {
+
+	@Test
+	public void filteredCountIsCached() {
+		set(ProducerSettings.COUNT_CACHE_SECONDS, "Device", 60);
+		putDevices(10);
+		Producer producer = producer();
+
+		assertEquals(4, producer.getEntitiesCount("Device", filter("Number le 4")).getCount());
+		assertEquals(6, producer.getEntitiesCount("Device", filter("Number gt 4")).getCount());
+
+		// the cached count is answered even when the entities changed meanwhile
+		datastore.delete(KeyFactory.createKey("Device", 1));
+		assertEquals(4, producer.getEntitiesCount("Device", filter("Number le 4")).getCount());
+	}
+
+	@Test
+	public void filteredInlineCountIsCached() {
+		set(ProducerSettings.COUNT_CACHE_SECONDS, "Device", 60);
+		putDevices(10);
+		Producer producer = producer();
+
+		EntitiesResponse response = producer.getEntities("Device", query("Number le 4 and Name ne 'Device 2'", null, 2, null, null, true));
+		assertEquals(Integer.valueOf(3), response.getInlineCount());
+		assertEquals(numbers(1, 3), numbers(response));
+
+		// the cached count is answered even when the entities changed meanwhile
+		datastore.delete(KeyFactory.createKey("Device", 1));
+		response = producer.getEntities("Device", query("Number le 4 and Name ne 'Device 2'", null, 2, null, null, true));
+		assertEquals(Integer.valueOf(3), response.getInlineCount());
+		assertEquals(numbers(3, 4), numbers(response));
+	}
+
+	@Test
+	public void residualCountIsCached() {
+		set(ProducerSettings.COUNT_CACHE_SECONDS, "Device", 60);
+		putDevices(12);
+		Producer producer = producer();
+
+		// substringof is evaluated in memory
+		assertEquals(4, producer.getEntitiesCount("Device", filter("substringof('1', Name)")).getCount());
+		datastore.delete(KeyFactory.createKey("Device", 10));
+		assertEquals(4, producer.getEntitiesCount("Device", filter("substringof('1', Name)")).getCount());
+	}
+
+	@Test
+	public void shardedCountFollowsWrites() {
+		set(ProducerSettings.COUNT_SHARDS, "Device", 4);
+		putDevices(5);
+		Producer producer = producer();
+
+		assertEquals(5, producer.getEntitiesCount("Device", filter(null)).getCount());
+		producer.deleteEntity("Device", OEntityKey.create(3L));
+		assertEquals(4, producer.getEntitiesCount("Device", filter(null)).getCount());
+	}
+}
@@ -0,0 +1,129 @@
+package org.odata.appengine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.joda.time.LocalDateTime;
+import org.junit.Test;
+import org.odata4j.exceptions.BadRequestException;
+import org.odata4j.producer.resources.OptionsQueryParser;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Text;
+
+public class EntityFilterTest extends ProducerTestCase {
+
+	@Test
+	public void stringFunctions() {
+		Entity device = device(1, " Phone ");
+		assertMatches(device, "substringof('hon', Name)", "endswith(Name, 'e ')", "toupper(trim(Name)) eq 'PHONE'", "length(Name) eq 7",
+				"indexof(Name, 'h') eq 2", "concat(Name, 'x') eq ' Phone x'", "replace(Name, 'P', 'p') eq ' phone '", "substring(Name, 1, 2) eq 'Ph'");
+		assertNoMatch(device, "substringof('x', Name)", "startswith(Name, 'P')");
+	}
+
+	@Test
+	public void textIsAString() {
+		Entity device = device(1, null);
+		device.setProperty("Name", new Text("Phone"));
+		assertMatches(device, "Name eq 'Phone'", "startswith(Name, 'Ph')");
+	}
+
+	@Test
+	public void arithmetic() {
+		Entity device = device(7, "Phone");
+		assertMatches(device, "Number add 1 eq 8", "Number sub 10 eq -3", "Number mul 2 eq 14", "Number div 2 eq 3", "Number mod 4 eq 3", "-Number lt 0",
+				"Number div 2.0M eq 3.5M", "round(3.6M) eq 4.0M", "floor(Number div 2.0M) eq 3.0M", "ceiling(Number div 2.0M) eq 4.0M");
+		assertNoMatch(device, "Number div 0 eq 0", "Name add 1 eq 1");
+	}
+
+	@Test
+	public void logic() {
+		Entity device = device(7, "Phone");
+		assertMatches(device, "not (Number eq 1)", "Number eq 1 or Name eq 'Phone'", "Number gt 1 and not startswith(Name, 'x')");
+		assertNoMatch(device, "not (Number eq 7)", "Number eq 1 and Name eq 'Phone'", "Missing eq 1", "Missing ne null and Number eq 7");
+	}
+
+	@Test
+	public void dateParts() {
+		Entity device = device(1, "Phone");
+		device.setProperty("Created", new LocalDateTime(2012, 5, 6, 7, 8, 9).toDateTime().toDate());
+		assertMatches(device, "year(Created) eq 2012", "month(Created) eq 5", "day(Created) eq 6", "hour(Created) eq 7", "minute(Created) eq 8",
+				"second(Created) eq 9", "Created lt datetime'2012-05-06T07:08:10'");
+		assertNoMatch(device, "year(Name) eq 2012");
+	}
+
+	@Test
+	public void navigationKeys() {
+		Entity user = new Entity("User");
+		user.setProperty("Devices", Arrays.asList(KeyFactory.createKey("Device", 1), KeyFactory.createKey("Device", 2)));
+		user.setProperty("Owner", KeyFactory.createKey("User", 3));
+		assertMatches(user, "Devices/Id eq 2", "Devices/Id eq 5 or Devices/Id eq 1", "Devices/Id gt 1", "Devices/Id ne 1", "Owner/Id eq 3");
+		assertNoMatch(user, "Devices/Id eq 3", "Devices/Id gt 2", "Owner/Id eq 1");
+
+		user.setProperty("Devices", Collections.<Key> emptyList());
+		assertNoMatch(user, "Devices/Id eq 1", "Devices/Id ne 1");
+	}
+
+	@Test
+	public void matchesStopAtTheLimits() {
+		List<Entity> devices = new ArrayList<Entity>();
+		for (int i = 1; i <= 10; i++)
+			devices.add(device(i, "Device " + i));
+		EntityFilter odd = compile("Number mod 2 eq 1");
+
+		EntityFilter.Matches matches = odd.apply(devices.iterator(), 1, 2, null);
+		assertEquals(numbers(3, 5), numbers(matches));
+		assertFalse(matches.isTruncated());
+
+		Iterator<Entity> source = devices.iterator();
+		matches = odd.apply(source, 0, null, 4);
+		assertEquals(numbers(1, 3), numbers(matches));
+		assertTrue(matches.isTruncated());
+		// nothing was read ahead of the fourth entity
+		assertEquals(5L, source.next().getProperty("Number"));
+
+		try {
+			numbers(odd.apply(devices.iterator(), 3, null, 4));
+			fail();
+		} catch (BadRequestException expected) {
+		}
+	}
+
+	private static Entity device(long number, String name) {
+		Entity device = new Entity("Device", number);
+		device.setProperty("Number", number);
+		device.setProperty("Name", name);
+		return device;
+	}
+
+	private static EntityFilter compile(String filter) {
+		return new EntityFilter(Collections.singletonList(OptionsQueryParser.parseFilter(filter)));
+	}
+
+	private static List<Long> numbers(Iterator<Entity> entities) {
+		List<Long> numbers = new ArrayList<Long>();
+		while (entities.hasNext())
+			numbers.add((Long) entities.next().getProperty("Number"));
+		return numbers;
+	}
+
+	private static void assertMatches(Entity entity, String... filters) {
+		for (String filter : filters)
+			assertTrue(filter, compile(filter).matches(entity));
+	}
+
+	private static void assertNoMatch(Entity entity, String... filters) {
+		for (String filter : filters)
+			assertFalse(filter, compile(filter).matches(entity));
+	}
+}
@@ -0,0 +1,119 @@
+package org.odata.appengine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.odata4j.edm.EdmEntitySet;
+import org.odata4j.producer.resources.OptionsQueryParser;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query.CompositeFilter;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+
+public class FilterPlannerTest extends ProducerTestCase {
+
+	private final FilterPlanner planner = new FilterPlanner();
+
+	@Test
+	public void conjunctsArePushedDownTogether() {
+		FilterPlanner.Plan plan = plan("Device", "Name eq 'a' and Number ge 2 and Number lt 5", null, false);
+		assertEquals(CompositeFilterOperator.and(new FilterPredicate("Name", FilterOperator.EQUAL, "a"),
+				new FilterPredicate("Number", FilterOperator.GREATER_THAN_OR_EQUAL, 2), new FilterPredicate("Number", FilterOperator.LESS_THAN, 5)), plan.getFilter());
+		assertNull(plan.getResidual());
+	}
+
+	@Test
+	public void equalityChainIsIn() {
+		FilterPlanner.Plan plan = plan("Device", "Number eq 1 or Number eq 2 or (Number eq 3)", null, false);
+		FilterPredicate in = (FilterPredicate) plan.getFilter();
+		assertEquals(FilterOperator.IN, in.getOperator());
+		assertEquals(Arrays.<Object> asList(1, 2, 3), in.getValue());
+		assertNull(plan.getResidual());
+	}
+
+	@Test
+	public void disjunctionOfPropertiesIsOr() {
+		FilterPlanner.Plan plan = plan("Device", "Number eq 1 or Name eq 'a'", null, false);
+		assertEquals(CompositeFilterOperator.OR, ((CompositeFilter) plan.getFilter()).getOperator());
+		assertNull(plan.getResidual());
+	}
+
+	@Test
+	public void multiQueriesStayInTheResidualWithCursors() {
+		FilterPlanner.Plan plan = plan("Device", "Name eq 'a' and (Number eq 1 or Number eq 2) and Number ne 3", null, true);
+		assertEquals(new FilterPredicate("Name", FilterOperator.EQUAL, "a"), plan.getFilter());
+		assertNotNull(plan.getResidual());
+	}
+
+	@Test
+	public void inequalitiesOnASecondPropertyStayInTheResidual() {
+		FilterPlanner.Plan plan = plan("Device", "Number gt 1 and Name lt 'b'", null, false);
+		assertEquals(new FilterPredicate("Number", FilterOperator.GREATER_THAN, 1), plan.getFilter());
+		assertNotNull(plan.getResidual());
+	}
+
+	@Test
+	public void inequalityHasToBeOnTheFirstSortProperty() {
+		FilterPlanner.Plan plan = plan("Device", "Number gt 1 and Name lt 'b'", "Name", false);
+		assertEquals(new FilterPredicate("Name", FilterOperator.LESS_THAN, "b"), plan.getFilter());
+		assertNotNull(plan.getResidual());
+	}
+
+	@Test
+	public void startsWithIsARange() {
+		FilterPlanner.Plan plan = plan("Device", "startswith(Name, 'ab')", null, false);
+		assertEquals(CompositeFilterOperator.and(new FilterPredicate("Name", FilterOperator.GREATER_THAN_OR_EQUAL, "ab"), new FilterPredicate("Name", FilterOperator.LESS_THAN, "ac")),
+				plan.getFilter());
+		assertNull(plan.getResidual());
+	}
+
+	@Test
+	public void functionsAreResidual() {
+		FilterPlanner.Plan plan = plan("Device", "substringof('b', Name) and Number eq 1", null, false);
+		assertEquals(new FilterPredicate("Number", FilterOperator.EQUAL, 1), plan.getFilter());
+		Entity device = new Entity("Device");
+		device.setProperty("Name", "abc");
+		device.setProperty("Number", 2L);
+		assertTrue(plan.getResidual().matches(device));
+	}
+
+	@Test
+	public void navigationKeysAreKeyFilters() {
+		FilterPlanner.Plan plan = plan("User", "Devices/Id eq 1", null, false);
+		assertEquals(new FilterPredicate("Devices", FilterOperator.EQUAL, KeyFactory.createKey("Device", 1)), plan.getFilter());
+
+		plan = plan("User", "Devices/Id eq 1 or Devices/Id eq 2", null, false);
+		assertEquals(new FilterPredicate("Devices", FilterOperator.IN, Arrays.asList(KeyFactory.createKey("Device", 1), KeyFactory.createKey("Device", 2))), plan.getFilter());
+	}
+
+	@Test
+	public void navigationKeyDisjunctionMatchesKeyListsWhenPaged() {
+		List<Key> devices = putDevices(3);
+		for (int i = 0; i < devices.size(); i++) {
+			Entity user = new Entity("User");
+			user.setProperty("Name", "User " + i);
+			user.setProperty("Devices", devices.subList(i, devices.size()));
+			datastore.put(user);
+		}
+		String filter = "Devices/Id eq 1 or Devices/Id eq 2";
+
+		assertEquals(2, producer().getEntities("User", filter(filter)).getEntities().size());
+		set(ProducerSettings.MAX_PAGE_SIZE, "User", 10);
+		assertEquals(2, producer().getEntities("User", filter(filter)).getEntities().size());
+	}
+
+	private FilterPlanner.Plan plan(String entitySetName, String filter, String orderBy, boolean cursors) {
+		EdmEntitySet ees = metadata().getEdmEntitySet(entitySetName);
+		return planner.plan(ees, OptionsQueryParser.parseFilter(filter), orderBy != null ? OptionsQueryParser.parseOrderBy(orderBy) : null, cursors);
+	}
+}
@@ -0,0 +1,167 @@
+package org.odata.appengine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.odata4j.core.OEntity;
+import org.odata4j.edm.EdmAssociation;
+import org.odata4j.edm.EdmAssociationEnd;
+import org.odata4j.edm.EdmDataServices;
+import org.odata4j.edm.EdmEntityContainer;
+import org.odata4j.edm.EdmEntitySet;
+import org.odata4j.edm.EdmEntityType;
+import org.odata4j.edm.EdmMultiplicity;
+import org.odata4j.edm.EdmNavigationProperty;
+import org.odata4j.edm.EdmProperty;
+import org.odata4j.edm.EdmSchema;
+import org.odata4j.edm.EdmSimpleType;
+import org.odata4j.producer.EntitiesResponse;
+import org.odata4j.producer.InlineCount;
+import org.odata4j.producer.QueryInfo;
+import org.odata4j.producer.resources.OptionsQueryParser;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyRange;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+/**
+ * Producer over Devices with a single-valued link to their Owner and Users
+ * with a MANY link to their Devices, in an
+ * in-memory local datastore and memcache set up for every test. The
+ * datastore applies every write at once, so queries see them like gets do.
+ * The tests run with JUnit 4 and the SDK's appengine-testing.jar and
+ * appengine-api-stubs.jar, copied to lib like for the benchmarks.
+ */
+public abstract class ProducerTestCase {
+
+	static final String NAMESPACE = "Datastore";
+
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+			new LocalDatastoreServiceTestConfig().setNoStorage(true).setApplyAllHighRepJobPolicy(),
+			new LocalMemcacheServiceTestConfig());
+
+	DatastoreService datastore;
+	Properties settings;
+
+	@Before
+	public void setUpServices() {
+		helper.setUp();
+		datastore = DatastoreServiceFactory.getDatastoreService();
+		settings = new Properties();
+	}
+
+	@After
+	public void tearDownServices() {
+		helper.tearDown();
+	}
+
+	Producer producer() {
+		return new Producer(metadata(), new ProducerSettings(settings));
+	}
+
+	void set(String name, String entitySetName, Object value) {
+		settings.setProperty("odata.appengine." + name + "." + entitySetName, value.toString());
+	}
+
+	static EdmDataServices metadata() {
+		EdmEntityType.Builder device = EdmEntityType.newBuilder().setNamespace(NAMESPACE).setName("Device").addKeys("Id").addProperties(
+				EdmProperty.newBuilder("Id").setType(EdmSimpleType.INT64),
+				EdmProperty.newBuilder("Name").setType(EdmSimpleType.STRING),
+				EdmProperty.newBuilder("Number").setType(EdmSimpleType.INT64));
+		EdmEntityType.Builder user = EdmEntityType.newBuilder().setNamespace(NAMESPACE).setName("User").addKeys("Id").addProperties(
+				EdmProperty.newBuilder("Id").setType(EdmSimpleType.INT64),
+				EdmProperty.newBuilder("Name").setType(EdmSimpleType.STRING));
+
+		EdmAssociationEnd.Builder userEnd = EdmAssociationEnd.newBuilder().setRole("User").setType(user).setMultiplicity(EdmMultiplicity.ZERO_TO_ONE);
+		EdmAssociationEnd.Builder devicesEnd = EdmAssociationEnd.newBuilder().setRole("Device").setType(device).setMultiplicity(EdmMultiplicity.MANY);
+		EdmAssociation.Builder userDevices = EdmAssociation.newBuilder().setNamespace(NAMESPACE).setName("User_Devices").setEnds(userEnd, devicesEnd);
+		user.addNavigationProperties(EdmNavigationProperty.newBuilder("Devices").setRelationship(userDevices).setFromTo(userEnd, devicesEnd));
+
+		EdmAssociationEnd.Builder ownedEnd = EdmAssociationEnd.newBuilder().setRole("Device").setType(device).setMultiplicity(EdmMultiplicity.MANY);
+		EdmAssociationEnd.Builder ownerEnd = EdmAssociationEnd.newBuilder().setRole("User").setType(user).setMultiplicity(EdmMultiplicity.ZERO_TO_ONE);
+		EdmAssociation.Builder deviceOwner = EdmAssociation.newBuilder().setNamespace(NAMESPACE).setName("Device_Owner").setEnds(ownedEnd, ownerEnd);
+		device.addNavigationProperties(EdmNavigationProperty.newBuilder("Owner").setRelationship(deviceOwner).setFromTo(ownedEnd, ownerEnd));
+
+		EdmEntityContainer.Builder container = EdmEntityContainer.newBuilder().setName("Container").setIsDefault(true).addEntitySets(
+				EdmEntitySet.newBuilder().setName("Device").setEntityType(device),
+				EdmEntitySet.newBuilder().setName("User").setEntityType(user));
+		EdmSchema.Builder schema = EdmSchema.newBuilder().setNamespace(NAMESPACE).addEntityTypes(device, user)
+				.addAssociations(Arrays.asList(userDevices, deviceOwner)).addEntityContainers(container);
+		return EdmDataServices.newBuilder().addSchemas(schema).build();
+	}
+
+	/**
+	 * Devices numbered 1 to count, in the order of their keys. Their ids are
+	 * their numbers, allocated first so that the entities the producer creates
+	 * get other ones.
+	 */
+	List<Key> putDevices(int count) {
+		datastore.allocateIdRange(new KeyRange(null, "Device", 1, count));
+		List<Entity> devices = new ArrayList<Entity>(count);
+		for (int i = 1; i <= count; i++) {
+			Entity device = new Entity("Device", i);
+			device.setProperty("Name", "Device " + i);
+			device.setProperty("Number", (long) i);
+			devices.add(device);
+		}
+		return datastore.put(devices);
+	}
+
+	static QueryInfo query(String filter, String orderBy, Integer top, Integer skip, String skipToken, boolean inlineCount) {
+		return new QueryInfo(inlineCount ? InlineCount.ALLPAGES : InlineCount.NONE, top, skip,
+				filter != null ? OptionsQueryParser.parseFilter(filter) : null,
+				orderBy != null ? OptionsQueryParser.parseOrderBy(orderBy) : null,
+				skipToken, new HashMap<String, String>(), null, null);
+	}
+
+	static QueryInfo filter(String filter) {
+		return query(filter, null, null, null, null, false);
+	}
+
+	/**
+	 * The Numbers of the entities of the response.
+	 */
+	static List<Long> numbers(EntitiesResponse response) {
+		List<Long> numbers = new ArrayList<Long>();
+		for (OEntity entity : response.getEntities()) {
+			numbers.add((Long) entity.getProperty("Number").getValue());
+		}
+		return numbers;
+	}
+
+	static List<Long> numbers(long... values) {
+		List<Long> numbers = new ArrayList<Long>(values.length);
+		for (long value : values) {
+			numbers.add(value);
+		}
+		return numbers;
+	}
+
+	/**
+	 * Reads the entity set page after page following the next links, failing
+	 * when the pages do not end within maxPages.
+	 */
+	List<Long> readPages(Producer producer, String entitySetName, String filter, String orderBy, int maxPages) {
+		List<Long> numbers = new ArrayList<Long>();
+		String skipToken = null;
+		for (int page = 0; page < maxPages; page++) {
+			EntitiesResponse response = producer.getEntities(entitySetName, query(filter, orderBy, null, null, skipToken, false));
+			numbers.addAll(numbers(response));
+			skipToken = response.getSkipToken();
+			if (skipToken == null) {
+				return numbers;
+			}
+		}
+		throw new AssertionError("More than " + maxPages + " pages of " + entitySetName);
+	}
+}
@@ -0,0 +1,103 @@
+package org.odata.appengine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.odata4j.producer.EntitiesResponse;
+
+import com.google.appengine.api.datastore.Entity;
+
+/**
+ * Queries running out of queryBudgetMillis return the entities read so far
+ * with a next link continuing right behind them. Datastore calls are delayed
+ * beyond the budget, so every page ends after its first entity, or with a
+ * residual filter after the first entity it scanned, matching or not.
+ */
+public class QueryBudgetTest extends ProducerTestCase {
+
+	@Before
+	public void slowDown() {
+		SlowDatastore.install(5);
+	}
+
+	@Test
+	public void pagesEndingOnTheBudgetContinue() {
+		set(ProducerSettings.QUERY_BUDGET_MILLIS, "Device", 1);
+		putDevices(5);
+
+		EntitiesResponse response = producer().getEntities("Device", filter(null));
+		assertEquals(numbers(1), numbers(response));
+		assertNotNull(response.getSkipToken());
+		assertEquals(numbers(1, 2, 3, 4, 5), readPages(producer(), "Device", null, null, 6));
+	}
+
+	@Test
+	public void filteredPagesEndingOnTheBudgetContinue() {
+		set(ProducerSettings.QUERY_BUDGET_MILLIS, "Device", 1);
+		putDevices(20);
+
+		assertEquals(numbers(2, 10, 12, 20), readPages(producer(), "Device", "substringof('0', Name) or substringof('2', Name)", null, 21));
+	}
+
+	@Test
+	public void streamedFilteredPagesEndingOnTheBudgetContinue() {
+		set(ProducerSettings.QUERY_BUDGET_MILLIS, "Device", 1);
+		set(ProducerSettings.STREAMING_CHUNK_SIZE, "Device", 1);
+		putDevices(20);
+
+		assertEquals(numbers(2, 10, 12, 20), readPages(producer(), "Device", "substringof('0', Name) or substringof('2', Name)", null, 21));
+	}
+
+	@Test
+	public void filterMatchingNothingEndsOnTheBudget() {
+		set(ProducerSettings.QUERY_BUDGET_MILLIS, "Device", 1);
+		putDevices(20);
+
+		// the budget is spent scanning entities that do not match, the page is empty
+		EntitiesResponse response = producer().getEntities("Device", filter("substringof('x', Name)"));
+		assertEquals(numbers(), numbers(response));
+		assertNotNull(response.getSkipToken());
+		assertEquals(numbers(), readPages(producer(), "Device", "substringof('x', Name)", null, 21));
+	}
+
+	@Test
+	public void orFiltersEndingOnTheBudgetContinue() {
+		set(ProducerSettings.QUERY_BUDGET_MILLIS, "Device", 1);
+		putDevices(20);
+
+		assertEquals(numbers(3, 7, 11, 19), readPages(producer(), "Device", "Number eq 3 or Number eq 7 or Number eq 11 or Number eq 19", null, 21));
+		assertEquals(numbers(4, 5, 17), readPages(producer(), "Device", "Number eq 4 or Number eq 5 or Number eq 17", "Number", 21));
+	}
+
+	@Test
+	public void pagedOrFiltersContinue() {
+		set(ProducerSettings.MAX_PAGE_SIZE, "Device", 2);
+		putDevices(20);
+
+		assertEquals(numbers(1, 4, 9, 16, 17), readPages(producer(), "Device", "Number eq 1 or Number eq 4 or Number eq 9 or Number eq 16 or Number eq 17", null, 5));
+		assertEquals(numbers(2, 3, 18), readPages(producer(), "Device", "Name eq 'Device 2' or Name eq 'Device 3' or Name eq 'Device 18'", "Number", 5));
+	}
+
+	@Test
+	public void entityPromisedIsReturnedAfterTheBudget() throws InterruptedException {
+		Iterator<Entity> source = Arrays.asList(new Entity("Device", 1), new Entity("Device", 2), new Entity("Device", 3)).iterator();
+		BudgetedScan scan = new BudgetedScan(source, System.nanoTime() + 50 * 1000000L, InMemoryMetrics.getDefault());
+
+		assertTrue(scan.hasNext());
+		assertEquals(1, scan.next().getKey().getId());
+		assertTrue(scan.hasNext());
+		Thread.sleep(100);
+		// the source already handed out the entity hasNext promised
+		assertTrue(scan.hasNext());
+		assertEquals(2, scan.next().getKey().getId());
+		assertFalse(scan.hasNext());
+		assertTrue(scan.isTruncated());
+	}
+}
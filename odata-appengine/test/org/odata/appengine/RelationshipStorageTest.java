@@ -0,0 +1,80 @@
+package org.odata.appengine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Collections;
+
+import org.junit.Test;
+import org.odata4j.core.OEntities;
+import org.odata4j.core.OEntityIds;
+import org.odata4j.core.OEntityKey;
+import org.odata4j.core.OLink;
+import org.odata4j.core.OProperties;
+import org.odata4j.core.OProperty;
+import org.odata4j.producer.EntitiesResponse;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+
+public class RelationshipStorageTest extends ProducerTestCase {
+
+	// the Device has no navigation property back to its User, the foreign key is named after the relationship
+	private static final String FOREIGN_KEY = "User_Devices";
+
+	@Test
+	public void foreignKeyLinkKeepsConcurrentWritesOfTheTarget() throws Exception {
+		set(ProducerSettings.RELATIONSHIP_STORAGE, "User.Devices", ProducerSettings.FOREIGN_KEY);
+		set(ProducerSettings.ENTITY_CACHE_SECONDS, "Device", 60);
+		Key device = putDevices(1).get(0);
+		Key user = putUser();
+		Producer linking = producer();
+		linking.getEntity("Device", OEntityKey.create(1L), null);
+
+		renumber(producer(), 100);
+		linking.createLink(OEntityIds.create("User", user.getId()), "Devices", OEntityIds.create("Device", 1L));
+		Entity stored = datastore.get(device);
+		assertEquals(100L, stored.getProperty("Number"));
+		assertEquals(user, stored.getProperty(FOREIGN_KEY));
+		assertEquals(2L, EntityVersion.get(stored));
+		assertEquals(numbers(100), numbers((EntitiesResponse) linking.getNavProperty("User", OEntityKey.create(user.getId()), "Devices", filter(null))));
+
+		renumber(producer(), 200);
+		linking.deleteLink(OEntityIds.create("User", user.getId()), "Devices", OEntityKey.create(1L));
+		stored = datastore.get(device);
+		assertEquals(200L, stored.getProperty("Number"));
+		assertNull(stored.getProperty(FOREIGN_KEY));
+		assertEquals(4L, EntityVersion.get(stored));
+	}
+
+	@Test
+	public void serviceWideStorageAppliesToManyNavigationsOnly() throws Exception {
+		settings.setProperty("odata.appengine." + ProducerSettings.RELATIONSHIP_STORAGE, ProducerSettings.FOREIGN_KEY);
+		Key device = putDevices(1).get(0);
+		Key user = putUser();
+		Producer producer = producer();
+
+		producer.createLink(OEntityIds.create("User", user.getId()), "Devices", OEntityIds.create("Device", 1L));
+		producer.createLink(OEntityIds.create("Device", 1L), "Owner", OEntityIds.create("User", user.getId()));
+		Entity stored = datastore.get(device);
+		assertEquals(user, stored.getProperty(FOREIGN_KEY));
+		assertEquals(user, stored.getProperty("Owner"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void singleValuedNavigationHasNoOtherStorage() {
+		set(ProducerSettings.RELATIONSHIP_STORAGE, "Device.Owner", ProducerSettings.FOREIGN_KEY);
+		producer();
+	}
+
+	private Key putUser() {
+		Entity user = new Entity("User");
+		user.setProperty("Name", "User");
+		return datastore.put(user);
+	}
+
+	private static void renumber(Producer producer, long number) {
+		producer.mergeEntity("Device", OEntities.create(producer.getMetadata().getEdmEntitySet("Device"), OEntityKey.create(1L),
+				Collections.<OProperty<?>> singletonList(OProperties.int64("Number", number)), Collections.<OLink> emptyList()));
+	}
+}
@@ -0,0 +1,96 @@
+package org.odata.appengine;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.odata4j.core.OEntityKey;
+import org.odata4j.producer.EntitiesResponse;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+
+/**
+ * A filter evaluated in memory stops after residualScanLimit entities and
+ * continues on the next page right behind the last entity it scanned.
+ */
+public class ScanLimitPagingTest extends ProducerTestCase {
+
+	// substringof is evaluated in memory, only devices with a 0 or 2 in their name match
+	private static final String FILTER = "substringof('0', Name) or substringof('2', Name)";
+	private static final List<Long> MATCHES = numbers(2, 10, 12, 20);
+
+	@Test
+	public void entitiesResumeBehindTheScanLimit() {
+		set(ProducerSettings.RESIDUAL_SCAN_LIMIT, "Device", 3);
+		putDevices(20);
+
+		assertEquals(MATCHES, readPages(producer(), "Device", FILTER, null, 20));
+	}
+
+	@Test
+	public void streamedEntitiesResumeBehindTheScanLimit() {
+		set(ProducerSettings.RESIDUAL_SCAN_LIMIT, "Device", 3);
+		set(ProducerSettings.STREAMING_CHUNK_SIZE, "Device", 2);
+		putDevices(20);
+
+		assertEquals(MATCHES, readPages(producer(), "Device", FILTER, null, 20));
+	}
+
+	@Test
+	public void everyEntityMatchingIsReturnedOnce() {
+		set(ProducerSettings.RESIDUAL_SCAN_LIMIT, "Device", 4);
+		putDevices(10);
+
+		assertEquals(numbers(1, 2, 3, 4, 5, 6, 7, 8, 9, 10), readPages(producer(), "Device", "substringof('Device', Name)", null, 10));
+	}
+
+	@Test
+	public void navigationTargetsResumeBehindTheScanLimit() {
+		set(ProducerSettings.RESIDUAL_SCAN_LIMIT, "Device", 3);
+		OEntityKey user = putUser(putDevices(20));
+
+		assertEquals(MATCHES, readNavigationPages(producer(), user, FILTER, 20));
+	}
+
+	@Test
+	public void streamedNavigationTargetsResumeBehindTheScanLimit() {
+		set(ProducerSettings.RESIDUAL_SCAN_LIMIT, "Device", 3);
+		set(ProducerSettings.STREAMING_CHUNK_SIZE, "Device", 2);
+		OEntityKey user = putUser(putDevices(20));
+
+		assertEquals(MATCHES, readNavigationPages(producer(), user, FILTER, 20));
+	}
+
+	@Test
+	public void everyNavigationTargetMatchingIsReturnedOnce() {
+		set(ProducerSettings.RESIDUAL_SCAN_LIMIT, "Device", 4);
+		set(ProducerSettings.MAX_PAGE_SIZE, "Device", 3);
+		OEntityKey user = putUser(putDevices(10));
+
+		assertEquals(numbers(1, 2, 3, 4, 5, 6, 7, 8, 9, 10), readNavigationPages(producer(), user, "Number gt 0", 10));
+	}
+
+	private OEntityKey putUser(List<Key> devices) {
+		Entity user = new Entity("User");
+		user.setProperty("Name", "User");
+		user.setProperty("Devices", devices);
+		return OEntityKey.create(datastore.put(user).getId());
+	}
+
+	private List<Long> readNavigationPages(Producer producer, OEntityKey user, String filter, int maxPages) {
+		List<Long> numbers = new ArrayList<Long>();
+		String skipToken = null;
+		for (int page = 0; page < maxPages; page++) {
+			EntitiesResponse response = (EntitiesResponse) producer.getNavProperty("User", user, "Devices", query(filter, null, null, null, skipToken, false));
+			numbers.addAll(numbers(response));
+			skipToken = response.getSkipToken();
+			if (skipToken == null) {
+				return numbers;
+			}
+		}
+		throw new AssertionError("More than " + maxPages + " pages of the devices of " + user);
+	}
+}
@@ -0,0 +1,69 @@
+package org.odata.appengine;
+
+import java.util.List;
+import java.util.concurrent.Future;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.ApiConfig;
+import com.google.apphosting.api.ApiProxy.ApiProxyException;
+import com.google.apphosting.api.ApiProxy.Delegate;
+import com.google.apphosting.api.ApiProxy.Environment;
+import com.google.apphosting.api.ApiProxy.LogRecord;
+
+/**
+ * ApiProxy delegate delaying every datastore call made through the local
+ * service stubs, so that a time budget shorter than the delay runs out on the
+ * first call.
+ */
+class SlowDatastore implements Delegate<Environment> {
+
+	private static final String DATASTORE_SERVICE = "datastore_v3";
+
+	private final Delegate<Environment> delegate;
+	private final long delayMillis;
+
+	private SlowDatastore(Delegate<Environment> delegate, long delayMillis) {
+		this.delegate = delegate;
+		this.delayMillis = delayMillis;
+	}
+
+	/**
+	 * Wraps the delegate installed by LocalServiceTestHelper.setUp().
+	 */
+	@SuppressWarnings("unchecked")
+	static void install(long delayMillis) {
+		ApiProxy.setDelegate(new SlowDatastore(ApiProxy.getDelegate(), delayMillis));
+	}
+
+	public byte[] makeSyncCall(Environment environment, String packageName, String methodName, byte[] request) throws ApiProxyException {
+		delay(packageName);
+		return delegate.makeSyncCall(environment, packageName, methodName, request);
+	}
+
+	public Future<byte[]> makeAsyncCall(Environment environment, String packageName, String methodName, byte[] request, ApiConfig apiConfig) {
+		delay(packageName);
+		return delegate.makeAsyncCall(environment, packageName, methodName, request, apiConfig);
+	}
+
+	public void log(Environment environment, LogRecord record) {
+		delegate.log(environment, record);
+	}
+
+	public void flushLogs(Environment environment) {
+		delegate.flushLogs(environment);
+	}
+
+	public List<Thread> getRequestThreads(Environment environment) {
+		return delegate.getRequestThreads(environment);
+	}
+
+	private void delay(String packageName) {
+		if (DATASTORE_SERVICE.equals(packageName)) {
+			try {
+				Thread.sleep(delayMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}